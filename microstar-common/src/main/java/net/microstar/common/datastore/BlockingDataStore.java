@@ -4,8 +4,11 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import net.microstar.common.util.DynamicReference;
 
 import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.LongConsumer;
 
@@ -47,12 +50,17 @@ public class BlockingDataStore {
     public <T> Optional<T>         get(String path, Class<T> type)         { return rethrow(() -> getStore().get(path, type)       .get(), BlockedDataStoreException::new); }
     public <T> Optional<T>         get(String path, TypeReference<T> type) { return rethrow(() -> getStore().get(path, type)       .get(), BlockedDataStoreException::new); }
     public Optional<Instant>       getLastModified(String path)            { return rethrow(() -> getStore().getLastModified(path) .get(), BlockedDataStoreException::new); }
+    public Optional<DataStore.Item> getItem(String path)                   { return rethrow(() -> getStore().getItem(path)         .get(), BlockedDataStoreException::new); }
     public boolean                 exists(String path)                     { return rethrow(() -> getStore().exists(path)          .get(), BlockedDataStoreException::new); }
     public <T> boolean             store(String path, T data)              { return rethrow(() -> getStore().store(path, data)     .get(), BlockedDataStoreException::new); }
     public boolean                 remove(String path)                     { return rethrow(() -> getStore().remove(path)          .get(), BlockedDataStoreException::new); }
     public boolean                 move(String fromPath, String toPath)    { return rethrow(() -> getStore().move(fromPath, toPath).get(), BlockedDataStoreException::new); }
     public Optional<InputStream>   readStream(String path)                 { return rethrow(() -> getStore().readStream(path)      .get(), BlockedDataStoreException::new); }
+    public Optional<ReadableByteChannel> readChannel(String path)          { return rethrow(() -> getStore().readChannel(path)     .get(), BlockedDataStoreException::new); }
     public Optional<byte[]>        read(String path)                       { return rethrow(() -> getStore().read(path)            .get(), BlockedDataStoreException::new); }
+    public Optional<byte[]>        read(String path, long offset, int length)
+                                                                           { return rethrow(() -> getStore().read(path, offset, length).get(), BlockedDataStoreException::new); }
+    public Optional<InputStream>   readStream(String path, long offset)    { return rethrow(() -> getStore().readStream(path, offset).get(), BlockedDataStoreException::new); }
     public Optional<String>        readString(String path)                 { return rethrow(() -> getStore().readString(path)      .get(), BlockedDataStoreException::new); }
     public boolean                 write(String path, byte[] data)         { return rethrow(() -> getStore().write(path, data)     .get(), BlockedDataStoreException::new); }
     public boolean                 write(String path, String data)         { return rethrow(() -> getStore().write(path, data)     .get(), BlockedDataStoreException::new); }
@@ -61,6 +69,10 @@ public class BlockingDataStore {
                                                                            { return rethrow(() -> getStore().write(path, source, progress).get(), BlockedDataStoreException::new); }
     public boolean                 touch(String path)                      { return rethrow(() -> getStore().touch(path)           .get(), BlockedDataStoreException::new); }
 
+    public Map<String,Optional<byte[]>> readMany(Collection<String> paths) { return rethrow(() -> getStore().readMany(paths)     .get(), BlockedDataStoreException::new); }
+    public boolean                 writeMany(Map<String,byte[]> pathToData){ return rethrow(() -> getStore().writeMany(pathToData).get(), BlockedDataStoreException::new); }
+    public boolean                 removeMany(Collection<String> paths)    { return rethrow(() -> getStore().removeMany(paths)   .get(), BlockedDataStoreException::new); }
+
     public List<String>            listNames(String path)                  { return rethrow(() -> getStore().listNames(path)       .get(), BlockedDataStoreException::new); }
     public List<String>            listNames(String path, boolean recursive){return rethrow(() -> getStore().listNames(path, recursive).get(), BlockedDataStoreException::new); }
 
@@ -1,27 +1,33 @@
 package net.microstar.common.datastore;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import lombok.SneakyThrows;
+import net.microstar.common.conversions.DurationString;
 import net.microstar.common.conversions.ObjectMapping;
 import net.microstar.common.util.Cache;
 import net.microstar.common.util.Threads;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
-import static net.microstar.common.util.ExceptionUtils.noThrow;
-import static net.microstar.common.util.ExceptionUtils.rethrow;
 
 /**
  * Layer on top of an actual data store that takes care of caching results in
@@ -43,6 +49,10 @@ import static net.microstar.common.util.ExceptionUtils.rethrow;
  *       maxMemItemFraction: 0.5 # optional maximum fraction of memory size an item can be (ignored when no file cache)
  *       readOnlyOnStoreFail: false # optional flag to enable (default) or disable read-only mode
  *                                  # when store gives (connection or other) errors.
+ *       refreshAge:    10m      # optional age after which a cached item is still served while it is
+ *                               # reloaded in the background (stale-while-revalidate). Should be < maxAge.
+ *       maxMissingCount: 10000  # optional maximum number of remembered missing paths (default 10000, 0 to disable)
+ *       maxMissingAge: 1m       # optional time a missing path is remembered (default 1m)
  * </pre>
  *
  * If both memory and file-cache are configured, the memory-cache
@@ -57,6 +67,12 @@ import static net.microstar.common.util.ExceptionUtils.rethrow;
  * enabled as this will move cacheItems from file to memory
  * when used.<p>
  *
+ * Reads of paths that don't exist are remembered as well (negative cache) so
+ * repeated probing for missing files doesn't reach the store every time.
+ * Writes via this store and change events of the source store invalidate
+ * both positive and negative entries. Concurrent reads of the same uncached
+ * path share a single read of the source store.<p>
+ *
  * Another goal of this cache is to add resilience to a failing
  * store, like a database that has intermittent connection
  * issues. It does this by reusing old listing data when not
@@ -64,10 +80,26 @@ import static net.microstar.common.util.ExceptionUtils.rethrow;
  * can be turned off.
  */
 public class CachedDataStore extends AbstractDataStore {
+    private static final int DEFAULT_MAX_MISSING_COUNT = 10_000;
+    private static final Duration DEFAULT_MAX_MISSING_AGE = Duration.ofMinutes(1);
+    private static final int MAX_LISTING_FALLBACK_COUNT = 1000;
+    private static final int MAX_UNCACHEABLE_COUNT = 1000;
     private final DataStore source;
     private final Cache cache;
-    private final @Nullable Cache listingFallbackCache; // listing (so no resource data) cache when backing store is failing
+    private final @Nullable Map<String,Object> listingFallbackCache; // listing (so no resource data) cache when backing store is failing
+    private final Map<String,Missing> missingPaths; // path -> when it was found missing. Always sync on this
+    private final NavigableMap<String,Long> loadTimes = new ConcurrentSkipListMap<>(); // path -> time the cached data was read from source. Sorted for prefix lookups
+    private final Map<String,CompletableFuture<Optional<byte[]>>> loading = new ConcurrentHashMap<>();
+    private final Map<String,Boolean> uncacheablePaths = boundedMap(MAX_UNCACHEABLE_COUNT); // paths too large to cache, streamed from source. Sync on this when iterating
+    private final AtomicLong generation = new AtomicLong(); // increases on every invalidation
+    private final long maxMissingAge;
+    private final @Nullable Duration refreshAge;
+    private final Runnable stopListeningToSource;
+
+    /** A missing path is not a file. When found missing by exists() it is not a directory either */
+    private record Missing(long since, boolean isNotDir) {}
 
+    @SuppressWarnings("this-escape")
     public CachedDataStore(DataStore source, String storeName, Map<String,?> cacheSettings) {
         this.source = source;
         try {
@@ -76,40 +108,69 @@ public class CachedDataStore extends AbstractDataStore {
                 .build();
             this.cache = new Cache(cacheCfg);
             final boolean useNonDataCache = Optional.ofNullable(ObjectMapping.get().readValue(""+cacheSettings.get("readOnlyOnStoreFail"), Boolean.class)).orElse(true);
-            this.listingFallbackCache = useNonDataCache ? new Cache(Cache.Configuration.builder().maxMemCount(1000).build()) : null;
-        } catch (JsonProcessingException e) {
+            this.listingFallbackCache = useNonDataCache ? boundedMap(MAX_LISTING_FALLBACK_COUNT) : null;
+            final int maxMissingCount = Optional.ofNullable(ObjectMapping.get().readValue(""+cacheSettings.get("maxMissingCount"), Integer.class)).orElse(DEFAULT_MAX_MISSING_COUNT);
+            this.missingPaths = boundedMap(maxMissingCount);
+            this.maxMissingAge = durationSetting(cacheSettings, "maxMissingAge").orElse(DEFAULT_MAX_MISSING_AGE).toMillis();
+            this.refreshAge = durationSetting(cacheSettings, "refreshAge").orElse(null);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
             throw new IllegalArgumentException("Invalid cache settings for store '" + storeName + "':" + e.getMessage(), e);
         }
+        stopListeningToSource = source.onChange(this::invalidate);
+    }
+    /** The store that is cached */
+    public DataStore getSource() {
+        return source;
     }
     public boolean isCached(String path) {
-        return cache.containsKey(path);
+        return cache.containsKey(normalizePath(path));
+    }
+    public boolean isKnownMissing(String path) {
+        return knownMissing(normalizePath(path)).isPresent();
+    }
+    private Optional<Missing> knownMissing(String normalizedPath) {
+        synchronized (missingPaths) {
+            final @Nullable Missing missing = missingPaths.get(normalizedPath);
+            if(missing == null) return Optional.empty();
+            if(System.currentTimeMillis() - missing.since <= maxMissingAge) return Optional.of(missing);
+            missingPaths.remove(normalizedPath);
+            return Optional.empty();
+        }
+    }
+    private void rememberMissing(String normalizedPath, boolean isNotDir) {
+        synchronized (missingPaths) { missingPaths.put(normalizedPath, new Missing(System.currentTimeMillis(), isNotDir)); }
     }
 
-    private static <T> T fromString(String s, TypeReference<T> type) { return noCheckedThrow(() -> ObjectMapping.get().readValue(s, type)); }
-    private static String toString(Object object) { return noCheckedThrow(() -> ObjectMapping.get().writeValueAsString(object)); }
-    @SneakyThrows // throws the exception that would otherwise be thrown by the original caller
-    private <T> T getNonDataCached(String cacheKey, @Nullable T value, @Nullable Throwable ex, TypeReference<T> valueType) {
-        final String s = listingFallbackCache == null ? "" : listingFallbackCache.getString(cacheKey, k->new byte[0]);
-        if(value != null || s.isEmpty()) throw ex == null ? new IllegalStateException("non-data cache miss: " + cacheKey) : ex;
-        return fromString(s, valueType);
+    private static <K,V> Map<K,V> boundedMap(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<K,V> eldest) { return size() > maxSize; }
+        });
+    }
+    private static Optional<Duration> durationSetting(Map<String,?> cacheSettings, String name) {
+        return Optional.ofNullable(cacheSettings.get(name)).map(value -> DurationString.toDuration(value.toString()));
     }
+
     @SneakyThrows // throws the exception that would otherwise be thrown by the caller
-    private @Nullable <T> T viaNonDataCache(Supplier<String> cacheKeySupplier, @Nullable T value, @Nullable Throwable ex, TypeReference<T> valueType) {
+    private @Nullable <T> T viaNonDataCache(Supplier<String> cacheKeySupplier, @Nullable T value, @Nullable Throwable ex) {
         if(listingFallbackCache == null) {
             if(ex != null) throw ex;
             return value;
         }
         final String cacheKey = cacheKeySupplier.get();
         if(ex == null && value != null) {
-            listingFallbackCache.put(cacheKey, toString(value));
+            listingFallbackCache.put(cacheKey, value);
             return value;
         }
-        return getNonDataCached(cacheKey, value, ex, valueType);
+        @SuppressWarnings("unchecked")
+        final @Nullable T cached = (T)listingFallbackCache.get(cacheKey);
+        if(cached == null) throw ex == null ? new IllegalStateException("non-data cache miss: " + cacheKey) : ex;
+        return cached;
     }
 
 
     @Override public Runnable getCloseRunner() {
         return () -> {
+            stopListeningToSource.run();
             source.getCloseRunner().run();
             Threads.execute(cache::close);
         };
@@ -117,52 +178,102 @@ public class CachedDataStore extends AbstractDataStore {
 
     @Override public CompletableFuture<List<Item>> list(String path, boolean recursive) {
         return source.list(path, recursive).handle((list,ex) ->
-            viaNonDataCache(() -> String.join(";", "list", path, recursive ? "@rcr" : "@flat"), list, ex, new TypeReference<>() {}));
+            viaNonDataCache(() -> String.join(";", "list", path, recursive ? "@rcr" : "@flat"), list == null ? null : List.copyOf(list), ex));
     }
 
     @Override public CompletableFuture<Optional<Instant>> getLastModified(String path) {
         return source.getLastModified(path).handle((lastModified,ex) ->
-            viaNonDataCache(() -> String.join(";", "lastModified", path), lastModified, ex, new TypeReference<>() {}));
+            viaNonDataCache(() -> String.join(";", "lastModified", path), lastModified, ex));
     } // uncached when connected
 
-    @Override public CompletableFuture<Boolean> exists(String path) {
-        return source.exists(path).handle((exists,ex) ->
-            viaNonDataCache(() -> String.join(";", "exists", path), exists, ex, new TypeReference<>() {}));
+    @Override public CompletableFuture<Optional<Item>> getItem(String path) {
+        return source.getItem(path).handle((item,ex) ->
+            viaNonDataCache(() -> String.join(";", "item", path), item, ex));
     } // uncached when connected
 
+    @Override public CompletableFuture<Boolean> exists(String pathIn) {
+        final String path = normalizePath(pathIn);
+        if(knownMissing(path).filter(Missing::isNotDir).isPresent()) return CompletableFuture.completedFuture(false);
+        final long startGeneration = generation.get();
+        return source.exists(path).handle((exists,ex) -> {
+            if(ex == null && Boolean.FALSE.equals(exists) && generation.get() == startGeneration) rememberMissing(path, /*isNotDir=*/true);
+            return viaNonDataCache(() -> String.join(";", "exists", path), exists, ex);
+        });
+    } // only missing paths are cached when connected
+
     @Override public CompletableFuture<Boolean> remove(String path) {
         return source.remove(path)
-            .thenApply(ok -> invalidate(ok, path));
+            .thenApply(ok -> invalidate(ok, List.of(path)));
     } // uncached
 
     @Override public CompletableFuture<Boolean> move(String fromPath, String toPath) {
         return source.move(fromPath, toPath)
-            .thenApply(ok -> invalidate(ok, fromPath));
+            .thenApply(ok -> invalidate(ok, List.of(fromPath, toPath)));
     } // uncached
 
-    @Override public CompletableFuture<Optional<byte[]>> read(String path) {
-        final Function<String,byte[]> supplier = key -> rethrow(() ->
-            source.read(key).get().orElseThrow(), ex -> new IllegalStateException("Failed to read data for path " + path, ex));
-        return cache.getBytesAsFuture(path, supplier).thenApply(Optional::ofNullable);
+    @Override public CompletableFuture<Optional<byte[]>> read(String pathIn) {
+        final String path = normalizePath(pathIn);
+        if(isKnownMissing(path)) return CompletableFuture.completedFuture(Optional.empty());
+        if(!cache.containsKey(path)) return load(path);
+
+        if(isStale(path)) load(path); // serve the cached value while refreshing in the background
+        return cache.getBytesAsFuture(path, key -> load(key).join().orElseThrow())
+            .thenApply(Optional::of)
+            .exceptionallyCompose(ex -> load(path)); // evicted or invalidated in the meantime
     }
 
-    @Override public CompletableFuture<Optional<InputStream>> readStream(String path) {
-        final Function<String,byte[]> supplier = key -> rethrow(() ->
-            source.read(key).get().orElseThrow(), ex -> new IllegalStateException("Failed to read data for path " + path, ex));
-        return CompletableFuture.completedFuture(noThrow(() -> cache.get(path, supplier)));
+    /** Cached items are streamed from the cache (so items in the file cache are not read into memory)
+      * and items too large to be cached are streamed from the source.
+      */
+    @Override public CompletableFuture<Optional<InputStream>> readStream(String pathIn) {
+        final String path = normalizePath(pathIn);
+        if(isKnownMissing(path)) return CompletableFuture.completedFuture(Optional.empty());
+        if(uncacheablePaths.containsKey(path)) return source.readStream(path);
+        if(!cache.containsKey(path)) return load(path).thenApply(data -> data.map(ByteArrayInputStream::new));
+
+        if(isStale(path)) load(path); // serve the cached value while refreshing in the background
+        return cache.getAsFuture(path, key -> load(key).join().orElseThrow())
+            .thenApply(Optional::of)
+            .exceptionallyCompose(ex -> load(path).thenApply(data -> data.map(ByteArrayInputStream::new))); // evicted or invalidated in the meantime
+    }
+
+    /** Ranges are served from the cache when the whole item is cached. Otherwise only
+      * the range is read from the source, which is not cached (so requesting the last
+      * megabyte of a large item doesn't read the whole item).
+      */
+    @Override public CompletableFuture<Optional<byte[]>> read(String pathIn, long offset, int length) {
+        final String path = normalizePath(pathIn);
+        if(isKnownMissing(path)) return CompletableFuture.completedFuture(Optional.empty());
+        if(!cache.containsKey(path)) return source.read(path, offset, length);
+        return readStream(path, offset).thenApply(stream -> stream.map(in -> noCheckedThrow(() -> { try(final InputStream toClose = in) { return toClose.readNBytes(Math.max(0, length)); } })));
+    }
+
+    @Override public CompletableFuture<Optional<InputStream>> readStream(String pathIn, long offset) {
+        final String path = normalizePath(pathIn);
+        if(isKnownMissing(path)) return CompletableFuture.completedFuture(Optional.empty());
+        if(!cache.containsKey(path)) return source.readStream(path, offset);
+        return readStream(path).thenApply(stream -> stream.map(in -> skipped(in, offset)));
     }
 
     @Override public CompletableFuture<Boolean> write(String path, byte[] data, Instant time) {
         return source.write(path, data, time)
-            .thenApply(ok -> invalidate(ok, path));
+            .thenApply(ok -> invalidate(ok, List.of(path)));
     }
     @Override public CompletableFuture<Boolean> write(String path, InputStream stream, Instant time, LongConsumer progress) {
         return source.write(path, stream, time, progress)
-            .thenApply(ok -> invalidate(ok, path));
+            .thenApply(ok -> invalidate(ok, List.of(path)));
+    }
+    @Override public CompletableFuture<Boolean> writeMany(Map<String,byte[]> pathToData, Instant time) {
+        return source.writeMany(pathToData, time)
+            .thenApply(ok -> invalidate(ok, pathToData.keySet()));
     }
+    @Override public CompletableFuture<Boolean> removeMany(Collection<String> paths) {
+        return source.removeMany(paths)
+            .thenApply(ok -> invalidate(ok, paths));
+    } // uncached
     @Override public CompletableFuture<Boolean> touch(String path, Instant time) {
         return source.touch(path, time)
-            .thenApply(ok -> invalidate(ok, path));
+            .thenApply(ok -> invalidate(ok, List.of(path)));
     }
 
     @Override public Runnable onChange(String path, Consumer<List<String>> changeHandler) {
@@ -172,8 +283,72 @@ public class CachedDataStore extends AbstractDataStore {
         return source.onClose(closingStoreHandler);
     }
 
-    private boolean invalidate(boolean ok, String path) {
-        cache.invalidate(path);
+    /** Streams of the cache are in memory or a file, both of which skip in one call, also past the end */
+    private static InputStream skipped(InputStream in, long offset) {
+        noCheckedThrow(() -> in.skip(Math.max(0, offset)));
+        return in;
+    }
+
+    private boolean isStale(String path) {
+        final @Nullable Long loadTime = loadTimes.get(path);
+        return refreshAge != null && loadTime != null && System.currentTimeMillis() - loadTime > refreshAge.toMillis();
+    }
+
+    /** Reads from source and caches the result. Concurrent loads of the same path share a single read */
+    private CompletableFuture<Optional<byte[]>> load(String path) {
+        final CompletableFuture<Optional<byte[]>> result = new CompletableFuture<>();
+        final @Nullable CompletableFuture<Optional<byte[]>> alreadyLoading = loading.putIfAbsent(path, result);
+        if(alreadyLoading != null) return alreadyLoading.thenApply(data -> data.map(byte[]::clone));
+
+        final long startGeneration = generation.get();
+        source.read(path).whenComplete((data, ex) -> {
+            // Don't store when something was invalidated while loading as the result may be stale
+            if(ex == null && generation.get() == startGeneration) {
+                if(data.isPresent()) {
+                    cache.put(path, data.get());
+                    putLoadTime(path);
+                    if(!cache.containsKey(path)) uncacheablePaths.put(path, true); // too large for the cache
+                } else {
+                    cache.invalidate(path);
+                    loadTimes.remove(path);
+                    rememberMissing(path, /*isNotDir=*/false); // the path may be a directory
+                }
+            }
+            loading.remove(path, result);
+            if(ex != null) result.completeExceptionally(ex); else result.complete(data);
+        });
+        return result;
+    }
+
+    /** The cache evicts without telling, so load times of evicted paths are removed when there are many more load times than cached items */
+    private void putLoadTime(String path) {
+        loadTimes.put(path, System.currentTimeMillis());
+        if(loadTimes.size() > 2 * cache.count() + 64) loadTimes.keySet().removeIf(loaded -> !cache.containsKey(loaded));
+    }
+
+    private void invalidate(List<String> paths) {
+        invalidate(true, paths);
+    }
+    private boolean invalidate(boolean ok, Collection<String> paths) {
+        generation.incrementAndGet();
+        for(final String path : paths.stream().map(this::normalizePath).toList()) {
+            final String dirPath = isDir(path) ? path : path + "/"; // the path may be a directory that was moved or removed
+            cache.invalidate(path);
+            loadTimes.remove(path);
+            final Map<String,Long> below = loadTimes.subMap(dirPath, dirPath + Character.MAX_VALUE);
+            below.keySet().forEach(cache::invalidate);
+            below.clear();
+            synchronized (uncacheablePaths) {
+                uncacheablePaths.keySet().removeIf(uncacheable -> uncacheable.equals(path) || uncacheable.startsWith(dirPath));
+            }
+            synchronized (missingPaths) {
+                missingPaths.keySet().removeIf(missing -> missing.equals(path) || missing.startsWith(dirPath));
+                for(String parent = getParent(path); !parent.isEmpty() && !"/".equals(parent); parent = getParent(parent)) { // parents exist now, at least as directory
+                    missingPaths.remove(parent);
+                    missingPaths.remove(parent.replaceFirst("/$", ""));
+                }
+            }
+        }
         return ok;
     }
 }
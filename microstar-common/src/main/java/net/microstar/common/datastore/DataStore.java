@@ -7,17 +7,26 @@ import lombok.ToString;
 import net.microstar.common.io.IOUtils;
 import net.microstar.common.util.SemanticStringComparator;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 
+import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
+
 /** Interface for simple storage implementations.
   * Paths are strings separated by slashes.
   * A path that ends with a slash is a folder.<p>
@@ -59,6 +68,8 @@ public interface DataStore {
     <T>     CompletableFuture<Optional<T>>             get(String path, Class<T> type);
     <T>     CompletableFuture<Optional<T>>             get(String path, TypeReference<T> type);
             CompletableFuture<Optional<Instant>>       getLastModified(String path);
+    /** Time and size of the given path (which may be a directory) where Item.path is the normalized path */
+    default CompletableFuture<Optional<Item>>          getItem(String path) { return getItemDefault(this, path); }
             CompletableFuture<Boolean>                 exists(String path);
     <T>     CompletableFuture<Boolean>                 store(String path, T data);
             CompletableFuture<Boolean>                 remove(String path);
@@ -66,6 +77,27 @@ public interface DataStore {
 
             CompletableFuture<Optional<InputStream>> readStream(String path);
             CompletableFuture<Optional<byte[]>>      read(String path);
+    /** Reads at most length bytes of the data of the given path, starting at offset. Less bytes are returned
+      * when the data ends earlier. Implementations only read the requested range from storage. The default
+      * reads via readStream(path, offset).
+      */
+    default CompletableFuture<Optional<byte[]>>      read(String path, long offset, int length) {
+        return readStream(path, offset).thenApply(stream -> stream.map(in ->
+            noCheckedThrow(() -> { try(final InputStream streamToClose = in) { return streamToClose.readNBytes(length); } })));
+    }
+    /** Stream of the data of the given path, starting at offset. The default skips the first offset
+      * bytes of readStream(path), so implementations should override this to seek instead.
+      */
+    default CompletableFuture<Optional<InputStream>> readStream(String path, long offset) {
+        return readStream(path).thenApply(stream -> stream.map(in -> noCheckedThrow(() -> skip(in, offset))));
+    }
+    /** Channel to read the data of the given path from. Stores that keep data in files return a FileChannel,
+      * which callers can memory-map or transfer to a socket without copying the data onto the heap.
+      * The default wraps readStream(). The caller should close the channel.
+      */
+    default CompletableFuture<Optional<ReadableByteChannel>> readChannel(String path) {
+        return readStream(path).thenApply(stream -> stream.map(Channels::newChannel));
+    }
     default CompletableFuture<Optional<String>>      readString(String path) { return read(path).thenApply(bytes -> bytes.map(b->new String(b, StandardCharsets.UTF_8))); }
     default CompletableFuture<Boolean>               write(String path, byte[] data) { return write(path, data, Instant.now()); }
             CompletableFuture<Boolean>               write(String path, byte[] data, Instant time);
@@ -77,6 +109,29 @@ public interface DataStore {
             CompletableFuture<Boolean>               touch(String path, Instant time);
     default CompletableFuture<Boolean>               touch(String path) { return touch(path, Instant.now()); }
 
+    // Batch operations. The default implementations call the single-item operations
+    // concurrently. Implementations can do better, like using a single transaction.
+
+    /** Reads all given paths. The resulting map has the given paths as keys, in the given order */
+    default CompletableFuture<Map<String,Optional<byte[]>>> readMany(Collection<String> paths) {
+        final List<String> pathsList = List.copyOf(new LinkedHashSet<>(paths));
+        final List<CompletableFuture<Optional<byte[]>>> reads = pathsList.stream().map(this::read).toList();
+        return CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            final Map<String,Optional<byte[]>> result = new LinkedHashMap<>();
+            for(int i=0; i<pathsList.size(); i++) result.put(pathsList.get(i), reads.get(i).join());
+            return result;
+        });
+    }
+    default CompletableFuture<Boolean>               writeMany(Map<String,byte[]> pathToData) { return writeMany(pathToData, Instant.now()); }
+    /** Writes all given paths, returns true if all writes succeeded */
+    default CompletableFuture<Boolean>               writeMany(Map<String,byte[]> pathToData, Instant time) {
+        return allTrue(pathToData.entrySet().stream().map(entry -> write(entry.getKey(), entry.getValue(), time)).toList());
+    }
+    /** Removes all given paths, returns true if all removes succeeded */
+    default CompletableFuture<Boolean>               removeMany(Collection<String> paths) {
+        return allTrue(new LinkedHashSet<>(paths).stream().map(this::remove).toList());
+    }
+
     default CompletableFuture<List<String>>          listNames(String path) { return listNames(path, false); }
     default CompletableFuture<List<String>>          listNames(String path, boolean recursive) {
         return list(path, recursive).thenApply(items -> items.stream().map(item -> item.path).sorted().toList());
@@ -93,6 +148,31 @@ public interface DataStore {
     default String  getParent(String path) { return getParentDefault(path); }
     default String normalizePath(Object... pathParts) { return normalizePathDefault(pathParts); }
 
+    private static InputStream skip(InputStream in, long count) throws IOException {
+        long remaining = count;
+        while(remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if(skipped > 0) remaining -= skipped;
+            else if(in.read() >= 0) remaining--;
+            else break; // offset beyond end: empty stream
+        }
+        return in;
+    }
+
+    private static CompletableFuture<Boolean> allTrue(List<CompletableFuture<Boolean>> futures) {
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+            .thenApply(v -> futures.stream().allMatch(CompletableFuture::join));
+    }
+
+    static CompletableFuture<Optional<Item>> getItemDefault(DataStore store, String path) {
+        final String normalizedPath = store.normalizePath(path);
+        final String name = normalizedPath.replaceFirst("/$", "").replaceFirst("^.*/", "");
+        return store.list(store.getParent(normalizedPath.replaceFirst("/$", ""))).thenApply(items -> items.stream()
+            .filter(item -> item.path.equals(name) || item.path.equals(name + "/"))
+            .findFirst()
+            .map(item -> new Item(normalizedPath, item.time, item.count, item.size)));
+    }
+
     static String getParentDefault(String path) {
         return normalizePathDefault(path + "/../");
     }
@@ -13,9 +13,11 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -107,6 +109,13 @@ public final class DataStoreUtils {
         }
     }
     private static void copySingle(DataStore sourceStore, String sourcePath, DataStore targetStore, String targetPath, LongConsumer progress, Consumer<String> fail) {
+        final Optional<DedupDataStore> dedupSource = dedupStoreOf(sourceStore);
+        final Optional<DedupDataStore> dedupTarget = dedupStoreOf(targetStore);
+        if(dedupSource.isPresent() && dedupTarget.isPresent()) {
+            // When the target already has the data, only the reference needs to be copied
+            final Optional<String> hash = dedupSource.get().getContentHash(sourcePath);
+            if(hash.isPresent() && noThrow(() -> dedupTarget.get().writeReference(targetPath, hash.get(), Instant.now()).get()).orElse(false)) return;
+        }
         final InputStream readStream = noThrow(() -> sourceStore.readStream(sourcePath).get().orElseThrow())
             .orElseThrow(() -> {
                 final String error = "Copy failed: unable to get data of source: " + sourcePath;
@@ -124,6 +133,13 @@ public final class DataStoreUtils {
             });
     }
 
+    /** The deduplicating store, also when it is cached (the cache learns about changes from its source) */
+    private static Optional<DedupDataStore> dedupStoreOf(DataStore store) {
+        if(store instanceof DedupDataStore dedupStore) return Optional.of(dedupStore);
+        if(store instanceof CachedDataStore cachedStore) return dedupStoreOf(cachedStore.getSource());
+        return Optional.empty();
+    }
+
     public static void copy(BlockingDataStore sourceStore, String sourcePath, BlockingDataStore targetStore, String targetPath) {
         final UUID copyId = copy(sourceStore.getStore(), sourcePath, targetStore.getStore(), targetPath, cpi -> {});
         synchronized (copiesInProgress) {
@@ -0,0 +1,393 @@
+package net.microstar.common.datastore;
+
+import lombok.extern.slf4j.Slf4j;
+import net.microstar.common.conversions.ObjectMapping;
+import net.microstar.common.util.Threads;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+import static net.microstar.common.util.ThreadUtils.debounce;
+
+/** Layer on top of an actual data store that stores data by the hash (SHA-256) of
+  * its contents, so byte-identical data at different paths is stored only once.
+  * In the source store this looks like:<pre>
+  *
+  *   /blobs/ab/abcdef...   contents, named by its hash
+  *   /refs/some/path.txt   reference: { "hash": "abcdef...", "size": 123 }
+  * </pre>
+  *
+  * References are indexed in memory, counted per hash and their sizes summed per
+  * directory (for listings). When the last reference to a blob is removed, garbage
+  * collection is scheduled, which removes blobs that are not referenced and were not
+  * written or reused for a while (so writes of other instances on the same source
+  * store are not affected).<p>
+  *
+  * Callers that know the hash of data can check hasContent(hash) and then use
+  * writeReference() instead of transferring the data again. DataStoreUtils.copy()
+  * does this when copying between deduplicating stores.
+  */
+@Slf4j
+public class DedupDataStore extends AbstractDataStore {
+    private static final String BLOBS = "/blobs/";
+    private static final String REFS = "/refs";
+    private static final String UPLOADS = BLOBS + "uploads/";
+    private static final Duration GC_DEBOUNCE = Duration.ofSeconds(10);
+    private static final Duration GC_MAX_DELAY = Duration.ofMinutes(5);
+    private static final Duration GC_GRACE_PERIOD = Duration.ofMinutes(10);
+    private final DataStore source;
+    private final String gcDebounceId = "DedupDataStore.gc:" + UUID.randomUUID();
+    private final Map<String,Ref> refs = new HashMap<>(); // path -> ref. Always sync on this, also for refCounts
+    private final Map<String,Integer> refCounts = new HashMap<>(); // hash -> number of refs
+    private final Map<String,Long> dirSizes = new HashMap<>(); // directory path -> summed size of the refs below it. Sync on refs
+    private final Map<String,Integer> pendingRefs = new HashMap<>(); // hash -> number of refs being written. Sync on this, GC does too
+    private final Map<String,CompletableFuture<Void>> collecting = new HashMap<>(); // hash -> blob removal by GC in progress. Sync on pendingRefs
+    private final Runnable stopListeningToSource;
+
+    public record Ref(String hash, long size) {}
+
+    @SuppressWarnings("this-escape")
+    public DedupDataStore(DataStore source) {
+        this.source = source;
+        noThrow(this::loadRefs, ex -> log.warn("Unable to load references of deduplicating store: {}", ex.getMessage()));
+        stopListeningToSource = source.onChange(this::handleSourceChanges);
+    }
+
+    /** Returns true if data with the given hash is stored, so writeReference() can be used instead of writing the data */
+    public CompletableFuture<Boolean> hasContent(String hash) {
+        return source.exists(blobPath(hash));
+    }
+
+    public Optional<String> getContentHash(String path) {
+        synchronized (refs) { return Optional.ofNullable(refs.get(normalizePath(path))).map(Ref::hash); }
+    }
+
+    public int getReferenceCount(String hash) {
+        synchronized (refs) { return refCounts.getOrDefault(hash, 0); }
+    }
+
+    /** Let path refer to already stored data with the given hash. Returns false if there is no such data */
+    public CompletableFuture<Boolean> writeReference(String path, String hash, Instant time) {
+        return whilePending(hash, () -> blobItem(hash).thenCompose(blob -> blob.isEmpty()
+            ? CompletableFuture.completedFuture(false)
+            : source.touch(blobPath(hash)) // reuse resets the GC grace period
+                .thenCompose(touched -> writeRef(path, new Ref(hash, blob.get().size), time))));
+    }
+
+    /** Removes blobs that are no longer referenced and were not written or reused during the grace period. Returns the number removed.<p>
+      *
+      * Each blob is checked again right before it is removed, because the listing may be outdated by then. While
+      * that check and removal run, the blob is marked as being collected so reference writes to it wait for the
+      * collection to finish (see whilePending()), without a lock being held during the I/O.
+      */
+    public CompletableFuture<Integer> collectGarbage() {
+        final Instant maxTime = Instant.now().minus(GC_GRACE_PERIOD);
+        return source.list(BLOBS, /*recursive=*/true).thenApplyAsync(items -> {
+            final List<Item> candidates = items.stream()
+                .filter(item -> !isDir(item))
+                .filter(item -> item.time.isBefore(maxTime))
+                .filter(item -> !isReferenced(item.getFilename())) // uploads/* are never referenced, so removed when abandoned
+                .toList();
+            int removedCount = 0;
+            for(final Item candidate : candidates) {
+                final String blobPath = BLOBS + candidate.path;
+                final String hash = candidate.getFilename();
+                final CompletableFuture<Void> collected = new CompletableFuture<>();
+                synchronized (pendingRefs) {
+                    if(pendingRefs.containsKey(hash) || isReferenced(hash) || collecting.putIfAbsent(hash, collected) != null) continue;
+                }
+                try {
+                    final boolean isUnused = noThrow(() -> source.getLastModified(blobPath).get()).flatMap(lastModified -> lastModified).filter(time -> time.isBefore(maxTime)).isPresent();
+                    if(isUnused && noThrow(() -> source.remove(blobPath).get()).orElse(false)) removedCount++;
+                } finally {
+                    synchronized (pendingRefs) { collecting.remove(hash); }
+                    collected.complete(null);
+                }
+            }
+            if(removedCount > 0) log.info("Removed {} unreferenced blobs", removedCount);
+            return removedCount;
+        }, Threads.getExecutor());
+    }
+
+    public static String contentHashOf(byte[] data) {
+        return HexFormat.of().formatHex(newDigest().digest(data));
+    }
+
+
+    @Override public Runnable getCloseRunner() {
+        return () -> {
+            stopListeningToSource.run();
+            source.getCloseRunner().run();
+        };
+    }
+
+    @Override public CompletableFuture<List<Item>> list(String path, boolean recursive) {
+        final String dir = normalizePath(path + "/"); // NOSONAR -- slash
+        return source.list(REFS + dir, recursive).thenApply(items -> {
+            synchronized (refs) {
+                return items.stream().map(item -> {
+                    final String fullPath = normalizePath(dir, item.path);
+                    final long size = isDir(item)
+                        ? dirSizes.getOrDefault(fullPath, 0L)
+                        : Optional.ofNullable(refs.get(fullPath)).map(Ref::size).orElse(item.size);
+                    return new Item(item.path, item.time, item.count, size);
+                }).toList();
+            }
+        });
+    }
+
+    @Override public CompletableFuture<Optional<Instant>> getLastModified(String path) {
+        return source.getLastModified(refPath(path));
+    }
+
+    @Override public CompletableFuture<Optional<Item>> getItem(String path) {
+        final String normalizedPath = normalizePath(path);
+        return source.getItem(refPath(normalizedPath)).thenApply(refItem -> refItem.map(item -> {
+            synchronized (refs) {
+                final String dirPath = isDir(normalizedPath) ? normalizedPath : normalizedPath + "/";
+                final long size = Optional.ofNullable(refs.get(normalizedPath)).map(Ref::size)
+                    .orElseGet(() -> dirSizes.getOrDefault(dirPath, 0L));
+                return new Item(normalizedPath, item.time, item.count, size);
+            }
+        }));
+    }
+
+    @Override public CompletableFuture<Boolean> exists(String path) {
+        return source.exists(refPath(path));
+    }
+
+    @Override public CompletableFuture<Boolean> remove(String path) {
+        return source.remove(refPath(path)).thenApply(ok -> {
+            if(ok) removeRefs(normalizePath(path));
+            return ok;
+        });
+    }
+
+    @Override public CompletableFuture<Boolean> move(String fromPath, String toPath) {
+        return source.move(refPath(fromPath), refPath(toPath)).thenApply(ok -> {
+            if(ok) moveRefs(normalizePath(fromPath), normalizePath(toPath));
+            return ok;
+        });
+    }
+
+    @Override public CompletableFuture<Optional<byte[]>> read(String path) {
+        return viaBlob(path, source::read);
+    }
+    @Override public CompletableFuture<Optional<byte[]>> read(String path, long offset, int length) {
+        return viaBlob(path, blob -> source.read(blob, offset, length));
+    }
+    @Override public CompletableFuture<Optional<InputStream>> readStream(String path) {
+        return viaBlob(path, source::readStream);
+    }
+    @Override public CompletableFuture<Optional<InputStream>> readStream(String path, long offset) {
+        return viaBlob(path, blob -> source.readStream(blob, offset));
+    }
+    @Override public CompletableFuture<Optional<ReadableByteChannel>> readChannel(String path) {
+        return viaBlob(path, source::readChannel);
+    }
+
+    @Override public CompletableFuture<Boolean> write(String path, byte[] data, Instant time) {
+        final String hash = contentHashOf(data);
+        return whilePending(hash, () -> writeReference(path, hash, time).thenCompose(referenced -> referenced
+            ? CompletableFuture.completedFuture(true)
+            : source.write(blobPath(hash), data).thenCompose(ok -> ok ? writeRef(path, new Ref(hash, data.length), time) : CompletableFuture.completedFuture(false))));
+    }
+
+    @Override public CompletableFuture<Boolean> write(String path, InputStream stream, Instant time, LongConsumer progress) {
+        // The hash is only known after all data is read, so first write to an upload location
+        final String uploadPath = UPLOADS + UUID.randomUUID();
+        final HashingInputStream hashingStream = new HashingInputStream(stream);
+        return source.write(uploadPath, hashingStream, Instant.now(), progress).thenCompose(ok -> {
+            if(!ok) return source.remove(uploadPath).thenApply(removed -> false);
+            final String hash = hashingStream.getHash();
+            final Ref ref = new Ref(hash, hashingStream.count);
+            return whilePending(hash, () -> writeReference(path, hash, time).thenCompose(referenced -> referenced
+                ? source.remove(uploadPath)
+                : source.move(uploadPath, blobPath(hash)).thenCompose(moved -> moved ? writeRef(path, ref, time) : CompletableFuture.completedFuture(false))));
+        });
+    }
+
+    @Override public CompletableFuture<Boolean> touch(String path, Instant time) {
+        return source.touch(refPath(path), time);
+    }
+
+    @Override public Runnable onClose(Consumer<DataStore> closingStoreHandler) {
+        return source.onClose(closingStoreHandler);
+    }
+
+
+    private static String blobPath(String hash) {
+        return BLOBS + hash.substring(0, Math.min(2, hash.length())) + "/" + hash;
+    }
+    private String refPath(String path) {
+        return REFS + normalizePath(path);
+    }
+
+    private CompletableFuture<Optional<Item>> blobItem(String hash) {
+        return source.list(getParent(blobPath(hash)))
+            .thenApply(items -> items.stream().filter(item -> item.getFilename().equals(hash)).findFirst());
+    }
+
+    /** Garbage collection won't remove the blob of the given hash while the given reference writing runs.
+      * If garbage collection of that blob is already in progress, the writing starts when it is finished.
+      */
+    private CompletableFuture<Boolean> whilePending(String hash, Supplier<CompletableFuture<Boolean>> writer) {
+        final CompletableFuture<Void> collected;
+        synchronized (pendingRefs) {
+            pendingRefs.merge(hash, 1, Integer::sum);
+            collected = collecting.getOrDefault(hash, CompletableFuture.completedFuture(null));
+        }
+        return collected
+            .thenCompose(done -> writer.get())
+            .whenComplete((ok, ex) -> removePending(hash));
+    }
+    private void removePending(String hash) {
+        synchronized (pendingRefs) { pendingRefs.computeIfPresent(hash, (h, count) -> count > 1 ? count - 1 : null); }
+    }
+    private boolean isReferenced(String hash) {
+        synchronized (refs) { return refCounts.containsKey(hash); }
+    }
+
+    private <T> CompletableFuture<Optional<T>> viaBlob(String path, Function<String,CompletableFuture<Optional<T>>> reader) {
+        return getContentHash(path)
+            .map(hash -> reader.apply(blobPath(hash)))
+            .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+    }
+
+    private CompletableFuture<Boolean> writeRef(String path, Ref ref, Instant time) {
+        final String normalizedPath = normalizePath(path);
+        return source.write(refPath(normalizedPath), toJson(ref), time).thenApply(ok -> {
+            if(ok) putRef(normalizedPath, ref);
+            return ok;
+        });
+    }
+
+    private void loadRefs() throws Exception {
+        final List<String> refPaths = source.list(REFS, /*recursive=*/true).get().stream()
+            .filter(item -> !isDir(item))
+            .map(item -> normalizePath(REFS, item.path))
+            .toList();
+        source.readMany(refPaths).get().forEach((refPath, data) ->
+            data.flatMap(DedupDataStore::parseRef).ifPresent(ref -> putRef(refPath.substring(REFS.length()), ref)));
+    }
+
+    private void handleSourceChanges(List<String> sourcePaths) {
+        final List<String> paths = sourcePaths.stream()
+            .map(this::normalizePath)
+            .filter(path -> path.startsWith(REFS + "/"))
+            .map(path -> path.substring(REFS.length()))
+            .toList();
+        if(paths.isEmpty()) return;
+        // Changes may come from other instances using the same source, so sync the index before
+        // telling the listeners (the refs are small, so it is ok to block the notifying thread)
+        noThrow(() -> source.readMany(paths.stream().map(this::refPath).toList()).get(), ex -> log.warn("Unable to read changed references: {}", ex.getMessage()))
+            .ifPresent(refData -> refData.forEach((refPath, data) -> {
+                final String path = refPath.substring(REFS.length());
+                data.flatMap(DedupDataStore::parseRef).ifPresentOrElse(ref -> putRef(path, ref), () -> removeRefs(path));
+            }));
+        changed(paths);
+    }
+
+    private static Optional<Ref> parseRef(byte[] data) {
+        return noThrow(() -> ObjectMapping.get().readValue(data, Ref.class));
+    }
+
+    private void putRef(String path, Ref ref) {
+        synchronized (refs) {
+            final @Nullable Ref old = refs.put(path, ref);
+            refCounts.merge(ref.hash, 1, Integer::sum);
+            addToDirSizes(path, ref.size - (old == null ? 0 : old.size));
+            if(old != null) decrementRefCount(old.hash);
+        }
+    }
+    private void removeRefs(String path) {
+        final String dirPath = isDir(path) ? path : path + "/"; // path may be a directory
+        synchronized (refs) {
+            refs.entrySet().removeIf(entry -> {
+                final boolean remove = entry.getKey().equals(path) || entry.getKey().startsWith(dirPath);
+                if(remove) {
+                    addToDirSizes(entry.getKey(), -entry.getValue().size);
+                    decrementRefCount(entry.getValue().hash);
+                }
+                return remove;
+            });
+        }
+    }
+    private void moveRefs(String fromPath, String toPath) {
+        final String fromDir = isDir(fromPath) ? fromPath : fromPath + "/";
+        final String toDir = isDir(toPath) ? toPath : toPath + "/";
+        synchronized (refs) {
+            final Map<String,Ref> moved = new HashMap<>();
+            refs.entrySet().removeIf(entry -> {
+                final String path = entry.getKey();
+                if(path.equals(fromPath)) moved.put(toPath, entry.getValue());
+                else if(path.startsWith(fromDir)) moved.put(toDir + path.substring(fromDir.length()), entry.getValue());
+                else return false;
+                addToDirSizes(path, -entry.getValue().size);
+                return true;
+            });
+            moved.forEach(this::putRef);
+            moved.values().forEach(ref -> decrementRefCount(ref.hash)); // after put so moved blobs are never unreferenced
+        }
+    }
+    /** Adds delta to the summed size of every directory the path is in. Call while synced on refs */
+    private void addToDirSizes(String path, long delta) {
+        if(delta == 0) return;
+        for(int slash = path.lastIndexOf('/', path.length() - 2); slash >= 0; slash = path.lastIndexOf('/', slash - 1)) {
+            dirSizes.merge(path.substring(0, slash + 1), delta, (size, add) -> size + add == 0 ? null : size + add);
+        }
+    }
+    private void decrementRefCount(String hash) {
+        if(refCounts.merge(hash, -1, Integer::sum) <= 0) {
+            refCounts.remove(hash);
+            debounce(gcDebounceId, GC_DEBOUNCE, GC_MAX_DELAY, () ->
+                noThrow(() -> collectGarbage().get(), ex -> log.warn("Garbage collection failed: {}", ex.getMessage())));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // all JVMs should have SHA-256
+        }
+    }
+
+    private static class HashingInputStream extends DigestInputStream {
+        long count;
+
+        HashingInputStream(InputStream in) { super(in, newDigest()); }
+
+        String getHash() { return HexFormat.of().formatHex(getMessageDigest().digest()); }
+
+        @Override public int read() throws IOException {
+            final int b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if(n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class FailingDataStore implements DataStore {
     @Override public     CompletableFuture<Optional<byte[]>>        read(String path)                       { throw fail(); }
     @Override public     CompletableFuture<Boolean>                 write(String path, byte[] data, Instant time)  { throw fail(); }
     @Override public     CompletableFuture<Optional<InputStream>>   readStream(String path) { throw fail(); }
+    @Override public     CompletableFuture<Optional<byte[]>>        read(String path, long offset, int length) { throw fail(); }
+    @Override public     CompletableFuture<Optional<InputStream>>   readStream(String path, long offset) { throw fail(); }
     @Override public     CompletableFuture<Boolean>                 write(String path, InputStream source, Instant time, LongConsumer progress) { throw fail(); }
     @Override public     CompletableFuture<Boolean>                 touch(String path, Instant time) { throw fail(); }
     @Override public     CompletableFuture<List<String>>            listChangedNamesSince(Duration duration) { throw fail(); }
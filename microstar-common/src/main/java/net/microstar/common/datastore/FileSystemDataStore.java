@@ -1,6 +1,8 @@
 package net.microstar.common.datastore;
 
 import lombok.extern.slf4j.Slf4j;
+import net.microstar.common.io.DirectorySizeIndex;
+import net.microstar.common.io.FileHashIndex;
 import net.microstar.common.io.FileTreeChangeDetector;
 import net.microstar.common.io.IOUtils;
 import net.microstar.common.util.StringUtils;
@@ -10,13 +12,29 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.LongConsumer;
 import java.util.stream.Stream;
 
@@ -24,12 +42,21 @@ import static java.util.concurrent.CompletableFuture.completedFuture;
 import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
 import static net.microstar.common.util.ExceptionUtils.noThrow;
 
-/** Data will be stored as files on the file system at given root position */
+/** Data will be stored as files on the file system at given root position.<p>
+  *
+  * Changes made outside this store (e.g. by editing files) are picked up by a file watcher
+  * which is event driven (no polling of the tree). Bursts of changes are batched before the
+  * change listeners are called. Changes made through this store are reported directly and
+  * are ignored by the watcher for a short time so they are not reported twice.
+  */
 @Slf4j
 public class FileSystemDataStore extends AbstractDataStore {
+    private static final Duration CHANGE_BATCH_TIME = Duration.ofMillis(250);
+    private static final Duration OWN_CHANGE_IGNORE_TIME = Duration.ofSeconds(2);
     final Path root;
-    final AtomicReference<Instant> lastKnownTime = new AtomicReference<>(Instant.EPOCH);
     final FileTreeChangeDetector fsDetector;
+    private final FileHashIndex hashIndex;
+    final DirectorySizeIndex sizeIndex = new DirectorySizeIndex();
 
     @SuppressWarnings("this-escape")
     public FileSystemDataStore(Path... roots) {
@@ -44,21 +71,50 @@ public class FileSystemDataStore extends AbstractDataStore {
             log.error(error);
             throw new IllegalArgumentException(error);
         }
-        fsDetector = new FileTreeChangeDetector(this.root, (path, changeType) -> {
-            final Instant fileInstant = toInstant(path);
-            if(Files.isRegularFile(path) && fileInstant.isAfter(lastKnownTime.get())) {
-                lastKnownTime.set(fileInstant);
-                changed(relativePath(path));
-            }
-        }).watch();
+        hashIndex = new FileHashIndex(hashIndexFileFor(root));
+        fsDetector = FileTreeChangeDetector.batched(List.of(this.root), CHANGE_BATCH_TIME, this::handleExternalChanges,
+                ex -> log.warn("Failed to handle file changes in {}: {}", root, ex.getMessage()))
+            .setHashIndex(hashIndex)
+            .watch();
+    }
+
+    private void handleExternalChanges(List<FileTreeChangeDetector.Change> changes) {
+        changes.forEach(change -> sizeIndex.invalidate(change.path()));
+        final List<String> changedPaths = changes.stream()
+            .filter(change -> change.type() != FileTreeChangeDetector.ChangeType.OVERFLOW) // lost changes are found by a rescan of the detector
+            .map(change -> relativePath(change.path()))
+            .distinct()
+            .toList();
+        if(!changedPaths.isEmpty()) changed(changedPaths);
+    }
+
+    /** Changes made by this store are reported by this store, so the watcher should not report them again */
+    private void ignoreOwnChange(Path path) {
+        fsDetector.ignorePath(path, OWN_CHANGE_IGNORE_TIME);
+    }
+
+    /** Content hashes are kept outside the root so they won't show up as data. The file is named
+      * after a digest of the root so different roots won't share (and overwrite) an index.
+      */
+    static Path hashIndexFileFor(Path root) {
+        final String rootName = root.toAbsolutePath().normalize().toString();
+        final MessageDigest digest = noCheckedThrow(() -> MessageDigest.getInstance("SHA-256"));
+        return Path.of(System.getProperty("java.io.tmpdir"), "microstar-fsstore-" + HexFormat.of().formatHex(digest.digest(rootName.getBytes(StandardCharsets.UTF_8))) + ".idx");
+    }
+    /** A temporary root won't be opened again, so its index is of no use after closing */
+    private boolean isTemporaryRoot() {
+        return root.toAbsolutePath().normalize().startsWith(Path.of(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize());
     }
 
     @Override
     public Runnable getCloseRunner() {
         return new Runnable() {
             final FileTreeChangeDetector detector = fsDetector;
+            final FileHashIndex index = hashIndex;
+            final boolean deleteIndex = isTemporaryRoot();
             public void run() {
                 detector.close();
+                if(deleteIndex) index.delete();
                 closed();
             }
         };
@@ -75,7 +131,7 @@ public class FileSystemDataStore extends AbstractDataStore {
                 .stream()
                 .filter(path -> !recursive || !Files.isDirectory(path))
                 .map(path -> {
-                    final long[] sizeAndCount = IOUtils.sizeAndCountOf(path);
+                    final long[] sizeAndCount = sizeIndex.sizeAndCountOf(path);
                     return new Item(
                         restoreIllegalPathCharacters(target.relativize(path).toString()).replace("\\","/") + (Files.isDirectory(path) ? "/" : ""),
                         noCheckedThrow(() -> Files.getLastModifiedTime(path).toInstant()),
@@ -83,7 +139,6 @@ public class FileSystemDataStore extends AbstractDataStore {
                     );
                 })
                 .sorted(ITEM_COMPARATOR)
-                .peek(item -> { if(item.time.isAfter(lastKnownTime.get())) lastKnownTime.set(item.time); })
                 .toList();
         });
     }
@@ -93,6 +148,16 @@ public class FileSystemDataStore extends AbstractDataStore {
         return supplyAsync(() -> noThrow(() -> Files.getLastModifiedTime(resolve(path)).toInstant()));
     }
 
+    @Override
+    public CompletableFuture<Optional<Item>> getItem(String path) {
+        return supplyAsync(() -> noThrow(() -> {
+            final Path file = resolve(path);
+            final Instant time = Files.getLastModifiedTime(file).toInstant(); // throws when not existing
+            final long[] sizeAndCount = sizeIndex.sizeAndCountOf(file);
+            return new Item(normalizePath(path), time, (int)sizeAndCount[1], sizeAndCount[0]);
+        }));
+    }
+
     @Override
     public CompletableFuture<Boolean> exists(String path) {
         return supplyAsync(() -> noThrow(() -> Files.exists(resolve(path))).orElse(false));
@@ -105,7 +170,9 @@ public class FileSystemDataStore extends AbstractDataStore {
             final List<Path> deletedPaths = toRemove.toFile().isDirectory()
                 ? IOUtils.listDeep(toRemove).stream().filter(p->p.toFile().isFile()).toList()
                 : List.of(toRemove);
+            deletedPaths.forEach(this::ignoreOwnChange);
             IOUtils.delTree(toRemove);
+            sizeIndex.invalidate(toRemove);
             deletedPaths.forEach(del -> changed(relativePath(del)));
             return true;
         });
@@ -124,8 +191,11 @@ public class FileSystemDataStore extends AbstractDataStore {
             final List<String> targetPaths = pathFrom.toFile().isDirectory()
                 ? sourcePaths.stream().map(p->IOUtils.concatPath(targetPath, p.substring(sourcePath.length()))).toList()
                 : List.of(targetPath);
-            lastKnownTimeNow();
+            sourcePaths.forEach(p -> ignoreOwnChange(resolve(p)));
+            targetPaths.forEach(p -> ignoreOwnChange(resolve(p)));
             IOUtils.move(pathFrom, pathTo);
+            sizeIndex.invalidate(pathFrom);
+            sizeIndex.invalidate(pathTo);
             changed(sourcePaths, targetPaths);
             return true;
         });
@@ -141,16 +211,51 @@ public class FileSystemDataStore extends AbstractDataStore {
         return completedFuture(noThrow(() -> new FileInputStream(resolve(path).toFile())));
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> read(String path, long offset, int length) {
+        return supplyAsync(() -> noThrow(() -> {
+            try(final FileChannel channel = FileChannel.open(resolve(path), StandardOpenOption.READ)) {
+                final ByteBuffer buffer = ByteBuffer.allocate((int)Math.max(0, Math.min(length, channel.size() - offset)));
+                while(buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) { /*read until full*/ }
+                return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+            }
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> readStream(String path, long offset) {
+        return completedFuture(Optional.of(resolve(path))
+            .filter(Files::isRegularFile)
+            .flatMap(file -> noThrow(() -> Channels.newInputStream(openAt(file, offset)))));
+    }
+    private static FileChannel openAt(Path file, long offset) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return channel.position(offset);
+        } catch(final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<ReadableByteChannel>> readChannel(String path) {
+        return completedFuture(Optional.of(resolve(path))
+            .filter(Files::isRegularFile)
+            .flatMap(file -> noThrow(() -> (ReadableByteChannel)FileChannel.open(file, StandardOpenOption.READ))));
+    }
+
     @Override
     public CompletableFuture<Boolean> write(String path, byte[] data, Instant time) {
         return supplyAsync(() -> {
             final Path targetPath = resolve(path);
             IOUtils.makeSureDirectoryExists(targetPath.getParent());
+            ignoreOwnChange(targetPath);
             final boolean isSuccess = noThrow(() -> Files.write(targetPath, data)).isPresent();
             if(isSuccess) {
+                sizeIndex.invalidate(targetPath);
                 IOUtils.touch(targetPath, time);
                 changed(relativePath(targetPath));
-                lastKnownTimeNow();
             }
             return isSuccess;
         });
@@ -161,6 +266,7 @@ public class FileSystemDataStore extends AbstractDataStore {
         return supplyAsync(() -> {
             final Path targetPath = resolve(path);
             IOUtils.makeSureDirectoryExists(targetPath.getParent());
+            ignoreOwnChange(targetPath);
             try(final InputStream in = source; // copied so it will be auto-closed
                 final OutputStream target = new FileOutputStream(targetPath.toFile())) {
                 progress.accept(IOUtils.copy(in, target, progress));
@@ -168,17 +274,72 @@ public class FileSystemDataStore extends AbstractDataStore {
                 log.error("Unable to write to path '{}': {}", path, e.getMessage());
                 return false;
             }
-            lastKnownTimeNow();
+            sizeIndex.invalidate(targetPath);
             IOUtils.touch(targetPath, time);
             changed(relativePath(targetPath));
             return true;
         });
     }
 
+    @Override
+    public CompletableFuture<Map<String,Optional<byte[]>>> readMany(Collection<String> paths) {
+        return supplyAsync(() -> {
+            final Map<String,Optional<byte[]>> result = new ConcurrentHashMap<>();
+            List.copyOf(new LinkedHashSet<>(paths)).parallelStream()
+                .forEach(path -> result.put(path, noThrow(() -> Files.readAllBytes(resolve(path)))));
+            final Map<String,Optional<byte[]>> ordered = new LinkedHashMap<>();
+            paths.forEach(path -> ordered.put(path, result.get(path)));
+            return ordered;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeMany(Map<String,byte[]> pathToData, Instant time) {
+        return supplyAsync(() -> {
+            final List<String> written = Collections.synchronizedList(new ArrayList<>());
+            final boolean allOk = List.copyOf(pathToData.entrySet()).parallelStream()
+                .map(entry -> {
+                    final Path targetPath = resolve(entry.getKey());
+                    IOUtils.makeSureDirectoryExists(targetPath.getParent());
+                    ignoreOwnChange(targetPath);
+                    final boolean isSuccess = noThrow(() -> Files.write(targetPath, entry.getValue())).isPresent();
+                    if(isSuccess) {
+                        sizeIndex.invalidate(targetPath);
+                        IOUtils.touch(targetPath, time);
+                        written.add(relativePath(targetPath));
+                    }
+                    return isSuccess;
+                })
+                .reduce(true, Boolean::logicalAnd);
+            changed(List.copyOf(written));
+            return allOk;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeMany(Collection<String> paths) {
+        return supplyAsync(() -> {
+            final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+            List.copyOf(new LinkedHashSet<>(paths)).parallelStream().forEach(path -> {
+                final Path toRemove = resolve(path);
+                final List<Path> deletedPaths = toRemove.toFile().isDirectory()
+                    ? IOUtils.listDeep(toRemove).stream().filter(p->p.toFile().isFile()).toList()
+                    : List.of(toRemove);
+                deletedPaths.forEach(this::ignoreOwnChange);
+                IOUtils.delTree(toRemove);
+                sizeIndex.invalidate(toRemove);
+                deletedPaths.forEach(del -> deleted.add(relativePath(del)));
+            });
+            changed(List.copyOf(deleted));
+            return true;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> touch(String path, Instant time) {
         return supplyAsync(() -> {
             final Path toTouch = resolve(path);
+            ignoreOwnChange(toTouch);
             IOUtils.touch(toTouch, time);
             changed(relativePath(toTouch));
             return true;
@@ -222,6 +383,4 @@ public class FileSystemDataStore extends AbstractDataStore {
         }
         return result;
     }
-    private void lastKnownTimeNow() { lastKnownTime.set(Instant.now()); }
-    private Instant toInstant(Path p) { return Instant.ofEpochSecond(p.toFile().lastModified()); }
 }
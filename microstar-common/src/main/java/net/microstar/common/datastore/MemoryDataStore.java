@@ -14,26 +14,32 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 import java.util.function.LongConsumer;
 import java.util.function.Supplier;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.concurrent.CompletableFuture.completedFuture;
 
 /**
  * In-memory data store. Data will be stored in a map and be gone when the vm stops.
- * Typically used for testing. Can be configured with a read and/or write delay.
+ * Typically used for testing. Can be configured with a read and/or write delay.<p>
+ *
+ * Next to the map, items are kept in a tree of directories that keep the aggregated
+ * count, size and time of their contents. Listing, removing and moving a directory
+ * therefore cost the depth of the path plus the size of the result, not a scan of
+ * all items.
  */
 public class MemoryDataStore extends AbstractDataStore {
-    private final Map<String, MapItem> storeMap = new ConcurrentHashMap<>();
+    private final PathTrie storeMap = new PathTrie();
     private final Duration readDelay;
     private final Duration writeDelay;
 
@@ -78,13 +84,7 @@ public class MemoryDataStore extends AbstractDataStore {
     @Override
     public CompletableFuture<List<Item>> list(String path, boolean recursive) {
         final String filterPath = normalizePath(path + "/"); // NOSONAR -- slash
-        return completedFuture(storeMap.values().stream()
-            .filter(item -> item.path.startsWith(filterPath))
-            .map(item -> item.copyForPath(item.path.substring(filterPath.length())))
-            .filter(item -> !item.path.isEmpty())
-            .map(item -> recursive ? item : item.copyForPath(item.path.split("((?<=/))", 2)[0]))
-            .map(Item.class::cast)
-            .collect(joinItemsWithSamePath()).stream()
+        return completedFuture(storeMap.list(filterPath, recursive).stream()
             .sorted(ITEM_COMPARATOR)
             .toList()
         );
@@ -104,8 +104,8 @@ public class MemoryDataStore extends AbstractDataStore {
         final String normalizedPath = normalizePath(path);
         final String withSlash = normalizedPath.replaceFirst("/+$","") + "/";
         return CompletableFuture.completedFuture(
-               storeMap.containsKey(normalizedPath)
-            || storeMap.keySet().stream().anyMatch(key -> key.startsWith(withSlash))
+               storeMap.get(normalizedPath) != null
+            || storeMap.isNonEmptyDir(withSlash)
         );
     }
 
@@ -113,13 +113,11 @@ public class MemoryDataStore extends AbstractDataStore {
     public CompletableFuture<Boolean> remove(String path) {
         final String normPath = normalizePath(path);
         if (isDir(normPath)) {
-            return list(path, true)
-                .thenAccept(items -> items.forEach(item -> {
-                    final String pathToRemove = IOUtils.concatPath(normPath, item.path);
-                    storeMap.remove(pathToRemove);
-                    changed(pathToRemove);
-                }))
-                .thenApply(v -> true);
+            return supplyAsync(() -> {
+                final List<String> removedPaths = storeMap.removeDir(normPath);
+                if(!removedPaths.isEmpty()) changed(removedPaths);
+                return true;
+            });
         } else {
             return supplyAsync(() -> {
                 storeMap.remove(normPath);
@@ -147,8 +145,8 @@ public class MemoryDataStore extends AbstractDataStore {
                     final String oldPathAbs = isFromDir ? IOUtils.concatPath(fromPath, oldItem.path) : fromPath;
                     final String newPathAbs = isFromDir ? IOUtils.concatPath(toPath, oldItem.path) : toPath;
                     final MapItem newItem = ((MapItem) oldItem).copyForPath(newPathAbs);
-                    storeMap.put(newItem.path, newItem);
                     storeMap.remove(oldPathAbs);
+                    storeMap.put(newItem);
                     changed(oldPathAbs);
                     changed(newPathAbs);
                 });
@@ -156,6 +154,13 @@ public class MemoryDataStore extends AbstractDataStore {
             }));
     }
 
+    @Override
+    public CompletableFuture<Optional<Item>> getItem(String path) {
+        final @Nullable MapItem item = storeMap.get(normalizePath(path));
+        return item == null ? DataStore.getItemDefault(this, path) // may be a directory
+                            : completedFuture(Optional.of(new Item(item.path, item.time, item.count, item.size)));
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> read(String path) {
         return supplyAsync(
@@ -164,18 +169,35 @@ public class MemoryDataStore extends AbstractDataStore {
         );
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> read(String path, long offset, int length) {
+        return supplyAsync(
+            () -> Optional.ofNullable(storeMap.get(normalizePath(path)))
+                .filter(item -> item.data != null)
+                .map(item -> Arrays.copyOfRange(item.data, clip(offset, item.data), clip(offset + length, item.data))),
+            readDelay
+        );
+    }
+
     @Override
     public CompletableFuture<Optional<InputStream>> readStream(String path) {
+        return readStream(path, 0);
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> readStream(String path, long offset) {
         return completedFuture(Optional.ofNullable(storeMap.get(normalizePath(path)))
             .filter(item -> item.data != null)
-            .map(item -> new ByteArrayInputStream(item.data)));
+            .map(item -> new ByteArrayInputStream(item.data, clip(offset, item.data), item.data.length)));
     }
 
+    private static int clip(long index, byte[] data) { return (int)Math.max(0, Math.min(index, data.length)); }
+
     @Override
     public CompletableFuture<Boolean> write(String path, byte[] data, Instant time) {
         return supplyAsync(() -> {
             final String targetPath = normalizePath(path);
-            storeMap.put(targetPath, new MapItem(targetPath, time, 1, data.length, data));
+            storeMap.put(new MapItem(targetPath, time, 1, data.length, data));
             changed(targetPath);
             return true;
         }, writeDelay);
@@ -188,7 +210,7 @@ public class MemoryDataStore extends AbstractDataStore {
             try (final InputStream in = source; // copied so it will be auto-closed
                  final ByteArrayOutputStream target = new ByteArrayOutputStream()) {
                 progress.accept(IOUtils.copy(in, target, progress));
-                storeMap.put(targetPath, new MapItem(targetPath, time, 1, target.size(), target.toByteArray()));
+                storeMap.put(new MapItem(targetPath, time, 1, target.size(), target.toByteArray()));
             } catch (final IOException e) {
                 return false;
             }
@@ -202,7 +224,8 @@ public class MemoryDataStore extends AbstractDataStore {
         final String targetPath = normalizePath(path);
         return exists(targetPath).thenComposeAsync(pathExists -> {
             if (pathExists) { // NOSONAR -- boolean
-                storeMap.put(targetPath, storeMap.get(targetPath).copyForTime(time));
+                final @Nullable MapItem item = storeMap.get(targetPath);
+                if(item != null) storeMap.put(item.copyForTime(time)); // else it is a directory
                 return CompletableFuture.completedFuture(true);
             } else {
                 return write(targetPath, "", time);
@@ -213,11 +236,149 @@ public class MemoryDataStore extends AbstractDataStore {
         });
     }
 
-    private Collector<Item, Object, List<Item>> joinItemsWithSamePath() {
-        return Collectors.collectingAndThen(
-            Collectors.toMap(item -> item.path, Function.identity(), Item::join),
-            map -> new ArrayList<>(map.values())
-        );
+    /** All items by path (for lock-free reads of single items) and the same items in a tree of
+      * directories that keep the aggregated count, size and time of their contents. Changes of
+      * the tree are synchronized. The aggregated time is recalculated lazily when the item
+      * that had the latest time was removed or replaced.
+      */
+    private static final class PathTrie {
+        private final Map<String,MapItem> items = new ConcurrentHashMap<>();
+        private final Dir root = new Dir();
+
+        private static final class Dir {
+            final Map<String,Dir> dirs = new HashMap<>();
+            final Map<String,MapItem> files = new HashMap<>();
+            long size;
+            int count;
+            Instant time = Instant.EPOCH;
+            boolean timeIsStale;
+
+            Instant time() {
+                if(timeIsStale) {
+                    time = Stream.concat(files.values().stream().map(item -> item.time), dirs.values().stream().map(Dir::time))
+                        .max(Comparator.naturalOrder())
+                        .orElse(Instant.EPOCH);
+                    timeIsStale = false;
+                }
+                return time;
+            }
+            void added(long addedSize, int addedCount, Instant addedTime) {
+                size += addedSize;
+                count += addedCount;
+                if(addedTime.isAfter(time)) time = addedTime;
+            }
+            void removed(long removedSize, int removedCount, Instant removedTime) {
+                size -= removedSize;
+                count -= removedCount;
+                if(!removedTime.isBefore(time)) timeIsStale = true;
+            }
+        }
+
+        @Nullable MapItem get(String path) { return items.get(path); }
+
+        synchronized void clear() {
+            items.clear();
+            root.dirs.clear();
+            root.files.clear();
+            root.removed(root.size, root.count, root.time);
+        }
+
+        synchronized void put(MapItem item) {
+            final @Nullable MapItem old = items.put(item.path, item);
+            final List<Dir> dirs = Objects.requireNonNull(dirsTo(item.path, /*create=*/true));
+            dirs.get(dirs.size() - 1).files.put(nameOf(item.path), item);
+            for(final Dir dir : dirs) {
+                if(old != null) dir.removed(old.size, 1, old.time);
+                dir.added(item.size, 1, item.time);
+            }
+        }
+
+        synchronized @Nullable MapItem remove(String path) {
+            final @Nullable MapItem old = items.remove(path);
+            final @Nullable List<Dir> dirs = old == null ? null : dirsTo(path, /*create=*/false);
+            if(old == null || dirs == null) return old;
+            dirs.get(dirs.size() - 1).files.remove(nameOf(path));
+            dirs.forEach(dir -> dir.removed(old.size, 1, old.time));
+            pruneEmptyDirs(path, dirs);
+            return old;
+        }
+
+        /** Removes everything below the given directory path (ending with a slash), returns the removed paths */
+        synchronized List<String> removeDir(String dirPath) {
+            final @Nullable List<Dir> dirs = dirsTo(dirPath, /*create=*/false);
+            if(dirs == null) return Collections.emptyList();
+            final Dir dir = dirs.get(dirs.size() - 1);
+            final List<Item> removed = new ArrayList<>();
+            collectFiles(dir, dirPath, removed);
+            removed.forEach(item -> items.remove(item.path));
+
+            final Instant removedTime = dir.time();
+            final long removedSize = dir.size;
+            final int removedCount = dir.count;
+            dir.dirs.clear();
+            dir.files.clear();
+            dirs.forEach(d -> d.removed(removedSize, removedCount, removedTime));
+            pruneEmptyDirs(dirPath, dirs);
+            return removed.stream().map(item -> item.path).toList();
+        }
+
+        /** Items in the given directory path (ending with a slash) with paths relative to that directory */
+        synchronized List<Item> list(String dirPath, boolean recursive) {
+            final @Nullable List<Dir> dirs = dirsTo(dirPath, /*create=*/false);
+            if(dirs == null) return Collections.emptyList();
+            final Dir dir = dirs.get(dirs.size() - 1);
+            final List<Item> result = new ArrayList<>();
+            if(recursive) {
+                collectFiles(dir, "", result);
+            } else {
+                dir.files.forEach((name, item) -> result.add(item.copyForPath(name)));
+                dir.dirs.forEach((name, sub) -> result.add(new Item(name + "/", sub.time(), sub.count, sub.size)));
+            }
+            result.removeIf(item -> item.path.isEmpty());
+            return result;
+        }
+
+        synchronized boolean isNonEmptyDir(String dirPath) {
+            final @Nullable List<Dir> dirs = dirsTo(dirPath, /*create=*/false);
+            return dirs != null && dirs.get(dirs.size() - 1).count > 0;
+        }
+
+        private static void collectFiles(Dir dir, String pathPrefix, List<Item> result) {
+            dir.files.forEach((name, item) -> result.add(item.copyForPath(pathPrefix + name)));
+            dir.dirs.forEach((name, sub) -> collectFiles(sub, pathPrefix + name + "/", result));
+        }
+
+        /** Directories from root to the directory that contains the given path (the directory itself
+          * when the path ends with a slash). Returns null when one does not exist and create is false.
+          */
+        private @Nullable List<Dir> dirsTo(String path, boolean create) {
+            final List<Dir> dirs = new ArrayList<>();
+            dirs.add(root);
+            for(final String name : parentNamesOf(path)) {
+                final Dir parent = dirs.get(dirs.size() - 1);
+                @Nullable Dir dir = parent.dirs.get(name);
+                if(dir == null) {
+                    if(!create) return null;
+                    dir = new Dir();
+                    parent.dirs.put(name, dir);
+                }
+                dirs.add(dir);
+            }
+            return dirs;
+        }
+        private void pruneEmptyDirs(String path, List<Dir> dirs) {
+            final List<String> names = parentNamesOf(path);
+            for(int i = dirs.size() - 1; i > 0; i--) {
+                if(dirs.get(i).count == 0) dirs.get(i - 1).dirs.remove(names.get(i - 1));
+            }
+        }
+        private static List<String> parentNamesOf(String path) {
+            final String[] names = path.replaceFirst("^/+", "").split("/", -1);
+            return Arrays.asList(names).subList(0, names.length - 1);
+        }
+        private static String nameOf(String path) {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
     }
 
     protected static <U> CompletableFuture<U> supplyAsync(Supplier<U> supplier, Duration startupDelay) {
@@ -6,9 +6,12 @@ import lombok.extern.slf4j.Slf4j;
 import net.microstar.common.io.IOUtils;
 import net.microstar.common.util.ThreadUtils;
 import net.microstar.common.util.Threads;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,12 +25,18 @@ import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Locale;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -35,6 +44,7 @@ import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 
 import static net.microstar.common.util.ExceptionUtils.noThrow;
+import static net.microstar.common.util.Utils.sleep;
 
 /**
  * DataStore implementation for an SQL connection.
@@ -45,37 +55,97 @@ import static net.microstar.common.util.ExceptionUtils.noThrow;
  *                                  (this can be convenient if the table is shared between multiple data stores)
  * column:    path VARCHAR(256)  -- for the full path names (no empty directories supported)
  * column:    time TIMESTAMP(3)  -- last modified time
- * column:    data BLOB          -- file contents
+ * column:    data BLOB          -- file contents when stored before chunking, otherwise NULL
+ * column:    size INTEGER       -- size of the file contents
+ * column:  upload VARCHAR(36)   -- id of the chunks that hold the file contents
  *
  * primary key: path  -- used to get specific files
- * indexed key: time  -- used to regularly check for updates by querying for 'time > lastKnownTime'
  * </pre>
  *
- * For the creation SQL, see makeSureTableExists()
+ * File contents are stored in chunks of 1MB in a table named as the first with '_chunks' appended:<pre>
+ *
+ * column: section VARCHAR(32)
+ * column:  upload VARCHAR(36)   -- id of the write these chunks are part of
+ * column:   chunk INTEGER       -- index of the chunk, primary key together with upload
+ * column:    path VARCHAR(256)  -- path the chunks were written for, used to resume a failed write (NULL when released)
+ * column:    time TIMESTAMP(3)  -- time the chunk was written or released, used to prune
+ * column:    data BYTEA         -- chunk contents
+ * </pre>
+ *
+ * Chunks let reads start at any offset without reading what comes before, and a read only
+ * holds a connection while fetching a chunk instead of for the lifetime of the stream.
+ * Full chunks of a write are committed one by one so a write that fails can be resumed
+ * (see getResumableSize() and resumeWrite()). The last chunk is committed together with
+ * the file row, so readers see either the old or the new contents. Chunks of overwritten or
+ * removed contents are released instead of deleted, so streams still reading them can finish.
+ * Released chunks are pruned later.
+ *
+ * Changes are logged in a second table, named as the first with '_changes' appended:<pre>
+ *
+ * column:     seq BIGINT        -- monotonic sequence number (identity), primary key
+ * column: section VARCHAR(32)
+ * column:    path VARCHAR(256)  -- path that changed (written, removed, moved or touched)
+ * column:    time TIMESTAMP(3)  -- time of change, used for pruning old changes
+ * column:  origin VARCHAR(36)   -- id of the store instance that made the change
+ * </pre>
+ *
+ * Every store instance logs its changes in the same transaction as the change itself.
+ * Other instances (typically other services) pick up changes by reading the log from
+ * the last sequence number they know, which is a primary key range scan. Sequence numbers
+ * can be committed out of order, so a number that is skipped is read again until it shows
+ * up or a commit-lag timeout passes (it was rolled back). Without such gaps, a poll when
+ * nothing changed reads no rows. On PostgreSQL
+ * a NOTIFY is sent with every change so listening stores pick up changes immediately.
+ * Reading the log is done periodically as well (for other databases, or to catch up
+ * after the listen connection was lost). Writes that bypass SqlDataStore are not seen.<p>
+ *
+ * For the creation SQL, see makeSureTableExists(). Changes to existing tables (like indexes)
+ * are versioned, see getMigrations(). The SQL of all queries is in the Queries class.
  */
 @Slf4j
 public class SqlDataStore extends AbstractDataStore {
-    private final String jdbcUrl;
+    private static final int BATCH_SIZE = 500;
+    private static final int SEQ_GAP_WINDOW = 1000; // skipped sequence numbers further behind than this are not waited for
+    private static final Duration SEQ_GAP_TIMEOUT = Duration.ofMinutes(1); // a sequence number skipped longer than this was rolled back
+    private static final Duration CHANGE_LOG_RETENTION = Duration.ofDays(1);
+    private static final Duration RELEASED_CHUNKS_RETENTION = Duration.ofMinutes(15);
+    private static final Duration LISTEN_RETRY_DELAY = Duration.ofSeconds(5);
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int[] SELECT_MANY_SIZES = { 1, 10, 100, BATCH_SIZE };
     private final String table;
+    private final String changesTable;
+    private final String chunksTable;
     private final String section;
+    private final boolean isPostgres;
+    private final Queries sql;
+    private final String notifyChannel;
+    private final String instanceId = UUID.randomUUID().toString();
     private final HikariDataSource connectionPool;
-    private final AtomicReference<Instant> lastKnownTime = new AtomicReference<>(Instant.EPOCH);
+    private final AtomicLong lastKnownSeq = new AtomicLong(0);
+    private final NavigableMap<Long,Long> seqGaps = new TreeMap<>(); // skipped seq -> millis when skipped, only used by pollForChanges()
+    private final AtomicReference<Instant> lastPruneTime = new AtomicReference<>(Instant.EPOCH);
     private final Future<Void> periodicUpdateRunner;
 
 
     @SuppressWarnings("this-escape")
     public SqlDataStore(String jdbcUrl, @Nullable String section, @Nullable String table, @Nullable String user, @Nullable String password, int poolSize, Duration pollingTime) {
-        this.jdbcUrl = jdbcUrl;
         final HikariConfig hikariConfig = getHikariConfig(jdbcUrl, user, password, poolSize);
 
         connectionPool = new HikariDataSource( hikariConfig );
 
         this.table = table == null ? "files" : table;
+        this.changesTable = this.table + "_changes";
+        this.chunksTable = this.table + "_chunks";
         this.section = section == null ? "" : section;
+        this.isPostgres = jdbcUrl.contains("postgres");
+        this.notifyChannel = ("microstar_" + this.changesTable).replaceAll("\\W", "_").toLowerCase(Locale.ROOT);
+        this.sql = new Queries();
         makeSureTableExists();
+        migrateSchema();
 
-        Threads.execute(Duration.ofMillis(Math.min(pollingTime.toMillis(), 1000)/2), () -> { if(!connectionPool.isClosed()) lastKnownTime.set(getLastKnownTime()); });
+        lastKnownSeq.set(getLastKnownSeq());
         periodicUpdateRunner = Threads.executePeriodically(pollingTime, /*runFirst=*/false, this::pollForChanges);
+        if(isPostgres) Threads.execute(this::listenForChanges);
     }
 
     private static HikariConfig getHikariConfig(String jdbcUrl, @Nullable String user, @Nullable String password, int poolSize) {
@@ -98,6 +168,16 @@ public class SqlDataStore extends AbstractDataStore {
         config.setIdleTimeout(600_000);
         config.setMaxLifetime(1_800_000);
 
+        // All SQL texts are constant per store (see Queries) so the drivers can reuse parsed statements
+        if(jdbcUrl.contains("postgres")) {
+            config.addDataSourceProperty("prepareThreshold", "2"); // use a server-side prepared statement from the second execution on
+            config.addDataSourceProperty("preparedStatementCacheQueries", "512");
+            config.addDataSourceProperty("preparedStatementCacheSizeMiB", "8");
+        }
+        if(jdbcUrl.contains(":h2:") && !jdbcUrl.toUpperCase(Locale.ROOT).contains("QUERY_CACHE_SIZE")) {
+            config.addDataSourceProperty("URL", jdbcUrl + ";QUERY_CACHE_SIZE=64");
+        }
+
         return config;
     }
 
@@ -134,23 +214,11 @@ public class SqlDataStore extends AbstractDataStore {
     public CompletableFuture<List<Item>> list(String path, boolean recursive) {
         return supplyAsync(() -> {
             final String normalizedPath = addSlash(normalizePath(path)); // NOSONAR -- always ends with one slash
-            final String sqlRecursive =
-                """
-                SELECT SUBSTRING(path, ${normalizedPathLength}+1, LENGTH(path)-${normalizedPathLength}) AS relPath, time, 1, size as len
-                FROM ${table}
-                WHERE path LIKE ?
-                """;
-            final Map<String,Object> vars = Map.of(
-                "sqlRecursive", sqlRecursive,
-                "normalizedPathLength", normalizedPath.length()
-            );
-            final String sql = prepareQuery(recursive
-                    ? "${sqlRecursive}"
-                    : "SELECT DISTINCT COALESCE(NULLIF(LEFT(relPath, POSITION('${delim}' IN relPath)), ''), relPath) as path, MAX(time), COUNT(*), SUM(len) FROM (${sqlRecursive}) AS subq GROUP BY path"
-                , vars);
             try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery(sql, vars))) {
-                statement.setString(1, normalizedPath + "%");
+                 final PreparedStatement statement = connection.prepareStatement(recursive ? sql.listRecursive : sql.list)) {
+                statement.setInt(1, normalizedPath.length() + 1);
+                statement.setString(2, section);
+                setPrefix(statement, 3, normalizedPath);
                 try(final ResultSet results = statement.executeQuery()) {
                     final List<Item> items = new ArrayList<>();
                     while(results.next()) items.add(new Item(results.getString(1),
@@ -171,8 +239,9 @@ public class SqlDataStore extends AbstractDataStore {
         return supplyAsync(() -> {
             final String normalizedPath = normalizePath(path);
             try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery("SELECT time FROM ${table} WHERE path = ?"))) {
-                statement.setString(1, normalizedPath);
+                 final PreparedStatement statement = connection.prepareStatement(sql.selectTime)) {
+                statement.setString(1, section);
+                statement.setString(2, normalizedPath);
                 try(final ResultSet results = statement.executeQuery()) {
                     if(!results.next()) return Optional.empty();
                     final Timestamp timestamp = results.getTimestamp(1);
@@ -185,6 +254,27 @@ public class SqlDataStore extends AbstractDataStore {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<Item>> getItem(String path) {
+        final String normalizedPath = normalizePath(path);
+        return supplyAsync(() -> {
+            try (final Connection connection = getConnection();
+                 final PreparedStatement statement = connection.prepareStatement(sql.selectItem)) {
+                statement.setString(1, section);
+                statement.setString(2, normalizedPath);
+                try(final ResultSet results = statement.executeQuery()) {
+                    if(!results.next()) return Optional.<Item>empty();
+                    return Optional.of(new Item(normalizedPath, results.getTimestamp(1).toInstant(), 1, results.getLong(2)));
+                }
+            } catch (final SQLException e) {
+                log.error("Unable to read item of path \"{}\"", path, e);
+                return Optional.<Item>empty();
+            }
+        }).thenCompose(item -> item.isPresent()
+            ? CompletableFuture.completedFuture(item)
+            : DataStore.getItemDefault(this, normalizedPath)); // may be a directory
+    }
+
     @Override
     public CompletableFuture<Boolean> exists(String path) {
         // Path may be a file (for which there may be a key) or a directory
@@ -192,10 +282,10 @@ public class SqlDataStore extends AbstractDataStore {
         return supplyAsync(() -> {
             final String normalizedPath = normalizePath(path);
             try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery(
-                     "SELECT 1 FROM ${table} WHERE path=? OR path LIKE ? ESCAPE '!'"))) {
-                statement.setString(1, normalizedPath);
-                statement.setString(2, emEscapeLike(normalizedPath) + (normalizedPath.endsWith("/") ? "" : "/") + "%");
+                 final PreparedStatement statement = connection.prepareStatement(sql.exists)) {
+                statement.setString(1, section);
+                statement.setString(2, normalizedPath);
+                setPrefix(statement, 3, addSlash(normalizedPath));
                 try(final ResultSet results = statement.executeQuery()) {
                     return results.isBeforeFirst();
                 }
@@ -211,22 +301,24 @@ public class SqlDataStore extends AbstractDataStore {
         return list(path, true).thenApply(list -> {
             final String normalizedPath = normalizePath(path);
             final boolean pathIsDir = !list.isEmpty() || isDir(normalizedPath);
-            final String fromWhere = prepareQuery(" FROM ${table} WHERE path LIKE ? ESCAPE '!'");
+            final PathCondition paths = new PathCondition(pathIsDir ? addSlash(normalizedPath) : normalizedPath, pathIsDir);
 
             try(final Connection connection = getConnection();
-                final PreparedStatement delRowStatement = connection.prepareStatement("DELETE" + fromWhere)) {
-                final String emPath = emEscapeLike(normalizedPath);
-                final String likePath = (pathIsDir ? addSlash(emPath) : emPath) + "%";
+                final PreparedStatement delRowStatement = connection.prepareStatement(pathIsDir ? sql.deleteBelow : sql.deletePath)) {
 
                 // Delete the blob itself (which is not stored inside the row(s) that will be deleted)
-                deleteBlob(connection, fromWhere, likePath);
+                deleteBlob(connection, paths);
+                releaseChunks(connection, paths);
 
                 // Remove the file row(s) for the given path
-                delRowStatement.setString(1, likePath);
+                paths.set(delRowStatement, 1);
                 delRowStatement.executeUpdate();
 
-                if(pathIsDir) changed(list.stream().map(item -> IOUtils.concatPath(normalizedPath, item.path)).toList());
-                else          changed(normalizedPath);
+                final List<String> removedPaths = pathIsDir
+                    ? list.stream().map(item -> IOUtils.concatPath(normalizedPath, item.path)).toList()
+                    : List.of(normalizedPath);
+                logChanges(connection, removedPaths);
+                changed(removedPaths);
                 return true;
             } catch (final SQLException e) {
                 log.error("Unable to remove {}", path, e);
@@ -241,23 +333,22 @@ public class SqlDataStore extends AbstractDataStore {
             final String fromPath   = normalizePath(fromPath0);
             final boolean isFromDir = !fromList.isEmpty() || isDir(fromPath);
             final String toPath     = normalizePath(isFromDir ? addSlash(toPath0) : toPath0);
-            final String query = isFromDir
-                ? "UPDATE ${table} SET path = REPLACE(path, ?, ?) WHERE path LIKE ? ESCAPE '!'"
-                : "UPDATE ${table} SET path = ? WHERE path = ?";
             try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery(query))) {
+                 final PreparedStatement statement = connection.prepareStatement(isFromDir ? sql.moveBelow : sql.movePath)) {
+                final List<String> movedPaths = new ArrayList<>();
+                statement.setString(1, toPath);
                 if(isFromDir) {
-                    statement.setString(1, fromPath);
-                    statement.setString(2, toPath);
-                    statement.setString(3, emEscapeLike(fromPath) + "%");
-                    changed(fromList.stream().filter(f -> !isDir(f.path)).map(f -> IOUtils.concatPath(fromPath, f.path)).toList(),
-                            fromList.stream().filter(f -> !isDir(f.path)).map(f -> IOUtils.concatPath(toPath, f.path)).toList());
+                    statement.setInt(2, addSlash(fromPath).length() + 1);
+                    new PathCondition(addSlash(fromPath), true).set(statement, 3);
+                    movedPaths.addAll(fromList.stream().filter(f -> !isDir(f.path)).map(f -> IOUtils.concatPath(fromPath, f.path)).toList());
+                    movedPaths.addAll(fromList.stream().filter(f -> !isDir(f.path)).map(f -> IOUtils.concatPath(toPath, f.path)).toList());
                 } else {
-                    statement.setString(1, toPath);
-                    statement.setString(2, fromPath);
-                    changed(fromPath, toPath);
+                    new PathCondition(fromPath, false).set(statement, 2);
+                    movedPaths.addAll(List.of(fromPath, toPath));
                 }
+                changed(movedPaths);
                 statement.executeUpdate();
+                logChanges(connection, movedPaths);
                 return true;
             } catch (final SQLException e) {
                 log.error("Unable to move from {} to {}", fromPath0, toPath0, e);
@@ -279,41 +370,152 @@ public class SqlDataStore extends AbstractDataStore {
             }));
     }
 
+    /** Reads length bytes from given offset (or less when the data is shorter). Only the chunks needed are read. */
+    @Override
+    public CompletableFuture<Optional<byte[]>> read(String path, long offset, int length) {
+        return readStream(path, offset)
+            .thenApply(optStream -> optStream.flatMap(stream -> {
+                try(final InputStream in = stream) {
+                    return Optional.of(in.readNBytes(length));
+                } catch(final IOException e) {
+                    log.error("Unable to read data from path \"{}\"", path, e);
+                    return Optional.empty();
+                }
+            }));
+    }
+
     @Override
     public CompletableFuture<Optional<InputStream>> readStream(String path) {
+        return readStream(path, 0);
+    }
+
+    /** Stream of the data from the given offset. For chunked data, a connection is only used while reading a chunk. */
+    @Override
+    public CompletableFuture<Optional<InputStream>> readStream(String path, long offset) {
         return supplyAsync(() -> {
             final String normalizedPath = normalizePath(path);
-            try {
-                final Connection connection = getConnection();
-                connection.setAutoCommit(false); // autoCommit is not allowed with large objects
+            final @Nullable String upload;
+            final long size;
+            try (final Connection connection = getConnection();
+                 final PreparedStatement statement = connection.prepareStatement(sql.selectUpload)) {
+                statement.setString(1, section);
+                statement.setString(2, normalizedPath);
+                try(final ResultSet results = statement.executeQuery()) {
+                    if(!results.next()) return Optional.empty();
+                    upload = results.getString(1);
+                    size = results.getLong(2);
+                }
+            } catch (final SQLException e) {
+                log.error("Unable to read data from path \"{}\": {}", path, e.getMessage());
+                return Optional.empty();
+            }
+            return upload == null
+                ? readBlobStream(normalizedPath, offset) // stored before chunking was introduced
+                : Optional.of(new ChunkedInputStream(upload, size, offset));
+        });
+    }
 
-                final PreparedStatement statement = connection.prepareStatement(prepareQuery("SELECT data FROM ${table} WHERE path = ?"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-                statement.setString(1, normalizedPath);
-                final ResultSet results = statement.executeQuery();
+    private Optional<InputStream> readBlobStream(String normalizedPath, long offset) {
+        @Nullable Connection connection = null;
+        @Nullable PreparedStatement statement = null;
+        @Nullable ResultSet results = null;
+        try {
+            connection = getConnection();
+            connection.setAutoCommit(false); // autoCommit is not allowed with large objects
 
-                final Runnable closeConnection = () -> {
-                    noThrow(results::close, ex -> log.error("Unable to close the database results set: {}", ex.getMessage()));
-                    noThrow(statement::close, ex -> log.error("Unable to close the database statement: {}", ex.getMessage()));
-                    noThrow(connection::close, ex -> log.error("Unable to close the database connection: {}", ex.getMessage()));
-                };
+            statement = connection.prepareStatement(sql.selectData, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setString(1, section);
+            statement.setString(2, normalizedPath);
+            results = statement.executeQuery();
 
-                if(!results.next()) {
+            final Runnable closeConnection = closerOf(results, statement, connection);
+            final @Nullable Blob blob = results.next() ? results.getBlob(1) : null;
+            if(blob == null) {
+                closeConnection.run();
+                return Optional.empty();
+            }
+
+            final InputStream in = new FilterInputStream(blob.getBinaryStream()) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
                     closeConnection.run();
-                    return Optional.empty();
                 }
+            };
+            in.skipNBytes(Math.min(Math.max(0, offset), blob.length())); // past the end is an empty stream
+            return Optional.of(in);
+        } catch (final SQLException | IOException e) {
+            log.error("Unable to read data from path \"{}\": {}", normalizedPath, e.getMessage());
+            closerOf(results, statement, connection).run();
+            return Optional.empty();
+        }
+    }
+    private static Runnable closerOf(@Nullable ResultSet results, @Nullable PreparedStatement statement, @Nullable Connection connection) {
+        return () -> {
+            if(results    != null) noThrow(results::close,    ex -> log.error("Unable to close the database results set: {}", ex.getMessage()));
+            if(statement  != null) noThrow(statement::close,  ex -> log.error("Unable to close the database statement: {}", ex.getMessage()));
+            if(connection != null) noThrow(connection::close, ex -> log.error("Unable to close the database connection: {}", ex.getMessage()));
+        };
+    }
 
-                return Optional.of(new FilterInputStream(results.getBlob(1).getBinaryStream()) {
-                    @Override
-                    public void close() throws IOException {
-                        super.close();
-                        closeConnection.run();
-                    }
-                });
-            } catch (final SQLException e) {
-                log.error("Unable to read data from path \"{}\": {}", path, e.getMessage());
-                return Optional.empty();
+    /** Reads the chunks of an upload one by one, each using a pooled connection only for the time of the query */
+    private final class ChunkedInputStream extends InputStream {
+        private final String upload;
+        private final long size;
+        private long position;
+        private byte[] chunk = new byte[0];
+        private long chunkIndex = -1;
+
+        ChunkedInputStream(String upload, long size, long offset) {
+            this.upload = upload;
+            this.size = size;
+            this.position = Math.min(Math.max(0, offset), size);
+        }
+
+        @Override public int read() throws IOException {
+            if(position >= size) return -1;
+            loadChunkAtPosition();
+            return chunk[(int)(position++ % CHUNK_SIZE)] & 0xFF;
+        }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(position >= size) return -1;
+            loadChunkAtPosition();
+            final int inChunk = (int)(position % CHUNK_SIZE);
+            final int count = (int)Math.min(Math.min(len, chunk.length - inChunk), size - position);
+            System.arraycopy(chunk, inChunk, b, off, count);
+            position += count;
+            return count;
+        }
+        @Override public long skip(long n) {
+            final long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+        @Override public int available() {
+            return chunkIndex == position / CHUNK_SIZE ? (int)Math.min(chunk.length - position % CHUNK_SIZE, size - position) : 0;
+        }
+
+        private void loadChunkAtPosition() throws IOException {
+            final long index = position / CHUNK_SIZE;
+            if(index == chunkIndex) return;
+            chunk = readChunk(upload, (int)index);
+            chunkIndex = index;
+            if(chunk.length <= position % CHUNK_SIZE) throw new IOException("Missing data in chunk " + index + " of upload " + upload);
+        }
+    }
+    private byte[] readChunk(String upload, int index) throws IOException {
+        try (final Connection connection = getConnection();
+             final PreparedStatement statement = connection.prepareStatement(sql.selectChunk)) {
+            statement.setString(1, upload);
+            statement.setInt(2, index);
+            try(final ResultSet results = statement.executeQuery()) {
+                if(!results.next()) throw new IOException("Missing chunk " + index + " of upload " + upload);
+                return results.getBytes(1);
             }
-        });
+        } catch (final SQLException e) {
+            throw new IOException("Unable to read chunk " + index + " of upload " + upload + ": " + e.getMessage(), e);
+        }
     }
 
     @Override
@@ -323,55 +525,126 @@ public class SqlDataStore extends AbstractDataStore {
 
     @Override
     public CompletableFuture<Boolean> write(String path, InputStream source, Instant time, LongConsumer progress) {
-        final Consumer<Long> throttledProgress = ThreadUtils.throttleLC(progress, Duration.ofSeconds(1)); // NOSONAR -- LongConsumer is not possible here
-        final AtomicLong transferredSize = new AtomicLong(0);
-        final InputStream progressSource = new FilterInputStream(source) {
-            private int transferred(int size) {
-                if(size > 0) transferredSize.getAndAdd(size);
-                throttledProgress.accept(transferredSize.get());
-                return size;
-            }
-            @Override public int read() throws IOException { return transferred(in.read()); }
-            @Override public int read(byte[] b) throws IOException { return transferred(in.read(b, 0, b.length)); }
-            @Override public int read(byte[] b, int off, int len) throws IOException { return transferred(in.read(b, off, len)); }
-        };
+        return supplyAsync(() -> writeChunked(normalizePath(path), source, time, progress, null));
+    }
+
+    /** Number of bytes stored by a write of the given path that did not complete, or 0 if there is no such write */
+    public CompletableFuture<Long> getResumableSize(String path) {
+        return supplyAsync(() -> findPartialUpload(normalizePath(path)).map(partial -> (long)partial.chunkCount * CHUNK_SIZE).orElse(0L));
+    }
+
+    /** Continue a write that did not complete. The source should start at getResumableSize(path) */
+    public CompletableFuture<Boolean> resumeWrite(String path, InputStream source, Instant time, LongConsumer progress) {
         return supplyAsync(() -> {
-            // NOTE: Will overwrite if a file at given path already exists!
             final String normalizedPath = normalizePath(path);
-            try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery(
-                     "INSERT INTO ${table} VALUES(?, ?, ?, ?, ?) " +
-                     (jdbcUrl.contains("postgres") ?
-                         "ON CONFLICT(path) DO UPDATE " +
-                         "SET section=excluded.section, path=excluded.path, time=excluded.time, data=excluded.data, size=excluded.size;"
-                         : ""
-                     )
-                 ))) {
-                connection.setAutoCommit(false); // autocommit is not allowed with blobs
-                statement.setString(1, section);
-                statement.setString(2, normalizedPath);
-                statement.setTimestamp(3, Timestamp.from(time));
-                statement.setBlob(4, progressSource);
-                statement.setInt(5, 0); // unknown at this time
+            return writeChunked(normalizedPath, source, time, progress, findPartialUpload(normalizedPath).orElse(null));
+        });
+    }
+
+    private record PartialUpload(String upload, int chunkCount) {}
+
+    private Optional<PartialUpload> findPartialUpload(String normalizedPath) {
+        try (final Connection connection = getConnection();
+             final PreparedStatement statement = connection.prepareStatement(sql.selectPartialUploads)) {
+            statement.setString(1, section);
+            statement.setString(2, normalizedPath);
+            statement.setString(3, section);
+            statement.setString(4, normalizedPath);
+            try(final ResultSet results = statement.executeQuery()) {
+                return results.next() ? Optional.of(new PartialUpload(results.getString(1), results.getInt(2))) : Optional.empty();
+            }
+        } catch (final SQLException e) {
+            log.error("Unable to find partial write for path \"{}\": {}", normalizedPath, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /** Full chunks are committed one by one (so a failed write can be resumed), the last
+      * chunk is committed together with the file row so the new data becomes visible at once.
+      */
+    private boolean writeChunked(String normalizedPath, InputStream source, Instant time, LongConsumer progress, @Nullable PartialUpload resumeFrom) {
+        final Consumer<Long> throttledProgress = ThreadUtils.throttleLC(progress, Duration.ofSeconds(1)); // NOSONAR -- LongConsumer is not possible here
+        final String upload = resumeFrom == null ? UUID.randomUUID().toString() : resumeFrom.upload;
+        int chunkIndex = resumeFrom == null ? 0 : resumeFrom.chunkCount;
+        long size = (long)chunkIndex * CHUNK_SIZE;
+
+        try(final InputStream in = source) {
+            while(true) {
+                final byte[] data = in.readNBytes(CHUNK_SIZE); // sized to what was read, so small writes don't allocate a full chunk
+                size += data.length;
+                throttledProgress.accept(size);
+                if(data.length < CHUNK_SIZE) {
+                    finishUpload(normalizedPath, upload, chunkIndex, data, size, time);
+                    break;
+                }
+                try (final Connection connection = getConnection()) {
+                    insertChunk(connection, normalizedPath, upload, chunkIndex++, data);
+                }
+            }
+        } catch (final SQLException | IOException e) {
+            log.error("Unable to write data to path \"{}\": {}", normalizedPath, e.getMessage());
+            return false;
+        }
+        progress.accept(size);
+        changed(normalizedPath);
+        return true;
+    }
+    private void finishUpload(String normalizedPath, String upload, int lastChunkIndex, byte[] lastChunk, long size, Instant time) throws SQLException {
+        try (final Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            if(lastChunk.length > 0 || lastChunkIndex == 0) insertChunk(connection, normalizedPath, upload, lastChunkIndex, lastChunk);
+            try (final PreparedStatement statement = connection.prepareStatement(sql.upsertFile)) {
+                setFileRow(statement, normalizedPath, time, size, upload);
+                replaceOldData(connection, List.of(normalizedPath));
                 statement.executeUpdate();
-                connection.commit();
-                noThrow(source::close);
-
-                // After exhausting the source input stream we now know what the data size is
-                try (final PreparedStatement statement2 = connection.prepareStatement(prepareQuery("UPDATE ${table} SET size=? WHERE section=? AND path=?"))) {
-                    statement2.setInt(1, (int) transferredSize.get());
-                    statement2.setString(2, section);
-                    statement2.setString(3, normalizedPath);
-                    statement2.executeUpdate();
-                    connection.commit();
+            }
+            logChanges(connection, List.of(normalizedPath));
+            connection.commit();
+        }
+    }
+    private void insertChunk(Connection connection, String normalizedPath, String upload, int index, byte[] data) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(sql.insertChunk)) {
+            setChunkRow(statement, normalizedPath, upload, index, data, data.length);
+            statement.executeUpdate();
+        }
+    }
+    private void setChunkRow(PreparedStatement statement, String normalizedPath, String upload, int index, byte[] data, int length) throws SQLException {
+        statement.setString(1, section);
+        statement.setString(2, upload);
+        statement.setInt(3, index);
+        statement.setString(4, normalizedPath);
+        statement.setTimestamp(5, Timestamp.from(Instant.now()));
+        statement.setBytes(6, length == data.length ? data : Arrays.copyOf(data, length));
+    }
+    private void setFileRow(PreparedStatement statement, String normalizedPath, Instant time, long size, String upload) throws SQLException {
+        statement.setString(1, section);
+        statement.setString(2, normalizedPath);
+        statement.setTimestamp(3, Timestamp.from(time));
+        statement.setLong(4, size);
+        statement.setString(5, upload);
+    }
+    /** Remove the data (blob) or release the chunks currently stored for the given paths, which are about to be overwritten */
+    private void replaceOldData(Connection connection, List<String> normalizedPaths) throws SQLException {
+        for(final String normalizedPath : normalizedPaths) {
+            if(isPostgres) {
+                try (final PreparedStatement statement = connection.prepareStatement(sql.unlinkPath)) {
+                    new PathCondition(normalizedPath, false).set(statement, 1);
+                    statement.execute();
                 }
-            } catch (final SQLException e) {
-                log.error("Unable to write data to path \"{}\": {}", path, e.getMessage());
-                return false;
             }
-            changed(normalizedPath);
-            return true;
-        });
+            releaseChunks(connection, new PathCondition(normalizedPath, false));
+        }
+    }
+    /** Release the chunks of the uploads referenced by the file rows at the given path(s). The chunks are not
+      * deleted right away because streams that are reading them (chunk by chunk) should be able to finish.
+      * Released chunks are deleted by the prune when RELEASED_CHUNKS_RETENTION has passed.
+      */
+    private void releaseChunks(Connection connection, PathCondition paths) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(paths.below ? sql.releaseChunksBelow : sql.releaseChunksOfPath)) {
+            statement.setTimestamp(1, Timestamp.from(Instant.now()));
+            paths.set(statement, 2);
+            statement.executeUpdate();
+        }
     }
 
 
@@ -382,10 +655,11 @@ public class SqlDataStore extends AbstractDataStore {
             if (pathExists) { // NOSONAR -- boolean
                 boolean success = false;
                 try (final Connection connection = getConnection();
-                     final PreparedStatement statement = connection.prepareStatement(prepareQuery("UPDATE ${table} SET time=? WHERE path=?"))) {
+                     final PreparedStatement statement = connection.prepareStatement(sql.updateTime)) {
                     statement.setTimestamp(1, Timestamp.from(time));
-                    statement.setString(2, targetPath);
+                    new PathCondition(targetPath, false).set(statement, 2);
                     statement.executeUpdate();
+                    logChanges(connection, List.of(targetPath));
                     success = true;
                 } catch (final SQLException e) {
                     log.error("Unable to write data to path \"{}\"", path, e);
@@ -401,65 +675,271 @@ public class SqlDataStore extends AbstractDataStore {
     }
 
 
-    private void deleteBlob(Connection connection, String fromWhere, String likePath) throws SQLException {
+    @Override
+    public CompletableFuture<Map<String,Optional<byte[]>>> readMany(Collection<String> paths) {
+        return supplyAsync(() -> {
+            final Map<String,String> normalizedToGiven = new LinkedHashMap<>();
+            paths.forEach(path -> normalizedToGiven.put(normalizePath(path), path));
+            final List<String> normalizedPaths = List.copyOf(normalizedToGiven.keySet());
+            final Map<String,Optional<byte[]>> result = new LinkedHashMap<>();
+            normalizedToGiven.values().forEach(path -> result.put(path, Optional.empty()));
+
+            try (final Connection connection = getConnection()) {
+                connection.setAutoCommit(false); // autoCommit is not allowed with large objects
+                for(int start = 0; start < normalizedPaths.size(); start += BATCH_SIZE) {
+                    final List<String> chunk = normalizedPaths.subList(start, Math.min(normalizedPaths.size(), start + BATCH_SIZE));
+                    final int inSize = sql.selectManySizeFor(chunk.size());
+                    try (final PreparedStatement statement = connection.prepareStatement(sql.selectMany.get(inSize))) {
+                        statement.setString(1, section);
+                        // Fixed IN-list sizes keep the number of distinct statements small. Unused slots repeat the last path.
+                        for(int i=0; i<inSize; i++) statement.setString(i + 2, chunk.get(Math.min(i, chunk.size() - 1)));
+                        try(final ResultSet results = statement.executeQuery()) {
+                            while(results.next()) {
+                                final @Nullable String upload = results.getString(3);
+                                final @Nullable Blob blob = upload == null ? results.getBlob(2) : null;
+                                result.put(normalizedToGiven.get(results.getString(1)), Optional.of(
+                                    upload != null ? readAllChunks(connection, upload) :
+                                    blob   != null ? blob.getBytes(1, (int)blob.length()) : new byte[0]));
+                            }
+                        }
+                    }
+                }
+                connection.commit();
+                return result;
+            } catch (final SQLException e) {
+                log.error("Unable to read data from {} paths: {}", paths.size(), e.getMessage());
+                return result;
+            }
+        });
+    }
+
+    private byte[] readAllChunks(Connection connection, String upload) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(sql.selectAllChunks)) {
+            statement.setString(1, upload);
+            try(final ResultSet results = statement.executeQuery()) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                while(results.next()) out.writeBytes(results.getBytes(1));
+                return out.toByteArray();
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeMany(Map<String,byte[]> pathToData, Instant time) {
+        return supplyAsync(() -> {
+            final List<String> normalizedPaths = pathToData.keySet().stream().map(this::normalizePath).toList();
+            try (final Connection connection = getConnection();
+                 final PreparedStatement chunkStatement = connection.prepareStatement(sql.insertChunk);
+                 final PreparedStatement fileStatement = connection.prepareStatement(sql.upsertFile)) {
+                connection.setAutoCommit(false); // all or nothing
+                replaceOldData(connection, normalizedPaths);
+                int batchCount = 0;
+                int pathIndex = 0;
+                for(final byte[] data : pathToData.values()) {
+                    final String normalizedPath = normalizedPaths.get(pathIndex++);
+                    final String upload = UUID.randomUUID().toString();
+                    for(int chunkIndex = 0; chunkIndex == 0 || (long)chunkIndex * CHUNK_SIZE < data.length; chunkIndex++) {
+                        final int from = chunkIndex * CHUNK_SIZE;
+                        setChunkRow(chunkStatement, normalizedPath, upload, chunkIndex, Arrays.copyOfRange(data, from, Math.min(data.length, from + CHUNK_SIZE)), Math.min(data.length, from + CHUNK_SIZE) - from);
+                        chunkStatement.addBatch();
+                    }
+                    setFileRow(fileStatement, normalizedPath, time, data.length, upload);
+                    fileStatement.addBatch();
+                    if(++batchCount % BATCH_SIZE == 0) { chunkStatement.executeBatch(); fileStatement.executeBatch(); }
+                }
+                chunkStatement.executeBatch();
+                fileStatement.executeBatch();
+                logChanges(connection, normalizedPaths);
+                connection.commit();
+            } catch (final SQLException e) {
+                log.error("Unable to write data to {} paths: {}", pathToData.size(), e.getMessage());
+                return false;
+            }
+            changed(normalizedPaths);
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeMany(Collection<String> paths) {
+        // Directories can hold any number of files so are removed one by one
+        final List<String> normalizedPaths = paths.stream().map(this::normalizePath).distinct().toList();
+        final List<String> dirPaths = new ArrayList<>(normalizedPaths.stream().filter(this::isDir).toList());
+        final List<String> filePaths = normalizedPaths.stream().filter(path -> !isDir(path)).toList();
+
+        final CompletableFuture<Boolean> filesRemoved = supplyAsync(() -> {
+            if(filePaths.isEmpty()) return true;
+            final List<String> existingPaths = new ArrayList<>();
+            try (final Connection connection = getConnection()) {
+                connection.setAutoCommit(false);
+                // Paths that are not a file may be directories (given without slash) so these are removed as directory
+                try (final PreparedStatement existsStatement = connection.prepareStatement(sql.existsPath)) {
+                    existsStatement.setString(1, section);
+                    for(final String path : filePaths) {
+                        existsStatement.setString(2, path);
+                        try(final ResultSet results = existsStatement.executeQuery()) {
+                            if(results.next()) existingPaths.add(path); else dirPaths.add(path);
+                        }
+                    }
+                }
+                if(isPostgres) {
+                    // Delete the blobs themselves (which are not stored inside the rows that will be deleted)
+                    try (final PreparedStatement unlinkStatement = connection.prepareStatement(sql.unlinkPath)) {
+                        unlinkStatement.setString(1, section);
+                        for(final String path : existingPaths) {
+                            unlinkStatement.setString(2, path);
+                            unlinkStatement.execute();
+                        }
+                    }
+                }
+                for(final String path : existingPaths) releaseChunks(connection, new PathCondition(path, false));
+                try (final PreparedStatement delRowStatement = connection.prepareStatement(sql.deletePath)) {
+                    for(final String path : existingPaths) {
+                        new PathCondition(path, false).set(delRowStatement, 1);
+                        delRowStatement.addBatch();
+                    }
+                    delRowStatement.executeBatch();
+                }
+                logChanges(connection, existingPaths);
+                connection.commit();
+            } catch (final SQLException e) {
+                log.error("Unable to remove {} paths: {}", filePaths.size(), e.getMessage());
+                return false;
+            }
+            changed(existingPaths);
+            return true;
+        });
+        return filesRemoved.thenCompose(filesOk -> {
+            final List<CompletableFuture<Boolean>> dirRemoves = dirPaths.stream().map(this::remove).toList();
+            return CompletableFuture.allOf(dirRemoves.toArray(CompletableFuture[]::new))
+                .thenApply(v -> filesOk && dirRemoves.stream().allMatch(CompletableFuture::join));
+        });
+    }
+
+
+    private void deleteBlob(Connection connection, PathCondition paths) throws SQLException {
         // Delete the BLOB using proprietary PostgresSQL command
-        try(final PreparedStatement delBlobStatement = connection.prepareStatement(prepareQuery("SELECT lo_unlink(data)" + fromWhere))) {
-            delBlobStatement.setString(1, likePath);
+        try(final PreparedStatement delBlobStatement = connection.prepareStatement(paths.below ? sql.unlinkBelow : sql.unlinkPath)) {
+            paths.set(delBlobStatement, 1);
             delBlobStatement.execute();
         } catch(final Exception loUnlinkFailed) {
             // If that failed, set a new, empty blob so the blob won't use any space
             // (setting data to null will not remove the existing blob)
-            try (final PreparedStatement emptyBlobStatement = connection.prepareStatement(prepareQuery("UPDATE ${table} SET data=? WHERE" + fromWhere.split("WHERE", 2)[1]))) {
+            try (final PreparedStatement emptyBlobStatement = connection.prepareStatement(paths.below ? sql.emptyBlobBelow : sql.emptyBlobPath)) {
                 final Blob emptyBlob = connection.createBlob();
                 emptyBlob.setBytes(1, new byte[0]);
                 emptyBlobStatement.setBlob(1, emptyBlob);
-                emptyBlobStatement.setString(2, likePath);
+                paths.set(emptyBlobStatement, 2);
                 emptyBlobStatement.executeUpdate();
             }
         }
     }
 
-    private void pollForChanges() {
-        try {
-            getChangedPathsAndUpdateLastKnownTime().thenAccept(this::changed).get();
-        } catch (final ExecutionException | InterruptedException e) { // NOSONAR -- this is called by a periodic runner -- rethrowing is useless
-            log.error("Error running updateChangedPaths()", e);
+    /** Log changes, in the same transaction as the changes themselves, so other store instances can pick them up */
+    private void logChanges(Connection connection, Collection<String> paths) throws SQLException {
+        if(paths.isEmpty()) return;
+        try (final PreparedStatement statement = connection.prepareStatement(sql.insertChange)) {
+            final Timestamp now = Timestamp.from(Instant.now());
+            for(final String path : paths) {
+                statement.setString(1, section);
+                statement.setString(2, path);
+                statement.setTimestamp(3, now);
+                statement.setString(4, instanceId);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        if(isPostgres) {
+            // Delivered by the database when the transaction commits
+            try (final PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+                statement.setString(1, notifyChannel);
+                statement.setString(2, section);
+                statement.execute();
+            }
         }
     }
-    private Instant getLastKnownTime() {
-        if(connectionPool.isClosed()) return Instant.EPOCH;
+
+    /** Read changes made by other store instances since the last known sequence number and call the change listeners */
+    private synchronized void pollForChanges() {
+        if(connectionPool.isClosed()) return;
         try (final Connection connection = getConnection();
-             final PreparedStatement statement = connection.prepareStatement(prepareQuery("SELECT MAX(time) FROM ${table}"))) {
+             final PreparedStatement statement = connection.prepareStatement(sql.selectChanges)) {
+            statement.setString(1, section);
+            final long now = System.currentTimeMillis();
+            seqGaps.values().removeIf(skippedTime -> now - skippedTime > SEQ_GAP_TIMEOUT.toMillis());
+            statement.setLong(2, seqGaps.isEmpty() ? lastKnownSeq.get() : Math.min(lastKnownSeq.get(), seqGaps.firstKey() - 1));
+            final List<String> changedPaths = new ArrayList<>();
             try(final ResultSet results = statement.executeQuery()) {
-                if(!results.next()) return Instant.now();
-                final @Nullable Timestamp timestamp = results.getTimestamp(1);
-                return timestamp == null ? Instant.now() : timestamp.toInstant();
+                while(results.next()) {
+                    final long seq = results.getLong(1);
+                    final long lastSeq = lastKnownSeq.get();
+                    if(seq > lastSeq) {
+                        for(long skipped = Math.max(lastSeq + 1, seq - SEQ_GAP_WINDOW); skipped < seq; skipped++) seqGaps.put(skipped, now); // not committed yet, or rolled back
+                        lastKnownSeq.set(seq);
+                    } else if(seqGaps.remove(seq) == null) continue; // already seen
+                    if(!instanceId.equals(results.getString(3))) changedPaths.add(results.getString(2)); // own changes were already reported
+                }
             }
+            if(!changedPaths.isEmpty()) changed(changedPaths.stream().distinct().toList());
+            pruneChangeLog(connection);
         } catch (final SQLException e) {
-            log.error("Unable to read last time", e);
-            return Instant.EPOCH;
+            log.error("Unable to get latest changed paths: {}", e.getMessage());
         }
     }
-    private CompletableFuture<List<String>> getChangedPathsAndUpdateLastKnownTime() {
-        return supplyAsync(() -> {
+    private void pruneChangeLog(Connection connection) throws SQLException {
+        final Instant now = Instant.now();
+        if(lastPruneTime.get().isAfter(now.minus(Duration.ofHours(1)))) return;
+        lastPruneTime.set(now);
+        try (final PreparedStatement statement = connection.prepareStatement(sql.pruneChanges)) {
+            statement.setString(1, section);
+            statement.setTimestamp(2, Timestamp.from(now.minus(CHANGE_LOG_RETENTION)));
+            statement.executeUpdate();
+        }
+        // Chunks of writes that never completed (and were not resumed)
+        try (final PreparedStatement statement = connection.prepareStatement(sql.pruneChunks)) {
+            statement.setString(1, section);
+            statement.setTimestamp(2, Timestamp.from(now.minus(CHANGE_LOG_RETENTION)));
+            statement.executeUpdate();
+        }
+        // Chunks of data that was overwritten or removed, when reads of it should have finished
+        try (final PreparedStatement statement = connection.prepareStatement(sql.pruneReleasedChunks)) {
+            statement.setString(1, section);
+            statement.setTimestamp(2, Timestamp.from(now.minus(RELEASED_CHUNKS_RETENTION)));
+            statement.executeUpdate();
+        }
+    }
+    private long getLastKnownSeq() {
+        try (final Connection connection = getConnection();
+             final PreparedStatement statement = connection.prepareStatement(sql.selectMaxSeq)) {
+            try(final ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getLong(1) : 0; // getLong() returns 0 for null
+            }
+        } catch (final SQLException e) {
+            log.error("Unable to read last change sequence number", e);
+            return 0;
+        }
+    }
+
+    /** PostgreSQL only: keep a connection that LISTENs for changes and read the change log when notified.
+      * When the connection is lost, a new one is created after which the change log is read to catch up.
+      */
+    private void listenForChanges() {
+        while(!connectionPool.isClosed()) {
             try (final Connection connection = getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(prepareQuery("SELECT time, path FROM ${table} WHERE time > ?"))) {
-                statement.setTimestamp(1, Timestamp.from(lastKnownTime.get()));
-                try(final ResultSet results = statement.executeQuery()) {
-                    final List<String> list = new ArrayList<>();
-                    while(results.next()) {
-                        final Timestamp timestamp = results.getTimestamp(1);
-                        final Instant instant = timestamp.toInstant();
-                        if(instant.isAfter(lastKnownTime.get())) lastKnownTime.set(instant);
-                        list.add(results.getString(2));
-                    }
-                    return list;
+                 final Statement statement = connection.createStatement()) {
+                final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                statement.execute("LISTEN " + notifyChannel);
+                pollForChanges(); // catch up on changes missed while not listening
+                while(!connectionPool.isClosed()) {
+                    final @Nullable PGNotification[] notifications = pgConnection.getNotifications((int)LISTEN_RETRY_DELAY.toMillis());
+                    if(notifications != null && notifications.length > 0) pollForChanges();
                 }
             } catch (final SQLException e) {
-                log.error("Unable to get latest changes paths", e);
-                return Collections.emptyList();
+                if(connectionPool.isClosed()) return;
+                log.warn("Listening for database changes failed, retrying in {}: {}", LISTEN_RETRY_DELAY, e.getMessage());
+                sleep(LISTEN_RETRY_DELAY);
             }
-        });
+        }
     }
 
 
@@ -480,13 +960,14 @@ public class SqlDataStore extends AbstractDataStore {
         if(!containsTable(table)) {
             try (final Connection connection = getConnection();
                  final Statement statement = connection.createStatement()) {
-                statement.execute(prepareQuery("""
+                statement.execute(expand("""
                     CREATE TABLE IF NOT EXISTS ${table}(
                         section VARCHAR(32),
                         path VARCHAR(256),
                         time TIMESTAMP(3),
                         data BLOB,
                         size INTEGER,
+                        upload VARCHAR(36),
                         PRIMARY KEY (path)
                     )
                 """));
@@ -495,20 +976,171 @@ public class SqlDataStore extends AbstractDataStore {
                 throw new DataStoreException("Unable to create table " + table, e);
             }
         }
+        if(!containsTable(chunksTable)) {
+            try (final Connection connection = getConnection();
+                 final Statement statement = connection.createStatement()) {
+                statement.execute(expand("""
+                    CREATE TABLE IF NOT EXISTS ${chunksTable}(
+                        section VARCHAR(32),
+                        upload VARCHAR(36),
+                        chunk INTEGER,
+                        path VARCHAR(256),
+                        time TIMESTAMP(3),
+                        data BYTEA,
+                        PRIMARY KEY (upload, chunk)
+                    )
+                """));
+            } catch (final SQLException e) {
+                throw new DataStoreException("Unable to create table " + chunksTable, e);
+            }
+        }
+        if(!containsTable(changesTable)) {
+            try (final Connection connection = getConnection();
+                 final Statement statement = connection.createStatement()) {
+                statement.execute(expand("""
+                    CREATE TABLE IF NOT EXISTS ${changesTable}(
+                        seq BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+                        section VARCHAR(32),
+                        path VARCHAR(256),
+                        time TIMESTAMP(3),
+                        origin VARCHAR(36)
+                    )
+                """));
+            } catch (final SQLException e) {
+                throw new DataStoreException("Unable to create table " + changesTable, e);
+            }
+        }
     }
-    private String prepareQuery(String sql) { return prepareQuery(sql, Collections.emptyMap()); }
-    private String prepareQuery(String sql, Map<String,Object> vars) {
-        final AtomicReference<String> result = new AtomicReference<>(sql);
-        vars.forEach((key,val) -> result.set(result.get().replace("${" + key + "}", "" + val)));
-        return result.get()
+
+    /** Schema changes for tables created by older versions. Each migration is idempotent, as multiple
+      * services may migrate at the same time. The index of a migration is the schema version it leads to,
+      * minus one. Never change or remove migrations that were released, only add new ones at the end.
+      */
+    private List<List<String>> getMigrations() {
+        final String pathColumn = isPostgres ? "path COLLATE \"C\"" : "path"; // see ${pathPrefix}
+        return List.of(
+            List.of( // 1: chunked storage
+                "ALTER TABLE ${table} ADD COLUMN IF NOT EXISTS upload VARCHAR(36)"
+            ),
+            List.of( // 2: indexes for section queries, prefix (directory) queries and pruning
+                "CREATE INDEX IF NOT EXISTS " + indexName(table, "section_path") + " ON ${table}(section, " + pathColumn + ")",
+                "CREATE INDEX IF NOT EXISTS " + indexName(table, "section_time") + " ON ${table}(section, time)",
+                "CREATE INDEX IF NOT EXISTS " + indexName(changesTable, "section_seq") + " ON ${changesTable}(section, seq)",
+                "CREATE INDEX IF NOT EXISTS " + indexName(changesTable, "time") + " ON ${changesTable}(time)",
+                "CREATE INDEX IF NOT EXISTS " + indexName(chunksTable, "section_path") + " ON ${chunksTable}(section, path)",
+                "CREATE INDEX IF NOT EXISTS " + indexName(chunksTable, "time") + " ON ${chunksTable}(time)"
+            )
+        );
+    }
+    private void migrateSchema() {
+        final List<List<String>> migrations = getMigrations();
+        try (final Connection connection = getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute(expand("CREATE TABLE IF NOT EXISTS ${table}_schema(version INTEGER)"));
+            int version;
+            try(final ResultSet results = statement.executeQuery(expand("SELECT MAX(version) FROM ${table}_schema"))) {
+                version = results.next() ? results.getInt(1) : 0; // getInt() returns 0 for null
+            }
+            for(; version < migrations.size(); version++) {
+                log.info("Migrating schema of {} to version {}", table, version + 1);
+                for(final String migration : migrations.get(version)) statement.execute(expand(migration));
+                statement.execute(expand("INSERT INTO ${table}_schema(version) VALUES(" + (version + 1) + ")"));
+            }
+        } catch (final SQLException e) {
+            throw new DataStoreException("Unable to migrate schema of table " + table, e);
+        }
+    }
+    private String indexName(String tableName, String suffix) {
+        // PostgreSQL creates the index in the schema of the table and does not accept a schema in the name
+        return (isPostgres ? tableName.replaceAll("^.*\\.", "") : tableName) + "_" + suffix;
+    }
+
+    /** All SQL used by this store, expanded once so every statement has a constant text which lets the
+      * drivers cache the parsed statements (and the database its plans). The section is a parameter
+      * (bound to "" when there is no section, which matches everything) placed directly after the
+      * WHERE so it is always the first parameter after any SET values.
+      */
+    private final class Queries {
+        private static final String LIST_RECURSIVE = "SELECT SUBSTRING(path, ?) AS relPath, time, 1, size AS len FROM ${table} WHERE ${section} AND ${pathPrefix}";
+        final String listRecursive        = expand(LIST_RECURSIVE);
+        final String list                 = expand("SELECT DISTINCT COALESCE(NULLIF(LEFT(relPath, POSITION('${delim}' IN relPath)), ''), relPath) as path, MAX(time), COUNT(*), SUM(len) FROM (" + LIST_RECURSIVE + ") AS subq GROUP BY path");
+        final String selectTime           = expand("SELECT time FROM ${table} WHERE ${section} AND path = ?");
+        final String exists               = expand("SELECT 1 FROM ${table} WHERE ${section} AND (path = ? OR (${pathPrefix})) LIMIT 1");
+        final String existsPath           = expand("SELECT 1 FROM ${table} WHERE ${section} AND path = ?");
+        final String selectItem           = expand("SELECT time, size FROM ${table} WHERE ${section} AND path = ?");
+        final String selectUpload         = expand("SELECT upload, size FROM ${table} WHERE ${section} AND path = ?");
+        final String selectData           = expand("SELECT data FROM ${table} WHERE ${section} AND path = ?");
+        final Map<Integer,String> selectMany = new LinkedHashMap<>();
+        final String selectChunk          = expand("SELECT data FROM ${chunksTable} WHERE upload = ? AND chunk = ?");
+        final String selectAllChunks      = expand("SELECT data FROM ${chunksTable} WHERE upload = ? ORDER BY chunk");
+        final String selectPartialUploads = expand("SELECT upload, COUNT(*) AS chunkCount FROM ${chunksTable} WHERE ${section} AND path = ? " +
+                                                   "AND upload NOT IN (SELECT upload FROM ${table} WHERE ${section} AND path = ? AND upload IS NOT NULL) " +
+                                                   "GROUP BY upload ORDER BY chunkCount DESC");
+        final String insertChunk          = expand("INSERT INTO ${chunksTable}(section, upload, chunk, path, time, data) VALUES(?, ?, ?, ?, ?, ?)");
+        final String upsertFile           = expand(isPostgres
+            ? "INSERT INTO ${table}(section, path, time, data, size, upload) VALUES(?, ?, ?, NULL, ?, ?) " +
+              "ON CONFLICT(path) DO UPDATE " +
+              "SET section=excluded.section, time=excluded.time, data=NULL, size=excluded.size, upload=excluded.upload"
+            : "MERGE INTO ${table}(section, path, time, data, size, upload) KEY(path) VALUES(?, ?, ?, NULL, ?, ?)");
+        final String updateTime           = expand("UPDATE ${table} SET time = ? WHERE ${section} AND path = ?");
+        final String movePath             = expand("UPDATE ${table} SET path = ? WHERE ${section} AND path = ?");
+        final String moveBelow            = expand("UPDATE ${table} SET path = CONCAT(?, SUBSTRING(path, ?)) WHERE ${section} AND ${pathPrefix}");
+        final String deletePath           = expand("DELETE FROM ${table} WHERE ${section} AND path = ?");
+        final String deleteBelow          = expand("DELETE FROM ${table} WHERE ${section} AND ${pathPrefix}");
+        final String unlinkPath           = expand("SELECT lo_unlink(data) FROM ${table} WHERE ${section} AND path = ? AND data IS NOT NULL");
+        final String unlinkBelow          = expand("SELECT lo_unlink(data) FROM ${table} WHERE ${section} AND ${pathPrefix} AND data IS NOT NULL");
+        final String emptyBlobPath        = expand("UPDATE ${table} SET data = ? WHERE ${section} AND path = ?");
+        final String emptyBlobBelow       = expand("UPDATE ${table} SET data = ? WHERE ${section} AND ${pathPrefix}");
+        final String releaseChunksOfPath  = expand("UPDATE ${chunksTable} SET path = NULL, time = ? WHERE upload IN (SELECT upload FROM ${table} WHERE ${section} AND path = ? AND upload IS NOT NULL)");
+        final String releaseChunksBelow   = expand("UPDATE ${chunksTable} SET path = NULL, time = ? WHERE upload IN (SELECT upload FROM ${table} WHERE ${section} AND ${pathPrefix} AND upload IS NOT NULL)");
+        final String insertChange         = expand("INSERT INTO ${changesTable}(section, path, time, origin) VALUES(?, ?, ?, ?)");
+        final String selectChanges        = expand("SELECT seq, path, origin FROM ${changesTable} WHERE ${section} AND seq > ? ORDER BY seq");
+        final String selectMaxSeq         = expand("SELECT MAX(seq) FROM ${changesTable}");
+        final String pruneChanges         = expand("DELETE FROM ${changesTable} WHERE ${section} AND time < ?");
+        final String pruneChunks          = expand("DELETE FROM ${chunksTable} WHERE ${section} AND time < ? AND upload NOT IN (SELECT upload FROM ${table} WHERE upload IS NOT NULL)");
+        final String pruneReleasedChunks  = expand("DELETE FROM ${chunksTable} WHERE ${section} AND path IS NULL AND time < ? AND upload NOT IN (SELECT upload FROM ${table} WHERE upload IS NOT NULL)");
+
+        Queries() {
+            for(final int size : SELECT_MANY_SIZES) {
+                selectMany.put(size, expand("SELECT path, data, upload FROM ${table} WHERE ${section} AND path IN (" + String.join(",", Collections.nCopies(size, "?")) + ")"));
+            }
+        }
+        int selectManySizeFor(int count) {
+            for(final int size : SELECT_MANY_SIZES) if(size >= count) return size;
+            throw new IllegalArgumentException("More than " + BATCH_SIZE + " paths");
+        }
+    }
+
+    private String expand(String sqlTemplate) {
+        return sqlTemplate
+            .replace("${changesTable}", changesTable)
+            .replace("${chunksTable}", chunksTable)
             .replace("${table}", table)
             .replace("${delim}", "/")
+            .replace("${section}", section.isEmpty() ? "? = ''" : "section = ?")
+            // A range instead of LIKE so a plain index on path can be used, also when the path is a parameter.
+            // PostgreSQL compares using the collation of the database which may ignore punctuation like '/'.
+            .replace("${pathPrefix}", isPostgres ? "path COLLATE \"C\" >= ? AND path COLLATE \"C\" < ?" : "path >= ? AND path < ?")
             .replace("\n", " ")
-            .replace(" WHERE ", section.isEmpty() ? " WHERE " : " WHERE section='" + section + "' AND ")
             ;
     }
-    private String emEscapeLike(String textToLike) {
-        return textToLike.replaceAll("([!%\\[])", "!$1");
+
+    /** Parameters for a condition on a single path or on all paths below a directory (prefix ending with a slash) */
+    private final class PathCondition {
+        final String path;
+        final boolean below;
+        PathCondition(String path, boolean below) { this.path = path; this.below = below; }
+
+        /** Sets the section and path parameters, starting at the given index */
+        void set(PreparedStatement statement, int index) throws SQLException {
+            statement.setString(index, section);
+            if(below) setPrefix(statement, index + 1, path); else statement.setString(index + 1, path);
+        }
+    }
+    private static void setPrefix(PreparedStatement statement, int index, String prefix) throws SQLException {
+        // All strings that start with the prefix are >= the prefix and < the prefix with its last character incremented
+        statement.setString(index, prefix);
+        statement.setString(index + 1, prefix.substring(0, prefix.length() - 1) + (char)(prefix.charAt(prefix.length() - 1) + 1));
     }
     private String addSlash(String path) {
         return path.replaceAll("/+$", "") + "/";
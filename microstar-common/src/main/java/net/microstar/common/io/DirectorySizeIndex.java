@@ -0,0 +1,96 @@
+package net.microstar.common.io;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Cache of the aggregated size and file count of directories, so that getting the size of
+  * a directory is O(children) instead of O(subtree) once known. Aggregates are calculated
+  * lazily and in parallel. The owner should invalidate every path that is written, removed
+  * or moved, which also invalidates the aggregates of all parent directories of that path.<p>
+  *
+  * Directories are sorted by path so invalidating what is below a directory is a range
+  * removal. The number of directories is bounded: when full, the least recently used
+  * quarter of the directories is evicted.
+  */
+public class DirectorySizeIndex {
+    private static final int DEFAULT_MAX_COUNT = 100_000;
+    private final int maxCount;
+    private final NavigableMap<String,SizeAndCount> sizeAndCounts = new ConcurrentSkipListMap<>(); // absolute path -> size and count
+    private final AtomicLong generation = new AtomicLong(); // increases on every invalidation
+    private final AtomicLong useCounter = new AtomicLong(); // for least recently used eviction
+
+    private static final class SizeAndCount {
+        final long size;
+        final long count;
+        volatile long lastUsed;
+        SizeAndCount(long size, long count, long lastUsed) { this.size = size; this.count = count; this.lastUsed = lastUsed; }
+    }
+
+    public DirectorySizeIndex() { this(DEFAULT_MAX_COUNT); }
+    public DirectorySizeIndex(int maxCount) { this.maxCount = maxCount; }
+
+    /** Returns { size, count } of the given file (count 1) or directory (count of files in the subtree) */
+    public long[] sizeAndCountOf(Path path) {
+        if(!Files.isDirectory(path)) return IOUtils.sizeAndCountOf(path);
+        final String key = keyOf(path);
+        final @Nullable SizeAndCount known = sizeAndCounts.get(key);
+        if(known != null) {
+            known.lastUsed = useCounter.incrementAndGet();
+            return new long[] { known.size, known.count };
+        }
+
+        final long startGeneration = generation.get();
+        final long[] result = IOUtils.list(path).parallelStream()
+            .filter(child -> !IOUtils.isLinkToAncestor(path, child))
+            .map(this::sizeAndCountOf) // subdirectories are cached as well
+            .reduce(new long[] { 0, 0 }, (a, b) -> new long[] { a[0] + b[0], a[1] + b[1] });
+
+        // Don't store when something was invalidated while calculating as the result may include stale values
+        if(generation.get() == startGeneration) {
+            if(sizeAndCounts.size() >= maxCount) evictLeastRecentlyUsed();
+            sizeAndCounts.put(key, new SizeAndCount(result[0], result[1], useCounter.incrementAndGet()));
+        }
+        return result;
+    }
+
+    /** Call this when the given file or directory was written, removed or moved */
+    public void invalidate(Path path) {
+        generation.incrementAndGet();
+        final String key = keyOf(path);
+        final String dirKey = key.endsWith(File.separator) ? key : key + File.separator;
+        sizeAndCounts.remove(key);
+        sizeAndCounts.subMap(dirKey, dirKey + Character.MAX_VALUE).clear(); // when a directory, everything below
+        for(Path parent = Path.of(key).getParent(); parent != null; parent = parent.getParent()) sizeAndCounts.remove(parent.toString());
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        sizeAndCounts.clear();
+    }
+
+    public int size() {
+        return sizeAndCounts.size();
+    }
+
+    /** Evicting doesn't make remaining aggregates stale, so this is not an invalidation */
+    private synchronized void evictLeastRecentlyUsed() {
+        if(sizeAndCounts.size() < maxCount) return; // evicted by another thread
+        sizeAndCounts.entrySet().stream()
+            .sorted(Comparator.comparingLong(entry -> entry.getValue().lastUsed))
+            .limit(Math.max(1, maxCount / 4))
+            .map(Map.Entry::getKey)
+            .toList()
+            .forEach(sizeAndCounts::remove);
+    }
+
+    private static String keyOf(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,201 @@
+package net.microstar.common.io;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32C;
+
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+import static net.microstar.common.util.ThreadUtils.cancelDebounce;
+import static net.microstar.common.util.ThreadUtils.debounce;
+
+/** Index of key (typically a path) to hash of the contents, validated by size and
+  * last-modified time, so the hash of an unchanged file never has to be calculated
+  * twice. When an index file is given, the index is loaded from there and written
+  * back (debounced) when changed, so it survives restarts.<p>
+  *
+  * A size or time mismatch means the entry is stale. That is not a content check
+  * but the same trade-off build tools make: a file that changes without its size
+  * or time changing is not detected.
+  */
+@Slf4j
+public class FileHashIndex {
+    private static final int FORMAT_VERSION = 1;
+    private static final Duration SAVE_DEBOUNCE = Duration.ofSeconds(2);
+    private static final Duration SAVE_MAX_DELAY = Duration.ofSeconds(30);
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    public static final long UNKNOWN_HASH = Long.MIN_VALUE;
+    private final Optional<Path> indexFile;
+    private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private volatile boolean deleted = false;
+
+    public record Entry(long size, long lastModified, long hash) {
+        public boolean matches(long otherSize, long otherLastModified) {
+            return size == otherSize && lastModified == otherLastModified;
+        }
+    }
+
+    /** In-memory only index */
+    public FileHashIndex() { this(null); }
+
+    /** Index that is loaded from and saved to the given file (or in-memory only if null) */
+    public FileHashIndex(@Nullable Path indexFile) {
+        this.indexFile = Optional.ofNullable(indexFile);
+        this.indexFile.ifPresent(this::load);
+    }
+
+    public int size() { return entries.size(); }
+    public Set<String> keys() { return entries.keySet(); }
+    public Optional<Entry> get(String key) { return Optional.ofNullable(entries.get(key)); }
+
+    /** Returns the hash for key if the entry matches the given size and time */
+    public OptionalLong get(String key, long size, long lastModified) {
+        final @Nullable Entry entry = entries.get(key);
+        return entry != null && entry.matches(size, lastModified) ? OptionalLong.of(entry.hash) : OptionalLong.empty();
+    }
+
+    /** Returns the indexed hash of file if its size and time didn't change, otherwise the hasher is called and the result is indexed */
+    public long getOrCompute(Path file, ToLongFunction<Path> hasher) {
+        return getOrCompute(file.toAbsolutePath().toString(), file, hasher);
+    }
+    public long getOrCompute(String key, Path file, ToLongFunction<Path> hasher) {
+        final Optional<BasicFileAttributes> attributes = attributesOf(file);
+        if(attributes.isEmpty()) return hasher.applyAsLong(file); // not indexable, e.g. because it doesn't exist
+        final long size = attributes.get().size();
+        final long lastModified = attributes.get().lastModifiedTime().toMillis();
+        final OptionalLong known = get(key, size, lastModified);
+        if(known.isPresent()) return known.getAsLong();
+
+        final long hash = hasher.applyAsLong(file);
+        put(key, size, lastModified, hash);
+        return hash;
+    }
+
+    /** Indexes size and time of the file with an unknown hash, for a file whose change is known
+      * without hashing. The file is hashed again when its size or time changes.
+      */
+    public void putUnhashed(String key, Path file) {
+        attributesOf(file).ifPresent(attributes -> put(key, attributes.size(), attributes.lastModifiedTime().toMillis(), UNKNOWN_HASH));
+    }
+    public void put(String key, long size, long lastModified, long hash) {
+        final @Nullable Entry old = entries.put(key, new Entry(size, lastModified, hash));
+        if(old == null || old.hash != hash || !old.matches(size, lastModified)) changed();
+    }
+    public void remove(String key) {
+        if(entries.remove(key) != null) changed();
+    }
+    /** Removes all entries for which the key does not pass the filter, e.g. paths that no longer exist */
+    public void retainIf(Predicate<String> keyFilter) {
+        if(entries.keySet().removeIf(keyFilter.negate())) changed();
+    }
+    public void clear() {
+        if(!entries.isEmpty()) { entries.clear(); changed(); }
+    }
+
+    /** Write the index to file now, if it changed since last write */
+    public synchronized void save() {
+        if(indexFile.isEmpty() || deleted || !dirty.getAndSet(false)) return;
+        final Path file = indexFile.get();
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            IOUtils.makeSureDirectoryExists(file.toAbsolutePath().getParent());
+            try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size()); // only a hint as entries may change while writing
+                for(final Map.Entry<String,Entry> mapEntry : entries.entrySet()) {
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(mapEntry.getValue().size);
+                    out.writeLong(mapEntry.getValue().lastModified);
+                    out.writeLong(mapEntry.getValue().hash);
+                }
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(final IOException e) {
+            log.warn("Unable to write hash index {}: {}", file, e.getMessage());
+            dirty.set(true);
+        }
+    }
+
+    /** Deletes the index file and stops writing to it, e.g. when the index is no longer used. Entries are kept in memory */
+    public synchronized void delete() {
+        deleted = true;
+        indexFile.ifPresent(file -> {
+            cancelDebounce("FileHashIndex:" + file.toAbsolutePath());
+            noThrow(() -> Files.deleteIfExists(file));
+        });
+    }
+
+    private void changed() {
+        if(deleted) return;
+        dirty.set(true);
+        indexFile.ifPresent(file -> debounce("FileHashIndex:" + file.toAbsolutePath(), SAVE_DEBOUNCE, SAVE_MAX_DELAY, this::save));
+    }
+
+    private void load(Path file) {
+        if(!Files.exists(file)) return;
+        try(final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != FORMAT_VERSION) return; // unknown format: start fresh
+            in.readInt(); // count hint
+            while(true) { // NOSONAR -- ends at EOF
+                final String key = in.readUTF();
+                entries.put(key, new Entry(in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch(final EOFException endOfIndex) {
+            // all read
+        } catch(final IOException e) {
+            log.warn("Unable to read hash index {} -- starting with empty index: {}", file, e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /** Fast non-cryptographic hash of the contents of the given file (CRC32C, which is hardware accelerated, combined with size) */
+    public static long contentHashOf(Path file) {
+        try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final CRC32C crc = new CRC32C();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            long size = 0;
+            int count;
+            while((count = channel.read(buffer)) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+                size += count;
+            }
+            return (size << 32) ^ crc.getValue();
+        } catch(final IOException e) {
+            return 0;
+        }
+    }
+
+    private static Optional<BasicFileAttributes> attributesOf(Path file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? Optional.of(attributes) : Optional.empty();
+        } catch(final IOException e) {
+            return Optional.empty();
+        }
+    }
+}
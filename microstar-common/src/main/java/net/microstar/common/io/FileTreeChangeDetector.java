@@ -3,6 +3,7 @@ package net.microstar.common.io;
 import io.methvin.watcher.DirectoryChangeEvent;
 import io.methvin.watcher.DirectoryWatcher;
 import lombok.RequiredArgsConstructor;
+import net.microstar.common.util.Threads;
 import org.slf4j.helpers.NOPLogger;
 
 import javax.annotation.Nullable;
@@ -12,9 +13,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -24,12 +29,28 @@ import static net.microstar.common.util.Utils.sleep;
 
 /** Recursively watch files and directories for changes.
   * Note that the close() method needs to be called after a watch() was done or
-  * instances will keep going even if no longer referenced.
+  * instances will keep going even if no longer referenced.<p>
+  *
+  * When a {@link FileHashIndex} is set, file contents are hashed so that a touch
+  * (e.g. a modified time change without a content change) is not reported. Hashing
+  * is done off the watcher thread so changed files are hashed in parallel. As the
+  * index can be persisted, it is reconciled when watching starts, reporting changes
+  * that happened while not watching and only re-hashing files that changed size or time.
+  * The same is done when the OS reports an overflow (events were lost), limited to the
+  * directory the overflow was reported for, so lost events are reported as well.
   */
 public class FileTreeChangeDetector {
     private static final Duration MODIFIED_DEBOUNCE_DURATION = Duration.ofMillis(2000);
+    private static final Duration OVERFLOW_RESCAN_DEBOUNCE = Duration.ofMillis(500);
+    private static final Duration OVERFLOW_RESCAN_MAX_DELAY = Duration.ofSeconds(5);
+    private final String id = UUID.randomUUID().toString();
+    private final Set<Path> overflowDirs = ConcurrentHashMap.newKeySet();
     private static final Cleaner cleaner = Cleaner.create();
     private final State state;
+    private final List<Path> dirs;
+    private final BiConsumer<Path,ChangeType> changeHandler;
+    private final Consumer<Exception> exceptionHandler;
+    private @Nullable FileHashIndex hashIndex;
     private boolean ignoreAll = false;
     private long ignoreAllTime = 0L;
     private boolean onlyFiles = true;
@@ -54,6 +75,7 @@ public class FileTreeChangeDetector {
     public enum ChangeType {
         CREATED, MODIFIED, DELETED, OVERFLOW
     }
+    public record Change(Path path, ChangeType type) {}
 
     public FileTreeChangeDetector(Path dirToWatch, BiConsumer<Path,ChangeType> changeHandler) {
         this(Collections.singletonList(dirToWatch), changeHandler);
@@ -66,22 +88,24 @@ public class FileTreeChangeDetector {
     }
     @SuppressWarnings("this-escape")
     public FileTreeChangeDetector(List<Path> dirsToWatch, BiConsumer<Path,ChangeType> changeHandler, Consumer<Exception> exceptionHandler) {
-        final List<Path> dirs = dirsToWatch.stream()
+        dirs = dirsToWatch.stream()
             .filter(Objects::nonNull)
             .peek(dir -> { if(!dir.toFile().exists()) throw new IllegalArgumentException("Cannot watch non-existing directory " + dir); })
             .toList();
         if (dirs.isEmpty()) throw new IllegalArgumentException("No dirs to watch");
+        this.changeHandler = changeHandler;
+        this.exceptionHandler = exceptionHandler;
         try {
             state = new State(DirectoryWatcher.builder()
                 .paths(dirs)
                 .listener(event -> {
                     if((ignoreAll && event.path().toFile().lastModified() > ignoreAllTime) // ignore events from before settings the ignoreAll flag
-                        || (onlyFiles && Files.isDirectory(event.path()))
-                        || isIgnored(event.path(), event.eventType())
-                        || !isHashChanged(event)) return;
+                        || (onlyFiles && Files.isDirectory(event.path()))) return;
+                    if(isIgnored(event.path(), event.eventType())) { indexWithoutHashing(event.path()); return; }
+                    if(!isHashChanged(event)) return;
 
                     try {
-                        handleRawEvent(changeHandler, event);
+                        handleRawEvent(event);
                     } catch(final Exception e) {
                         exceptionHandler.accept(e);
                     }
@@ -96,12 +120,46 @@ public class FileTreeChangeDetector {
         }
     }
 
-    private void handleRawEvent(BiConsumer<Path,ChangeType> changeHandler, io.methvin.watcher.DirectoryChangeEvent event) {
+    /** Creates a detector that collects changes and calls the batchHandler with all changes that occurred
+      * until no more changes came in for batchTime (or 10x batchTime passed, when changes keep coming in).
+      * Multiple changes on the same path are combined into one.
+      */
+    public static FileTreeChangeDetector batched(List<Path> dirsToWatch, Duration batchTime, Consumer<List<Change>> batchHandler, Consumer<Exception> exceptionHandler) {
+        final Map<Path,ChangeType> pending = new LinkedHashMap<>();
+        final String debounceId = "FileTreeChangeDetector.batch:" + UUID.randomUUID();
+        final Runnable flush = () -> {
+            final List<Change> changes;
+            synchronized(pending) {
+                changes = pending.entrySet().stream().map(e -> new Change(e.getKey(), e.getValue())).toList();
+                pending.clear();
+            }
+            if(changes.isEmpty()) return;
+            try {
+                batchHandler.accept(changes);
+            } catch(final Exception e) {
+                exceptionHandler.accept(e);
+            }
+        };
+        return new FileTreeChangeDetector(dirsToWatch, (path, type) -> {
+            synchronized(pending) {
+                final @Nullable ChangeType old = pending.get(path);
+                if(old == ChangeType.CREATED && type == ChangeType.MODIFIED) return; // still a new file
+                if(old == ChangeType.CREATED && type == ChangeType.DELETED) pending.remove(path); // never existed as far as the handler knows
+                else pending.put(path, type);
+            }
+            debounce(debounceId, batchTime, batchTime.multipliedBy(10), flush);
+        }, exceptionHandler);
+    }
+
+    private void handleRawEvent(io.methvin.watcher.DirectoryChangeEvent event) {
         final Path path = event.path();
         final Consumer<ChangeType> call = evt -> changeHandler.accept(path, evt);
 
         switch(event.eventType()) {
-            case CREATE   -> call.accept(ChangeType.CREATED);
+            case CREATE   -> {
+                call.accept(ChangeType.CREATED);
+                if(hashIndex != null && Files.isRegularFile(path)) Threads.execute(() -> isContentChanged(path));
+            }
             case MODIFY   -> {
                 // A single 'this file has modified' event is not particularly useful if the modifying
                 // hasn't finished yet. However, we won't get a 'modification has finished' event. As
@@ -114,16 +172,41 @@ public class FileTreeChangeDetector {
                 // by locking the file which may prevent the other side from writing (tested and that happens)
                 // and often the file is not locked between writes anyway)
                 if(Files.isDirectory(path)) call.accept(ChangeType.MODIFIED);
-                else debounce("MODIFIED:" + path , MODIFIED_DEBOUNCE_DURATION,
-                        () -> { if(path.toFile().exists()) call.accept(ChangeType.MODIFIED); });
+                else debounce("MODIFIED:" + path , MODIFIED_DEBOUNCE_DURATION, () -> {
+                    if(!path.toFile().exists()) return;
+                    if(hashIndex == null) call.accept(ChangeType.MODIFIED);
+                    else Threads.execute(() -> { if(isContentChanged(path)) call.accept(ChangeType.MODIFIED); }); // hashing not on the timer thread
+                });
+            }
+            case DELETE   -> {
+                if(hashIndex != null) hashIndex.remove(keyOf(path));
+                call.accept(ChangeType.DELETED);
+            }
+            case OVERFLOW -> {
+                // Events were lost. With a hash index the lost changes can be found by a rescan, which
+                // is debounced as overflows come in bursts and hashes only files that changed size or time.
+                if(hashIndex != null) {
+                    if(Files.isDirectory(path) && dirs.stream().anyMatch(path::startsWith)) overflowDirs.add(path); else overflowDirs.addAll(dirs);
+                    debounce("OVERFLOW:" + id, OVERFLOW_RESCAN_DEBOUNCE, OVERFLOW_RESCAN_MAX_DELAY, () -> Threads.execute(() -> {
+                        final List<Path> rescanDirs = List.copyOf(overflowDirs);
+                        overflowDirs.removeAll(rescanDirs);
+                        reconcile(rescanDirs.stream().filter(dir -> rescanDirs.stream().noneMatch(other -> !other.equals(dir) && dir.startsWith(other))).toList());
+                    }));
+                }
+                call.accept(ChangeType.OVERFLOW);
             }
-            case DELETE   -> call.accept(ChangeType.DELETED);
-            case OVERFLOW -> call.accept(ChangeType.OVERFLOW);
         }
     }
 
     public FileTreeChangeDetector watch() {
         state.watcher.watchAsync();
+        if(hashIndex != null) Threads.execute(() -> reconcile(dirs));
+        return this;
+    }
+
+    /** Set the index to keep content hashes in, so that touches are not reported. Should be called before watch() */
+    public FileTreeChangeDetector setHashIndex(@Nullable FileHashIndex index) {
+        hashIndex = index;
         return this;
     }
 
@@ -170,6 +253,73 @@ public class FileTreeChangeDetector {
         info.lastHash = newHash;
         return true;
     }
+    /** An ignored change is made by the owner of the detector, who knows what changed, so the contents
+      * are not hashed. Only size and time are indexed so the file is not hashed at reconcile either.
+      */
+    private void indexWithoutHashing(Path path) {
+        if(hashIndex == null) return;
+        if(Files.isRegularFile(path)) hashIndex.putUnhashed(keyOf(path), path);
+        else if(!Files.exists(path)) hashIndex.remove(keyOf(path));
+    }
+    private boolean isBeingIgnored(Path path) {
+        final @Nullable PathInfo pathInfo = state.pathToInfo.get(path);
+        return pathInfo != null && pathInfo.endOfIgnore > System.currentTimeMillis();
+    }
+    /** Returns true if the contents of the given file differ from what the hash index has. Updates the index. */
+    private boolean isContentChanged(Path path) {
+        final FileHashIndex index = Objects.requireNonNull(hashIndex);
+        final String key = keyOf(path);
+        final Optional<FileHashIndex.Entry> old = index.get(key);
+        final long newHash = index.getOrCompute(key, path, FileHashIndex::contentHashOf);
+        return old.isEmpty() || old.get().hash() != newHash;
+    }
+
+    /** Bring the hash index up-to-date with the given (watched) directories, reporting what changed
+      * since the index was last updated (e.g. while the service was down). Only files that
+      * changed size or time are hashed, in parallel. Nothing is reported when the index was
+      * empty as there is nothing to compare with then (e.g. first run).
+      */
+    private synchronized void reconcile(List<Path> dirsToScan) {
+        final FileHashIndex index = Objects.requireNonNull(hashIndex);
+        final boolean report = index.size() > 0;
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        final BiConsumer<Path,ChangeType> reportChange = (path, type) -> {
+            if(!report || ignoreAll) return;
+            try {
+                changeHandler.accept(path, type);
+            } catch(final Exception e) {
+                exceptionHandler.accept(e);
+            }
+        };
+        try {
+            dirsToScan.stream()
+                .flatMap(dir -> IOUtils.listDeep(dir).stream())
+                .filter(Files::isRegularFile)
+                .filter(path -> !isBeingIgnored(path))
+                .toList()
+                .parallelStream()
+                .forEach(path -> {
+                    final String key = keyOf(path);
+                    seen.add(key);
+                    final boolean existed = index.get(key).isPresent();
+                    if(isContentChanged(path)) reportChange.accept(path, existed ? ChangeType.MODIFIED : ChangeType.CREATED);
+                });
+            final List<String> dirKeys = dirsToScan.stream().map(dir -> keyOf(dir) + dir.getFileSystem().getSeparator()).toList();
+            final List<String> deletedKeys = index.keys().stream()
+                .filter(key -> !seen.contains(key) && dirKeys.stream().anyMatch(key::startsWith) && !isBeingIgnored(Path.of(key)))
+                .toList();
+            deletedKeys.forEach(key -> {
+                index.remove(key);
+                reportChange.accept(Path.of(key), ChangeType.DELETED);
+            });
+        } catch(final RuntimeException e) {
+            exceptionHandler.accept(e);
+        }
+    }
+    private static String keyOf(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
     private void prunePathInfos() {
         final long now = System.currentTimeMillis();
         state.pathToInfo.entrySet()
@@ -188,6 +338,7 @@ public class FileTreeChangeDetector {
     public void close() {
         setIgnoreAll(true); // in case events come in after this call was made
         state.run();
+        if(hashIndex != null) hashIndex.save();
     }
     public boolean isClosed() {
         return state.watcher.isClosed();
@@ -10,10 +10,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Duration;
 import java.time.Instant;
@@ -23,9 +29,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 import java.util.regex.Pattern;
@@ -207,29 +216,82 @@ public final class IOUtils {
             throw new IllegalArgumentException("Unable to list " + toList, cause);
         }
     }
+    /** Lists all files and directories below root (excluding root itself), parents before their children.
+      * Symbolic links are followed. A link to a directory that is already being walked (a cycle) is skipped.
+      */
     public static List<Path> listDeep(Path root) {
         final List<Path> paths = new ArrayList<>();
-        listDeep(root, paths);
-        paths.remove(root);
+        if(!Files.isDirectory(root)) return paths;
+        try {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if(!dir.equals(root)) paths.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    paths.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE; // e.g. deleted while walking, or a FileSystemLoopException
+                }
+            });
+        } catch(final IOException cause) {
+            throw new IllegalArgumentException("Unable to list " + root, cause);
+        }
         return paths;
     }
-    private static void listDeep(Path path, List<Path> paths) {
-        paths.add(path);
-        if(Files.isDirectory(path)) list(path).forEach(child -> listDeep(child, paths));
-    }
     public static List<Path> relativize(Path root, Collection<Path> paths) {
         return paths.stream().map(root::relativize).toList();
     }
     public static long sizeOf(Path p) {
-        return Files.isDirectory(p)
-            ? list(p).stream().mapToLong(IOUtils::sizeOf).sum()
-            : noThrow(() -> Files.size(p)).orElse(0L);
+        return sizeAndCountOf(p)[0];
     }
+    /** Returns { size, count } of the given file (count 1) or directory (size and count of all files below it).
+      * Directory trees are walked in parallel.
+      */
     public static long[] sizeAndCountOf(Path p) {
         return Files.isDirectory(p)
-            ? list(p).stream().map(IOUtils::sizeAndCountOf).reduce(new long[] { 0, 0 }, (a, r) -> { a[0]+=r[0]; a[1]+=r[1]; return a; })
+            ? ForkJoinPool.commonPool().invoke(new SizeAndCountTask(p))
             : noThrow(() -> new long[] { Files.size(p), 1L }).orElse(new long[] { 0, 0 });
     }
+    private static final class SizeAndCountTask extends RecursiveTask<long[]> {
+        private final transient Path dir;
+        SizeAndCountTask(Path dir) { this.dir = dir; }
+
+        @Override
+        protected long[] compute() {
+            final long[] result = { 0, 0 };
+            final List<SizeAndCountTask> subTasks = new ArrayList<>();
+            try(final DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for(final Path child : children) {
+                    final Optional<BasicFileAttributes> attributes = noThrow(() -> Files.readAttributes(child, BasicFileAttributes.class));
+                    if(attributes.isEmpty()) continue; // deleted while walking
+                    if(attributes.get().isDirectory()) {
+                        if(isLinkToAncestor(dir, child)) continue;
+                        final SizeAndCountTask subTask = new SizeAndCountTask(child);
+                        subTask.fork();
+                        subTasks.add(subTask);
+                    } else {
+                        result[0] += attributes.get().size();
+                        result[1]++;
+                    }
+                }
+            } catch(final IOException | DirectoryIteratorException e) {
+                // unreadable or deleted while walking: count what was found
+            }
+            for(final SizeAndCountTask subTask : subTasks) {
+                final long[] subResult = subTask.join();
+                result[0] += subResult[0];
+                result[1] += subResult[1];
+            }
+            return result;
+        }
+    }
+    /** True if child (in dir) is a symbolic link to dir or one of its parents, which would make walking the tree endless */
+    public static boolean isLinkToAncestor(Path dir, Path child) {
+        return Files.isSymbolicLink(child) && noThrow(() -> dir.toRealPath().startsWith(child.toRealPath())).orElse(true);
+    }
     public static boolean isProbablyTempFile(Path p) {
         return isProbablyTempFile(p.toAbsolutePath().toString());
     }
@@ -1,16 +1,31 @@
 package net.microstar.common.io;
 
+import net.microstar.common.util.SuppliedAtomicReference;
+import net.microstar.common.util.Threads;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static net.microstar.common.util.ExceptionUtils.noThrow;
 
 /** Helper class to get a hash-like value based on the relevant part of a jar.
   * It does this by xor stacking all CRC values from the files in the jar that
@@ -19,60 +34,195 @@ import java.util.zip.ZipFile;
   * lib/*-SNAPSHOT.jar which will often be part of the build so its CRC will
   * be different every build (because of its META-INF contents which contains
   * a timestamp) so that entry will be unzipped and scanned just like the
-  * parent jar so it will result in the same CRC if no code changed.
+  * parent jar so it will result in the same CRC if no code changed.<p>
+  *
+  * Nested SNAPSHOT jars are scanned in parallel and in memory, or streamed
+  * when too large for memory. Results are cached in a {@link FileHashIndex}
+  * keyed by path, size and last-modified time so an unchanged jar is only
+  * scanned once. The cache is in memory unless a cache file is set, which
+  * keeps the results over restarts.
   */
 public class JarHash {
+    static long maxInMemoryNestedSize = 256 * 1024 * 1024; // larger nested jars are streamed
+    private static final SuppliedAtomicReference<FileHashIndex> cache = new SuppliedAtomicReference<>(FileHashIndex::new);
     public final long id;
 
     public JarHash(File jarFile) { this(jarFile.toPath()); }
     public JarHash(Path jarPath) {
-        id = stackCRCs(jarPath);
+        id = noThrow(() -> cache.get().getOrCompute(jarPath, JarHash::stackCRCs)).orElse(0L); // an unreadable jar is not cached
     }
 
-    // This implementation always uses ZipFile instead of ZipInputStream, even with
-    // recursion in zip files because ZipFile is significantly faster to scan (x10)
-    // than ZipInputStream. This requires temp files to scan zips inside zips but
-    // that is worth the performance benefit.
+    /** Use the given file to persist calculated hashes, or keep them in memory only when null.
+      * The file should not be shared with other processes.
+      */
+    public static void setCacheFile(@Nullable Path cacheFile) {
+        cache.get().save();
+        cache.set(new FileHashIndex(cacheFile));
+    }
+
+    // The outer jar is scanned using ZipFile instead of ZipInputStream because ZipFile
+    // is significantly faster to scan (x10) than ZipInputStream. Nested jars are read
+    // into memory and their central directory is parsed directly, which is as fast as
+    // ZipFile without requiring temp files. Nested jars too large for memory are streamed.
 
     private static long stackCRCs(Path jarPath) {
         try (final ZipFile zipFile = new ZipFile(jarPath.toFile())) {
-            final AtomicLong   stackedCrc = new AtomicLong(0); // So this is not a combined CRC but an x-or stacked set of CRCs
-            final AtomicInteger scanCount = new AtomicInteger(0);
+            final CrcStacker stacker = new CrcStacker();
             final Enumeration<? extends ZipEntry> zipEnum = zipFile.entries();
 
             while (zipEnum.hasMoreElements()) {
-                final long crc = crcOf(zipFile, zipEnum.nextElement());
-                if (crc != 0) {
-                    stackedCrc.set(stackedCrc.get() ^ (crc << (crc < 0x1_0000_0000L && scanCount.get() % 2 == 0 ? 32 : 0)));
-                    scanCount.incrementAndGet();
+                final ZipEntry entry = zipEnum.nextElement();
+                if(!isNestedSnapshotJar(entry.getName(), entry.isDirectory())) {
+                    stacker.add(crcOf(entry.getName(), entry.isDirectory(), entry.getCrc()));
+                } else if(entry.getSize() < 0 || entry.getSize() > maxInMemoryNestedSize) {
+                    stacker.add(stackCRCsFromStream(zipFile, entry));
+                } else {
+                    noThrow(() -> readFully(zipFile, entry)).ifPresent(nestedJar -> // an unreadable entry adds nothing
+                        stacker.add(CompletableFuture.supplyAsync(() -> stackCRCs(nestedJar), Threads.getExecutor())));
                 }
             }
-            return stackedCrc.get();
+            return stacker.get();
         } catch(final IOException e) {
-            return 0;
+            throw new UncheckedIOException(e);
+        }
+    }
+    private static long stackCRCs(byte[] zipData) {
+        try {
+            return stackCRCsFromCentralDirectory(zipData);
+        } catch(final UnsupportedZipException | IndexOutOfBoundsException | DataFormatException e) {
+            return stackCRCsFromStream(zipData); // e.g. zip64 or otherwise unexpected layout
+        }
+    }
+
+    private static long stackCRCsFromCentralDirectory(byte[] zipData) throws DataFormatException {
+        final ByteBuffer buf = ByteBuffer.wrap(zipData).order(ByteOrder.LITTLE_ENDIAN);
+        final int eocd = findEndOfCentralDirectory(buf);
+        final int entryCount = buf.getShort(eocd + 10) & 0xFFFF;
+        final long cdOffset = buf.getInt(eocd + 16) & 0xFFFF_FFFFL;
+        if(entryCount == 0xFFFF || cdOffset == 0xFFFF_FFFFL) throw new UnsupportedZipException(); // zip64
+
+        final CrcStacker stacker = new CrcStacker();
+        int pos = (int)cdOffset;
+        for(int i=0; i<entryCount; i++) {
+            if(buf.getInt(pos) != 0x02014b50) throw new UnsupportedZipException();
+            final int    method         = buf.getShort(pos + 10) & 0xFFFF;
+            final long   crc            = buf.getInt(pos + 16) & 0xFFFF_FFFFL;
+            final long   compressedSize = buf.getInt(pos + 20) & 0xFFFF_FFFFL;
+            final long   size           = buf.getInt(pos + 24) & 0xFFFF_FFFFL;
+            final int    nameLength     = buf.getShort(pos + 28) & 0xFFFF;
+            final int    extraLength    = buf.getShort(pos + 30) & 0xFFFF;
+            final int    commentLength  = buf.getShort(pos + 32) & 0xFFFF;
+            final long   localOffset    = buf.getInt(pos + 42) & 0xFFFF_FFFFL;
+            final String name = new String(zipData, pos + 46, nameLength, StandardCharsets.UTF_8);
+            final boolean isDirectory = name.endsWith("/");
+
+            if(isNestedSnapshotJar(name, isDirectory)) {
+                final byte[] nestedJar = entryData(buf, (int)localOffset, method, (int)compressedSize, (int)size);
+                stacker.add(CompletableFuture.supplyAsync(() -> stackCRCs(nestedJar), Threads.getExecutor()));
+            } else {
+                stacker.add(crcOf(name, isDirectory, crc));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return stacker.get();
+    }
+    private static int findEndOfCentralDirectory(ByteBuffer buf) {
+        final int minPos = Math.max(0, buf.limit() - 22 - 0xFFFF); // max comment size
+        for(int pos = buf.limit() - 22; pos >= minPos; pos--) {
+            if(buf.getInt(pos) == 0x06054b50) return pos;
+        }
+        throw new UnsupportedZipException();
+    }
+    private static byte[] entryData(ByteBuffer buf, int localOffset, int method, int compressedSize, int size) throws DataFormatException {
+        if(buf.getInt(localOffset) != 0x04034b50) throw new UnsupportedZipException();
+        final int dataOffset = localOffset + 30 + (buf.getShort(localOffset + 26) & 0xFFFF) + (buf.getShort(localOffset + 28) & 0xFFFF);
+        final byte[] data = new byte[size];
+        switch(method) {
+            case ZipEntry.STORED -> buf.get(dataOffset, data, 0, size);
+            case ZipEntry.DEFLATED -> {
+                final Inflater inflater = new Inflater(/*nowrap=*/true);
+                try {
+                    inflater.setInput(buf.array(), dataOffset, compressedSize);
+                    int inflated = 0;
+                    while(inflated < size && !inflater.finished()) {
+                        final int count = inflater.inflate(data, inflated, size - inflated);
+                        if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                        inflated += count;
+                    }
+                    if(inflated != size) throw new DataFormatException("Unexpected inflated size");
+                } finally {
+                    inflater.end();
+                }
+            }
+            default -> throw new UnsupportedZipException();
         }
+        return data;
+    }
+
+    private static long stackCRCsFromStream(byte[] zipData) {
+        return stackCRCsFromStream(new ByteArrayInputStream(zipData));
     }
-    private static long stackCRCs(InputStream zipIn) throws IOException {
-        final Path tempZipFile = Files.createTempFile("ServiceJarHash-", ".jar");
-        try(final OutputStream tempZipOut = Files.newOutputStream(tempZipFile)) {
-            zipIn.transferTo(tempZipOut);
-            return stackCRCs(tempZipFile);
-        } finally {
-            Files.deleteIfExists(tempZipFile);
+    private static long stackCRCsFromStream(ZipFile file, ZipEntry entry) {
+        return noThrow(() -> file.getInputStream(entry)).map(JarHash::stackCRCsFromStream).orElse(0L);
+    }
+    /** Scans the zip in the given stream, which is closed afterwards. Nested jars are scanned from the same stream */
+    private static long stackCRCsFromStream(InputStream in) {
+        try(final ZipInputStream zipIn = new ZipInputStream(in)) {
+            final CrcStacker stacker = new CrcStacker();
+            ZipEntry entry;
+            while((entry = zipIn.getNextEntry()) != null) {
+                if(isNestedSnapshotJar(entry.getName(), entry.isDirectory())) {
+                    stacker.add(stackCRCsFromStream(new FilterInputStream(zipIn) {
+                        @Override public void close() { /* the outer zip continues after this entry */ }
+                    }));
+                } else {
+                    zipIn.transferTo(OutputStream.nullOutputStream()); // crc is only known after reading the data
+                    stacker.add(crcOf(entry.getName(), entry.isDirectory(), entry.getCrc()));
+                }
+            }
+            return stacker.get();
+        } catch(final IOException e) {
+            return 0;
         }
     }
-    private static long crcOf(ZipFile file, ZipEntry entry) {
-        final String name = entry.getName();
 
-        if (entry.isDirectory()) return 0;
+    /** Directories and META-INF are skipped altogether, so a snapshot jar in META-INF is not scanned */
+    private static boolean isNestedSnapshotJar(String name, boolean isDirectory) {
+        return !isDirectory && !name.startsWith("META-INF/") && name.contains("-SNAPSHOT.jar");
+    }
+    private static long crcOf(String name, boolean isDirectory, long crc) {
+        if (isDirectory) return 0;
         if (name.startsWith("META-INF/")) return 0;
-        if (name.contains("-SNAPSHOT.jar")) {
-            try(final InputStream entryIn = file.getInputStream(entry)) {
-                return stackCRCs(entryIn);
-            } catch(final IOException e) {
-                return 0;
+        return crc;
+    }
+    private static byte[] readFully(ZipFile file, ZipEntry entry) throws IOException {
+        try(final InputStream entryIn = file.getInputStream(entry)) {
+            return entryIn.readAllBytes();
+        }
+    }
+
+    /** Stacks CRCs in the order they were added, also when some of them are still being calculated */
+    private static final class CrcStacker {
+        private final List<CompletableFuture<Long>> crcs = new ArrayList<>();
+
+        void add(long crc) { if(crc != 0) crcs.add(CompletableFuture.completedFuture(crc)); }
+        void add(CompletableFuture<Long> crc) { crcs.add(crc); }
+
+        long get() {
+            long stackedCrc = 0; // So this is not a combined CRC but an x-or stacked set of CRCs
+            int scanCount = 0;
+            for(final CompletableFuture<Long> crcFuture : crcs) {
+                final long crc = crcFuture.join();
+                if (crc != 0) {
+                    stackedCrc ^= crc << (crc < 0x1_0000_0000L && scanCount % 2 == 0 ? 32 : 0);
+                    scanCount++;
+                }
             }
+            return stackedCrc;
         }
-        return entry.getCrc();
+    }
+
+    private static final class UnsupportedZipException extends RuntimeException {
+        UnsupportedZipException() { super(null, null, false, false); }
     }
 }
@@ -0,0 +1,65 @@
+package net.microstar.common.util;
+
+/** Fixed size ring of long values, typically used to keep a history of samples.
+  * Adding and reading never allocates so it can be used at a high sample rate.
+  * When full, adding a value replaces the oldest value.
+  */
+public final class LongRingBuffer {
+    private final long[] values;
+    private int next;  // index of the next value to write
+    private int count; // number of values in the ring, never more than capacity
+
+    public LongRingBuffer(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("Ring buffer capacity should be > 0 but is " + capacity);
+        values = new long[capacity];
+    }
+
+    public synchronized void add(long value) {
+        values[next] = value;
+        next = (next + 1) % values.length;
+        if(count < values.length) count++;
+    }
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    public int capacity() { return values.length; }
+    public synchronized int size() { return count; }
+    public synchronized boolean isEmpty() { return count == 0; }
+
+    /** Most recently added value or the given default when empty */
+    public synchronized long latest(long whenEmpty) {
+        return count == 0 ? whenEmpty : values[(next - 1 + values.length) % values.length];
+    }
+    /** Least recently added value or the given default when empty */
+    public synchronized long oldest(long whenEmpty) {
+        return count == 0 ? whenEmpty : values[(next - count + values.length) % values.length];
+    }
+    public synchronized long min(long whenEmpty) {
+        if(count == 0) return whenEmpty;
+        long min = Long.MAX_VALUE;
+        for(int i=0; i<count; i++) min = Math.min(min, values[i]);
+        return min;
+    }
+    public synchronized long max(long whenEmpty) {
+        if(count == 0) return whenEmpty;
+        long max = Long.MIN_VALUE;
+        for(int i=0; i<count; i++) max = Math.max(max, values[i]);
+        return max;
+    }
+
+    /** Copies values, oldest first, into target and returns the number of values copied */
+    public synchronized int copyTo(long[] target) {
+        final int toCopy = Math.min(count, target.length);
+        final int skip = count - toCopy; // when target is too small, the newest values are copied
+        for(int i=0; i<toCopy; i++) target[i] = values[(next - count + skip + i + values.length) % values.length];
+        return toCopy;
+    }
+    /** Values, oldest first */
+    public synchronized long[] toArray() {
+        final long[] result = new long[count];
+        copyTo(result);
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+package net.microstar.common.util;
+
+import oshi.SystemInfo;
+import oshi.hardware.GlobalMemory;
+import oshi.hardware.HardwareAbstractionLayer;
+import oshi.software.os.OSProcess;
+
+import javax.annotation.Nullable;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Long-lived sampler behind {@link ProcessInfo}.<p>
+  *
+  * Every service runs this, so it should be cheap. The JMX values (heap, gc, threads,
+  * classes) are cheap to read and are sampled at a high rate into fixed size ring
+  * buffers. The OS values (virtual and resident memory, system memory) are expensive
+  * and are read at a lower rate, reusing the OSHI handles which are expensive to create
+  * (the first SystemInfo takes about a second). A ProcessInfo snapshot is assembled at
+  * the low rate so requesting the latest one never allocates.<p>
+  *
+  * Samples are published as immutable values, so the slow OS reads don't hold a lock
+  * that the fast sampling (or a reader) has to wait for. Only slow samples exclude
+  * each other.
+  */
+public final class ProcessInfoSampler {
+    static final Duration FAST_INTERVAL = Duration.ofSeconds(1);
+    static final Duration SLOW_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration HISTORY_DURATION = Duration.ofMinutes(5);
+    private static final int FAST_HISTORY_SIZE = (int)(HISTORY_DURATION.toMillis() / FAST_INTERVAL.toMillis());
+    private static final int SLOW_HISTORY_SIZE = (int)(HISTORY_DURATION.toMillis() / SLOW_INTERVAL.toMillis());
+    private static final SuppliedAtomicReference<ProcessInfoSampler> instance = new SuppliedAtomicReference<>(() -> new ProcessInfoSampler().start());
+
+    private final Runtime runtime = Runtime.getRuntime();
+    private final RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final ClassLoadingMXBean classLoadingBean = ManagementFactory.getClassLoadingMXBean();
+    private final GarbageCollectorMXBean[] gcBeans = ManagementFactory.getGarbageCollectorMXBeans().toArray(GarbageCollectorMXBean[]::new); // array so iterating doesn't allocate
+    private final @Nullable MemoryPoolMXBean metaspaceBean = ManagementFactory.getMemoryPoolMXBeans().stream().filter(mb -> "Metaspace".equals(mb.getName())).findFirst().orElse(null);
+    private final int pid = (int)ProcessHandle.current().pid();
+    private final SuppliedAtomicReference<SystemInfo> systemInfo = new SuppliedAtomicReference<>(SystemInfo::new);
+    private @Nullable OSProcess process; // only accessed while holding slowSampling
+    private final ReentrantLock slowSampling = new ReentrantLock();
+    private final AtomicReference<FastSample> latestFast = new AtomicReference<>();
+    private final AtomicReference<ProcessInfo> latest = new AtomicReference<>();
+
+    // Histories, oldest first
+    public final LongRingBuffer heapUsedHistory      = new LongRingBuffer(FAST_HISTORY_SIZE);
+    public final LongRingBuffer heapSizeHistory      = new LongRingBuffer(FAST_HISTORY_SIZE);
+    public final LongRingBuffer gcCountHistory       = new LongRingBuffer(FAST_HISTORY_SIZE);
+    public final LongRingBuffer gcTimeHistory        = new LongRingBuffer(FAST_HISTORY_SIZE);
+    public final LongRingBuffer threadCountHistory   = new LongRingBuffer(FAST_HISTORY_SIZE);
+    public final LongRingBuffer residentMemoryHistory = new LongRingBuffer(SLOW_HISTORY_SIZE);
+
+    private record FastSample(long heapSize, long heapUsed, long gcCount, long gcTime, int threadCount, int loadedClassCount) {}
+
+    private ProcessInfoSampler() {}
+
+    public static ProcessInfoSampler get() {
+        return instance.get();
+    }
+
+    private ProcessInfoSampler start() {
+        sampleSlow();
+        TimedRunner.runPeriodicallyAtFixedDelay("ProcessInfo.fast", FAST_INTERVAL, FAST_INTERVAL, this::sampleFast);
+        TimedRunner.runPeriodicallyAtFixedDelay("ProcessInfo", SLOW_INTERVAL, SLOW_INTERVAL, this::sampleSlow);
+        return this;
+    }
+
+    public ProcessInfo getLatest() {
+        return latest.get();
+    }
+
+    public HardwareAbstractionLayer getHardware() {
+        return systemInfo.get().getHardware();
+    }
+
+    /** Read the cheap JMX values into the histories */
+    public void sampleFast() {
+        final long heapSize = runtime.totalMemory();
+        final long heapUsed = heapSize - runtime.freeMemory();
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for(final GarbageCollectorMXBean gcBean : gcBeans) {
+            gcCount += Math.max(0, gcBean.getCollectionCount()); // -1 when undefined
+            gcTime  += Math.max(0, gcBean.getCollectionTime());
+        }
+        final FastSample sample = new FastSample(heapSize, heapUsed, gcCount, gcTime, threadBean.getThreadCount(), classLoadingBean.getLoadedClassCount());
+
+        synchronized(latestFast) { // keeps the histories aligned
+            heapUsedHistory.add(sample.heapUsed);
+            heapSizeHistory.add(sample.heapSize);
+            gcCountHistory.add(sample.gcCount);
+            gcTimeHistory.add(sample.gcTime);
+            threadCountHistory.add(sample.threadCount);
+            latestFast.set(sample);
+        }
+    }
+
+    /** Read all values, including the expensive OS values, and create a new ProcessInfo snapshot.
+      * Skipped when another call is still reading the OS values.
+      */
+    public void sampleSlow() {
+        if(!slowSampling.tryLock()) return;
+        try {
+            readSlow();
+        } finally {
+            slowSampling.unlock();
+        }
+    }
+
+    /** Like sampleSlow() but when another call is still reading the OS values, waits for it
+      * and samples after it, so the latest ProcessInfo is never older than this call.
+      */
+    public void sampleNow() {
+        slowSampling.lock();
+        try {
+            readSlow();
+        } finally {
+            slowSampling.unlock();
+        }
+    }
+
+    private void readSlow() {
+        sampleFast();
+        final FastSample fast = latestFast.get();
+
+        final OSProcess proc = getProcess();
+        final GlobalMemory mem = getHardware().getMemory();
+        final long sysMemTotal = mem.getTotal();
+        final long sysMemAvailable = mem.getAvailable();
+        residentMemoryHistory.add(proc.getResidentSetSize());
+
+        latest.set(createProcessInfo(fast, proc, sysMemTotal, sysMemAvailable));
+    }
+
+    private ProcessInfo createProcessInfo(FastSample fast, OSProcess proc, long sysMemTotal, long sysMemAvailable) {
+        final long heapSize = fast.heapSize;
+        final long heapUsed = fast.heapUsed;
+        return ProcessInfo.builder()
+            .timestamp(LocalDateTime.now())
+            .pid(pid)
+            .virtualMemorySize(ByteSize.ofBytes(proc.getVirtualSize()))
+            .residentMemorySize(ByteSize.ofBytes(proc.getResidentSetSize()))
+            .heapSize(ByteSize.ofBytes(heapSize))
+            .heapUsed(ByteSize.ofBytes(heapUsed))
+            .heapUsedPercent(heapSize == 0 ? 0 : (int)((100 * heapUsed) / heapSize))
+            .minHeapUsed(ByteSize.ofBytes(heapUsedHistory.min(heapUsed)))
+            .metaSpace(ByteSize.ofBytes(metaspaceBean == null ? 0 : metaspaceBean.getUsage().getUsed()))
+            .uptime(Duration.ofMillis(proc.getUpTime() > 0 ? proc.getUpTime() : runtimeBean.getUptime())) // process uptime, JVM uptime when unknown
+            .threadCount(fast.threadCount)
+            .loadedClassCount(fast.loadedClassCount)
+            .gcCount(fast.gcCount)
+            .gcTime(Duration.ofMillis(fast.gcTime))
+            .sysMem(ByteSize.ofBytes(sysMemTotal))
+            .sysMemAvailable(ByteSize.ofBytes(sysMemAvailable))
+            .sysMemAvailablePercent(sysMemTotal == 0 ? 0 : (int)((100 * sysMemAvailable) / sysMemTotal))
+            .build();
+    }
+
+    private OSProcess getProcess() {
+        if(process == null || !process.updateAttributes()) process = systemInfo.get().getOperatingSystem().getProcess(pid);
+        if(process == null) process = systemInfo.get().getOperatingSystem().getCurrentProcess();
+        return process;
+    }
+}
@@ -0,0 +1,79 @@
+package net.microstar.common.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Bounded (least recently used) cache of values that were resolved by looking at store paths.
+  * Each value keeps the paths that were looked at (its dependencies, whether they existed or
+  * not) so a store change only invalidates the values that may resolve differently now.<p>
+  *
+  * A value is not stored when an invalidation happened while it was being resolved, because it
+  * may have been resolved using the old situation. Get the generation before resolving for that.<p>
+  *
+  * Dependencies are paths (or names). As a changed path may be a directory, it also invalidates
+  * values depending on paths below it.
+  */
+public class ResolutionCache<T> {
+    private final Map<String,Resolved<T>> entries;
+    private final NavigableMap<String,Set<String>> keysOfDependency = new TreeMap<>(); // sorted for prefix lookups
+    private long generation;
+
+    private record Resolved<T>(T value, Set<String> dependencies) {}
+
+    public ResolutionCache(int maxCount) {
+        entries = new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String,Resolved<T>> eldest) {
+                if(size() <= maxCount) return false;
+                removeDependencies(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public synchronized Optional<T> get(String key) {
+        return Optional.ofNullable(entries.get(key)).map(Resolved::value);
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /** Stores the value unless there was an invalidation since the given generation */
+    public synchronized void put(String key, T value, Set<String> dependencies, long generationBeforeResolve) {
+        if(generation != generationBeforeResolve) return;
+        final Resolved<T> entry = new Resolved<>(value, Set.copyOf(dependencies));
+        Optional.ofNullable(entries.put(key, entry)).ifPresent(old -> removeDependencies(key, old));
+        entry.dependencies.forEach(dep -> keysOfDependency.computeIfAbsent(dep, d -> new HashSet<>()).add(key));
+    }
+
+    /** Removes values that depend on any of the given paths or anything below them */
+    public synchronized void invalidate(Collection<String> changedPaths) {
+        generation++;
+        final Set<String> keysToRemove = new HashSet<>();
+        changedPaths.forEach(changed -> {
+            final String dirPrefix = changed.endsWith("/") ? changed : changed + "/";
+            Optional.ofNullable(keysOfDependency.get(changed.replaceFirst("/$", ""))).ifPresent(keysToRemove::addAll);
+            keysOfDependency.subMap(dirPrefix, dirPrefix + Character.MAX_VALUE).values().forEach(keysToRemove::addAll);
+        });
+        keysToRemove.forEach(key -> Optional.ofNullable(entries.remove(key)).ifPresent(old -> removeDependencies(key, old)));
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        keysOfDependency.clear();
+    }
+
+    private void removeDependencies(String key, Resolved<T> entry) {
+        entry.dependencies.forEach(dep -> Optional.ofNullable(keysOfDependency.get(dep)).ifPresent(keys -> {
+            keys.remove(key);
+            if(keys.isEmpty()) keysOfDependency.remove(dep);
+        }));
+    }
+}
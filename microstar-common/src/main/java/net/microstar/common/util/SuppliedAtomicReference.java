@@ -23,6 +23,11 @@ public class SuppliedAtomicReference<T> {
         }
         return result;
     }
+    public void set(T value) {
+        synchronized(ref) {
+            ref.set(value);
+        }
+    }
     public void reset() {
         ref.set(null);
     }
@@ -19,8 +19,11 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -122,6 +125,23 @@ public abstract class AbstractDataStoreTest {
     @Test void getBytes() throws ExecutionException, InterruptedException {
         assertThat(store.get("/3/bytes.data", byte[].class).get().orElseThrow(), is(new byte[] { 1, 2, 3, 4, 5, 6}));
     }
+    @Test void getItem() throws ExecutionException, InterruptedException {
+        final DataStore.Item file = store.getItem("3/bytes.data").get().orElseThrow();
+        assertThat(file.path, is("/3/bytes.data"));
+        assertThat(file.size, is(6L));
+        assertThat(file.time, is(store.getLastModified("/3/bytes.data").get().orElseThrow()));
+        assertThat(store.getItem("/1/2/").get().orElseThrow().count, is(2));
+        assertThat(store.getItem("/nonexisting.txt").get().isPresent(), is(false));
+    }
+    @Test void readRange() throws ExecutionException, InterruptedException, IOException {
+        assertThat(store.read("/3/bytes.data", 2, 3).get().orElseThrow(), is(new byte[] { 3, 4, 5 }));
+        assertThat(store.read("/3/bytes.data", 4, 100).get().orElseThrow(), is(new byte[] { 5, 6 }));
+        assertThat(store.read("/3/bytes.data", 10, 2).get().orElseThrow(), is(new byte[0]));
+        assertThat(store.read("/nonexisting.data", 0, 2).get().isPresent(), is(false));
+        try(final InputStream in = store.readStream("/3/bytes.data", 3).get().orElseThrow()) {
+            assertThat(in.readAllBytes(), is(new byte[] { 4, 5, 6 }));
+        }
+    }
     @Test void exists() throws ExecutionException, InterruptedException {
         assertThat(store.exists("root.txt").get(), is(true));
         assertThat(store.exists("nonexisting.txt").get(), is(false));
@@ -241,6 +261,32 @@ public abstract class AbstractDataStoreTest {
         assertThat(changedPaths, is(Set.of(pathName)));
         assertThat(store.touch(pathName, TIME2000).thenComposeAsync(b -> store.getLastModified(pathName)).get().orElseThrow(), is(TIME2000));
     }
+    @Test void readMany() throws ExecutionException, InterruptedException {
+        final Map<String,Optional<byte[]>> result = store.readMany(List.of("/3/bytes.data", "root.txt", "nonexisting.txt")).get();
+        assertThat(List.copyOf(result.keySet()), is(List.of("/3/bytes.data", "root.txt", "nonexisting.txt")));
+        assertThat(result.get("/3/bytes.data").orElseThrow(), is(new byte[] { 1, 2, 3, 4, 5, 6 }));
+        assertThat(new String(result.get("root.txt").orElseThrow(), StandardCharsets.UTF_8), is("\"Root text file\""));
+        assertThat(result.get("nonexisting.txt").isPresent(), is(false));
+    }
+    @Test void writeMany() throws ExecutionException, InterruptedException {
+        final Map<String,byte[]> toWrite = new LinkedHashMap<>();
+        toWrite.put("/many/a.txt", "a".getBytes(StandardCharsets.UTF_8));
+        toWrite.put("/many/deeper/b.txt", "bb".getBytes(StandardCharsets.UTF_8));
+        toWrite.put("/root.txt", "overwritten".getBytes(StandardCharsets.UTF_8));
+        assertThat(store.writeMany(toWrite, TIME2000).get(), is(true));
+        assertThat(list("/many/", true), is(List.of("a.txt", "deeper/b.txt")));
+        assertThat(store.readString("/many/deeper/b.txt").get().orElseThrow(), is("bb"));
+        assertThat(store.readString("/root.txt").get().orElseThrow(), is("overwritten"));
+        assertThat(store.getLastModified("/many/a.txt").get().orElseThrow(), is(TIME2000));
+        assertThat(sorted(changedPaths), is(List.of("/many/a.txt", "/many/deeper/b.txt", "/root.txt")));
+    }
+    @Test void removeMany() throws ExecutionException, InterruptedException {
+        assertThat(store.removeMany(List.of("root.txt", "/1/2/", "/1/1/file1_1_2.txt")).get(), is(true));
+        assertThat(list("", false), is(List.of("1/", "2/", "3/", "root.list", "root.size")));
+        assertThat(list("1", false), is(List.of("1/", "file1_1.txt", "file1_2.txt")));
+        assertThat(list("1/1", false), is(List.of("file1_1_1.txt")));
+        assertThat(sorted(changedPaths), is(List.of("/1/1/file1_1_2.txt", "/1/2/deeper/deep.txt", "/1/2/file1_2_1.txt", "/root.txt")));
+    }
     @Test void isDir() {
         assertThat(store.isDir("1/"), is(true));
         assertThat(store.isDir("root.size"), is(false));
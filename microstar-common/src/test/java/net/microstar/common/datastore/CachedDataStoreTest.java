@@ -7,12 +7,17 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
 
+import static net.microstar.testing.TestUtils.sleep;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
@@ -28,6 +33,7 @@ class CachedDataStoreTest {
 
     private CachedDataStore create(Map<String,?> cacheCfg) throws ExecutionException, InterruptedException {
         source = new MemoryDataStore();
+        source.setChangeDebounceDuration(Duration.ZERO);
         source.write("a", "aValue").get();
         failingStore = new FailingForTestDataStore(source).setFailing(false);
         store = new CachedDataStore(failingStore, "cachedStore", cacheCfg);
@@ -74,7 +80,86 @@ class CachedDataStoreTest {
         store.touch("a", Instant.now()).get();
         assertFalse(store.isCached("a"));
     }
+    @Test void missingPathsShouldBeRemembered() throws ExecutionException, InterruptedException {
+        assertTrue(store.read("missing").get().isEmpty());
+        assertTrue(store.read("missing").get().isEmpty());
+        assertThat(failingStore.readCount.get(), is(1));
+        assertTrue(store.isKnownMissing("/missing"));
 
+        store.write("missing", "found").get();
+        assertFalse(store.isKnownMissing("missing"));
+        assertThat(store.readString("missing").get().orElse(""), is("found"));
+    }
+    @Test void missingPathsShouldBeRememberedForExists() throws ExecutionException, InterruptedException {
+        assertFalse(store.exists("dir/missing").get());
+        assertTrue(store.isKnownMissing("dir/missing"));
+        failingStore.setFailing(true);
+        assertFalse(store.exists("dir/missing").get()); // not asking the failing source
+
+        failingStore.setFailing(false);
+        store.write("dir/missing/child", "found").get();
+        assertFalse(store.isKnownMissing("dir/missing"));
+        assertTrue(store.exists("dir/missing").get());
+    }
+    @Test void changesInSourceShouldInvalidate() throws ExecutionException, InterruptedException {
+        store.read("b").get();
+        assertTrue(store.isKnownMissing("b"));
+        assertThat(store.readString("a").get().orElse(""), is("aValue"));
+
+        source.write("b", "bValue").get(); // not via the cached store
+        source.write("a", "newValue").get();
+        int tries = 20;
+        while(tries-->0 && (store.isKnownMissing("b") || store.isCached("a"))) sleep(100);
+
+        assertThat(store.readString("b").get().orElse(""), is("bValue"));
+        assertThat(store.readString("a").get().orElse(""), is("newValue"));
+    }
+    @Test void concurrentReadsShouldShareOneSourceRead() {
+        final List<CompletableFuture<Optional<String>>> reads = IntStream.range(0, 20).mapToObj(i -> store.readString("a")).toList();
+        reads.forEach(read -> assertThat(read.join().orElse(""), is("aValue")));
+        assertThat(failingStore.readCount.get(), is(1));
+    }
+    @Test void staleValueShouldBeServedWhileRefreshing() throws ExecutionException, InterruptedException {
+        store.getCloseRunner().run();
+        source.getCloseRunner().run();
+        create(Map.of("maxMemSize", "100KB", "refreshAge", "50ms"));
+        store.read("a").get();
+        sleep(100);
+
+        failingStore.readCount.set(0);
+        assertThat(store.readString("a").get().orElse(""), is("aValue"));
+        int tries = 20;
+        while(tries-->0 && failingStore.readCount.get() == 0) sleep(50);
+        assertThat(failingStore.readCount.get(), is(1));
+    }
+
+    @Test void fileCachedItemShouldBeStreamed() throws ExecutionException, InterruptedException, IOException {
+        store.getCloseRunner().run();
+        source.getCloseRunner().run();
+        create(Map.of("maxMemSize", "10KB", "maxMemItemSize", "1KB", "maxFilesSize", "1MB", "maxFilesCount", 10));
+        final byte[] data = "0123456789".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        source.write("big", data).get();
+
+        assertThat(store.readStream("big").get().orElseThrow().readAllBytes(), is(data));
+        assertTrue(store.isCached("big"));
+        assertThat(store.readStream("big").get().orElseThrow().readAllBytes(), is(data));
+        assertThat(store.readStream("big", 9995).get().orElseThrow().readAllBytes(), is("56789".getBytes(StandardCharsets.UTF_8)));
+        assertThat(store.readStream("big", 20_000).get().orElseThrow().readAllBytes().length, is(0));
+        assertThat(store.read("big", 10, 3).get().orElseThrow(), is("012".getBytes(StandardCharsets.UTF_8)));
+        assertThat(failingStore.readCount.get(), is(1));
+    }
+    @Test void itemTooLargeToCacheShouldBeStreamedFromSource() throws ExecutionException, InterruptedException, IOException {
+        final byte[] data = new byte[300 * 1024];
+        source.write("huge", data).get();
+
+        assertThat(store.readStream("huge").get().orElseThrow().readAllBytes(), is(data));
+        assertFalse(store.isCached("huge"));
+        assertThat(store.readStream("huge").get().orElseThrow().readAllBytes(), is(data));
+        assertThat(failingStore.readCount.get(), is(1)); // second time streamed instead of read
+
+        store.write("huge", "small").get();
+        assertThat(store.readStream("huge").get().orElseThrow().readAllBytes(), is("small".getBytes(StandardCharsets.UTF_8)));
+    }
     @Test void listingFallbackCacheShouldNotBeUsedWhenDisabled() throws ExecutionException, InterruptedException {
         // reset the store created at @BeforeEach
         store.getCloseRunner().run();
@@ -0,0 +1,107 @@
+package net.microstar.common.datastore;
+
+import net.microstar.common.util.DynamicReference;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DedupDataStoreTest extends AbstractDataStoreTest { // NOSONAR -- there are tests in super
+    private MemoryDataStore source;
+
+    @Override
+    DataStore createStore() {
+        source = new MemoryDataStore(Duration.ZERO, Duration.ZERO);
+        source.setChangeDebounceDuration(Duration.ZERO);
+        return new DedupDataStore(source);
+    }
+
+    @Test void identicalDataShouldBeStoredOnce() throws ExecutionException, InterruptedException {
+        final DedupDataStore dedupStore = (DedupDataStore) store;
+        final String hash = DedupDataStore.contentHashOf("same".getBytes(StandardCharsets.UTF_8));
+        dedupStore.write("/dup/a.txt", "same").get();
+        dedupStore.write("/dup/b.txt", new ByteArrayInputStream("same".getBytes(StandardCharsets.UTF_8))).get();
+
+        assertThat(dedupStore.getContentHash("/dup/b.txt").orElseThrow(), is(hash));
+        assertThat(dedupStore.getReferenceCount(hash), is(2));
+        assertThat(source.list("/blobs/", true).get().stream().filter(item -> item.getFilename().equals(hash)).count(), is(1L));
+        assertThat(source.list("/blobs/uploads/").get().size(), is(0));
+
+        dedupStore.remove("/dup/a.txt").get();
+        assertThat(dedupStore.getReferenceCount(hash), is(1));
+        assertThat(dedupStore.readString("/dup/b.txt").get().orElse(""), is("same"));
+    }
+    @Test void referenceShouldOnlyBeWrittenForKnownContent() throws ExecutionException, InterruptedException {
+        final DedupDataStore dedupStore = (DedupDataStore) store;
+        final String hash = dedupStore.getContentHash("/3/bytes.data").orElseThrow();
+        assertTrue(dedupStore.hasContent(hash).get());
+        assertTrue(dedupStore.writeReference("/copy.data", hash, Instant.now()).get());
+        assertThat(dedupStore.read("/copy.data").get().orElseThrow(), is(new byte[] { 1, 2, 3, 4, 5, 6 }));
+
+        assertFalse(dedupStore.writeReference("/unknown.data", "0123", Instant.now()).get());
+        assertFalse(dedupStore.exists("/unknown.data").get());
+    }
+    @Test void referencesShouldBeLoadedByNewInstance() throws ExecutionException, InterruptedException {
+        final DedupDataStore otherStore = new DedupDataStore(source);
+        assertThat(otherStore.readString("/1/file1_2.txt").get().orElse(""), is("\"text 1_2\""));
+        assertThat(otherStore.getContentHash("/1/file1_2.txt"), is(((DedupDataStore) store).getContentHash("/1/file1_2.txt")));
+    }
+    @Test void garbageCollectionShouldOnlyRemoveUnusedBlobs() throws ExecutionException, InterruptedException {
+        final DedupDataStore dedupStore = (DedupDataStore) store;
+        final Instant longAgo = Instant.now().minus(Duration.ofDays(1));
+        final String orphanHash = DedupDataStore.contentHashOf("orphan".getBytes(StandardCharsets.UTF_8));
+        final String reusedHash = DedupDataStore.contentHashOf("reused".getBytes(StandardCharsets.UTF_8));
+        source.write("/blobs/" + orphanHash.substring(0, 2) + "/" + orphanHash, "orphan", longAgo).get();
+        source.write("/blobs/" + reusedHash.substring(0, 2) + "/" + reusedHash, "reused", longAgo).get();
+        assertTrue(dedupStore.writeReference("/reused.txt", reusedHash, Instant.now()).get());
+
+        assertThat(dedupStore.collectGarbage().get(), is(1));
+        assertFalse(dedupStore.hasContent(orphanHash).get());
+        assertThat(dedupStore.readString("/reused.txt").get().orElse(""), is("reused"));
+    }
+    @Test void directorySizesShouldFollowChanges() throws ExecutionException, InterruptedException {
+        store.write("/sizes/a/x.txt", "12345").get();
+        store.write("/sizes/a/y.txt", "123").get();
+        store.write("/sizes/b.txt", "1").get();
+        assertThat(sizeOf(store.list("/sizes/").get(), "a/"), is(8L));
+        assertThat(store.getItem("/sizes/").get().orElseThrow().size, is(9L));
+
+        store.write("/sizes/a/x.txt", "1").get();
+        assertThat(sizeOf(store.list("/sizes/").get(), "a/"), is(4L));
+
+        store.move("/sizes/a/", "/moved/a/").get();
+        assertThat(store.getItem("/sizes/").get().orElseThrow().size, is(1L));
+        assertThat(sizeOf(store.list("/moved/").get(), "a/"), is(4L));
+
+        store.remove("/moved/a/y.txt").get();
+        assertThat(store.getItem("/moved/").get().orElseThrow().size, is(1L));
+    }
+    private static long sizeOf(List<DataStore.Item> items, String path) {
+        return items.stream().filter(item -> item.path.equals(path)).findFirst().orElseThrow().size;
+    }
+    @Test void copyBetweenCachedStoresShouldOnlyCopyReference() throws ExecutionException, InterruptedException {
+        final MemoryDataStore targetSource = new MemoryDataStore(Duration.ZERO, Duration.ZERO);
+        final Map<String,String> cacheSettings = Map.of("maxMemSize", "100KB");
+        final DataStore cachedSource = new CachedDataStore(store, "source", cacheSettings);
+        final DataStore cachedTarget = new CachedDataStore(new DedupDataStore(targetSource), "target", cacheSettings);
+        cachedSource.write("/shared.txt", "shared").get();
+        cachedTarget.write("/existing.txt", "shared").get();
+        final String hash = ((DedupDataStore) store).getContentHash("/shared.txt").orElseThrow();
+        source.remove("/blobs/" + hash.substring(0, 2) + "/" + hash).get(); // copying the data would fail now
+
+        DataStoreUtils.copy(BlockingDataStore.forStore(DynamicReference.of(cachedSource)), "/shared.txt",
+                            BlockingDataStore.forStore(DynamicReference.of(cachedTarget)), "/copied.txt");
+
+        assertThat(cachedTarget.readString("/copied.txt").get().orElse(""), is("shared"));
+    }
+}
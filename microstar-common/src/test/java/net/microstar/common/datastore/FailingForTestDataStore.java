@@ -8,6 +8,8 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 
 /** DataStore that can be set in failing mode (default on) to test how failures are handled */
@@ -15,6 +17,7 @@ import java.util.function.LongConsumer;
 public class FailingForTestDataStore extends AbstractDataStore {
     private final DataStore source;
     private boolean shouldFail = true;
+    public final AtomicInteger readCount = new AtomicInteger();
 
     @StandardException
     @SuppressWarnings("this-escape")
@@ -53,7 +56,7 @@ public class FailingForTestDataStore extends AbstractDataStore {
     }
 
     @Override public CompletableFuture<Optional<byte[]>> read(String path) {
-        checkFail(); return source.read(path);
+        checkFail(); readCount.incrementAndGet(); return source.read(path);
     }
 
     @Override public CompletableFuture<Boolean> write(String path, byte[] data, Instant time) {
@@ -67,4 +70,8 @@ public class FailingForTestDataStore extends AbstractDataStore {
     @Override public CompletableFuture<Boolean> touch(String path, Instant time) {
         checkFail(); return source.touch(path, time);
     }
+
+    @Override public Runnable onChange(String path, Consumer<List<String>> changeHandler) {
+        return source.onChange(path, changeHandler);
+    }
 }
@@ -39,6 +39,45 @@ class FileSystemDataStoreTest extends AbstractDataStoreTest { // most tests are
 
         assertTrue(detectedChanges.contains(filename));
     }
+    @Test void testExternalDelete() throws IOException {
+        final String filename = "/externalFileToDelete.txt";
+        final FileSystemDataStore fsStore = (FileSystemDataStore) store;
+        final Path externalFile = fsStore.root.resolve(filename.substring(1));
+        Files.writeString(externalFile, "123");
+        sleep(500); // so the create is not batched with the delete
+
+        final List<String> detectedChanges = new CopyOnWriteArrayList<>();
+        fsStore.onChange(detectedChanges::addAll);
+        fsStore.fsDetector.setIgnoreAll(false);
+        Files.delete(externalFile);
+
+        for(int tries=10; tries-->0 && !detectedChanges.contains(filename);) sleep(500);
+
+        assertTrue(detectedChanges.contains(filename));
+    }
+    @Test void ownWritesShouldBeReportedOnce() throws Exception {
+        final FileSystemDataStore fsStore = (FileSystemDataStore) store;
+        final List<String> detectedChanges = new CopyOnWriteArrayList<>();
+        fsStore.onChange(detectedChanges::addAll);
+        fsStore.fsDetector.setIgnoreAll(false);
+
+        fsStore.write("/ownFile.txt", "abc").get();
+        sleep(3000); // more than the watcher debounce time
+
+        assertThat(detectedChanges, is(List.of("/ownFile.txt")));
+    }
+    @Test void hashIndexOfTemporaryRootShouldBeDeletedOnClose() throws Exception {
+        final FileSystemDataStore fsStore = (FileSystemDataStore) store;
+        final Path indexFile = FileSystemDataStore.hashIndexFileFor(fsStore.root);
+        fsStore.fsDetector.setIgnoreAll(false);
+
+        fsStore.write("/ownFile.txt", "abc").get();
+        for(int tries=10; tries-->0 && !Files.exists(indexFile);) sleep(500); // saving the index is debounced
+        assertTrue(Files.exists(indexFile));
+
+        fsStore.getCloseRunner().run();
+        assertThat(Files.exists(indexFile), is(false));
+    }
     @Test void testReplacingIllegalChars() {
         final String name = "a%b<c>d%20e:f";
         final String encoded = "a%37;b%60;c%62;d%37;20e%58;f";
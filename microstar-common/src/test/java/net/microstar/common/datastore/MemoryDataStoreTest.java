@@ -1,6 +1,14 @@
 package net.microstar.common.datastore;
 
+import org.junit.jupiter.api.Test;
+
 import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 
 class MemoryDataStoreTest extends AbstractDataStoreTest { // NOSONAR -- there are tests in super
 
@@ -8,4 +16,25 @@ class MemoryDataStoreTest extends AbstractDataStoreTest { // NOSONAR -- there ar
     DataStore createStore() {
         return new MemoryDataStore(Duration.ZERO, Duration.ZERO);
     }
+
+    @Test void directoryAggregatesShouldFollowChanges() throws ExecutionException, InterruptedException {
+        final DataStore memStore = createStore();
+        final Instant t1 = Instant.ofEpochSecond(1000);
+        final Instant t2 = Instant.ofEpochSecond(2000);
+        memStore.write("/dir/a.txt", "12", t1).get();
+        memStore.write("/dir/sub/b.txt", "345", t2).get();
+
+        assertThat(memStore.list("/").get(), is(List.of(new DataStore.Item("dir/", t2, 2, 5))));
+
+        memStore.remove("/dir/sub/").get();
+        assertThat(memStore.list("/").get(), is(List.of(new DataStore.Item("dir/", t1, 1, 2))));
+        assertThat(memStore.exists("/dir/sub").get(), is(false));
+
+        memStore.write("/dir/a.txt", "1", t2).get();
+        assertThat(memStore.list("/").get(), is(List.of(new DataStore.Item("dir/", t2, 1, 1))));
+
+        memStore.remove("/dir/a.txt").get();
+        assertThat(memStore.list("/").get(), is(List.of()));
+        assertThat(memStore.exists("/dir").get(), is(false));
+    }
 }
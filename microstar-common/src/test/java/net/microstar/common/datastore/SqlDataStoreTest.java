@@ -9,14 +9,16 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
@@ -60,34 +62,66 @@ class SqlDataStoreTest extends AbstractDataStoreTest { // Most tests are in supe
     }
 
     @Test
-    void testExternalChange() throws SQLException {
+    void testExternalChange() throws ExecutionException, InterruptedException {
         final String filename = "/externalFile.txt";
         final SqlDataStore sqlStore = (SqlDataStore) store;
         final List<String> detectedChanges = new CopyOnWriteArrayList<>();
 
-        // Give the db a bit of time to settle down
-        sleep(1000);
-
         // Add a detector for the file we will add
         sqlStore.onChange(detectedChanges::addAll);
 
         // Here simulate another service that adds a file to the database
-        try (final Connection connection = sqlStore.getConnection();
-             final PreparedStatement statement = connection.prepareStatement("INSERT INTO files VALUES(?, ?, ?, ?, ?);")) {
-            statement.setString(1, "");
-            statement.setString(2, filename);
-            statement.setTimestamp(3, Timestamp.from(Instant.now()));
-            statement.setBlob(4, new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)));
-            statement.setInt(5, 3);
-            statement.executeUpdate();
+        final DataStore otherStore = createStore();
+        try {
+            otherStore.write(filename, "abc").get();
+        } finally {
+            otherStore.getCloseRunner().run();
         }
 
-        // There is no event coming from the database, so periodically an 'anything new?' check is performed.
-        // Wait for that.
+        // There is no event coming from H2, so periodically the change log is checked. Wait for that.
         int tries = 20;
         while(tries-->0 && !detectedChanges.contains(filename)) sleep(250);
 
         assertTrue(detectedChanges.contains(filename));
+        assertThat(detectedChanges.stream().filter(filename::equals).count(), is(1L));
+    }
+    @Test
+    void ownChangesShouldNotBeReportedTwice() throws ExecutionException, InterruptedException {
+        final List<String> detectedChanges = new CopyOnWriteArrayList<>();
+        store.onChange(detectedChanges::addAll);
+        store.write("/ownFile.txt", "abc").get();
+        sleep(2500); // more than polling time
+        assertThat(detectedChanges, is(List.of("/ownFile.txt")));
+    }
+    @Test
+    void changesCommittedOutOfOrderShouldBeReported() throws SQLException {
+        final List<String> detectedChanges = new CopyOnWriteArrayList<>();
+        store.onChange(detectedChanges::addAll);
+        final long lastSeq = getLastSeq();
+
+        logExternalChange(lastSeq + 2, "/committedFirst.txt");
+        int tries = 20;
+        while(tries-->0 && !detectedChanges.contains("/committedFirst.txt")) sleep(250);
+        logExternalChange(lastSeq + 1, "/committedLater.txt");
+        tries = 20;
+        while(tries-->0 && !detectedChanges.contains("/committedLater.txt")) sleep(250);
+        sleep(1500); // more than polling time
+
+        assertThat(detectedChanges, is(List.of("/committedFirst.txt", "/committedLater.txt")));
+    }
+    @Test
+    void changesShouldBeLogged() throws SQLException, ExecutionException, InterruptedException {
+        store.write("/logged.txt", "abc").get();
+        store.remove("/logged.txt").get();
+        try (final Connection connection = ((SqlDataStore)store).getConnection();
+             final PreparedStatement statement = connection.prepareStatement("SELECT seq, path FROM files_changes WHERE path=? ORDER BY seq;")) {
+            statement.setString(1, "/logged.txt");
+            final ResultSet results = statement.executeQuery();
+            assertTrue(results.next());
+            final long firstSeq = results.getLong(1);
+            assertTrue(results.next());
+            assertTrue(results.getLong(1) > firstSeq);
+        }
     }
 
     @Test
@@ -104,12 +138,121 @@ class SqlDataStoreTest extends AbstractDataStoreTest { // Most tests are in supe
         assertTrue(getBlobLength(path) <= 0);
     }
 
+    @Test
+    void rangeReadShouldSpanChunks() throws ExecutionException, InterruptedException {
+        final byte[] data = testData(2_500_000); // three chunks
+        store.write("/large.bin", data).get();
+
+        assertThat(store.read("/large.bin").get().orElseThrow(), is(data));
+        assertThat(((SqlDataStore)store).read("/large.bin", 1_000_000, 100_000).get().orElseThrow(), is(Arrays.copyOfRange(data, 1_000_000, 1_100_000)));
+        assertThat(((SqlDataStore)store).read("/large.bin", 2_400_000, 200_000).get().orElseThrow(), is(Arrays.copyOfRange(data, 2_400_000, 2_500_000)));
+    }
+    @Test
+    void streamShouldKeepOldContentsWhenOverwritten() throws ExecutionException, InterruptedException, IOException {
+        final byte[] data = testData(2_500_000);
+        store.write("/overwritten.bin", data).get();
+
+        try(final InputStream in = store.readStream("/overwritten.bin").get().orElseThrow()) {
+            final byte[] start = in.readNBytes(100);
+            store.write("/overwritten.bin", "new contents").get();
+            final byte[] rest = in.readAllBytes();
+
+            assertThat(start, is(Arrays.copyOf(data, 100)));
+            assertThat(rest, is(Arrays.copyOfRange(data, 100, data.length)));
+        }
+        assertThat(store.readString("/overwritten.bin").get().orElseThrow(), is("new contents"));
+    }
+    @Test
+    void failedWriteShouldBeResumable() throws ExecutionException, InterruptedException {
+        final SqlDataStore sqlStore = (SqlDataStore) store;
+        final byte[] data = testData(2_500_000);
+        final InputStream failingSource = new FilterInputStream(new ByteArrayInputStream(data, 0, 1_500_000)) {
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                final int count = super.read(b, off, len);
+                if(count < 0) throw new IOException("Connection lost");
+                return count;
+            }
+        };
+        assertThat(sqlStore.write("/resumed.bin", failingSource, Instant.now(), size -> {}).get(), is(false));
+        assertThat(sqlStore.exists("/resumed.bin").get(), is(false));
+
+        final long resumeFrom = sqlStore.getResumableSize("/resumed.bin").get();
+        assertThat(resumeFrom, is(1024L * 1024));
+        assertThat(sqlStore.resumeWrite("/resumed.bin", new ByteArrayInputStream(data, (int)resumeFrom, data.length), Instant.now(), size -> {}).get(), is(true));
+        assertThat(sqlStore.read("/resumed.bin").get().orElseThrow(), is(data));
+        assertThat(sqlStore.getResumableSize("/resumed.bin").get(), is(0L));
+    }
+
+    @Test
+    void blobStoredBeforeChunkingShouldBeReadFromOffset() throws SQLException, ExecutionException, InterruptedException, IOException {
+        final byte[] data = testData(10);
+        store.write("/legacy.bin", data).get();
+        try (final Connection connection = ((SqlDataStore)store).getConnection();
+             final PreparedStatement statement = connection.prepareStatement("UPDATE files SET data=?, upload=NULL WHERE path=?;")) {
+            statement.setBytes(1, data);
+            statement.setString(2, "/legacy.bin");
+            assertThat(statement.executeUpdate(), is(1));
+        }
+
+        try(final InputStream in = store.readStream("/legacy.bin", 3).get().orElseThrow()) {
+            assertThat(in.readAllBytes(), is(Arrays.copyOfRange(data, 3, data.length)));
+        }
+        for(int i=0; i<20; i++) { // more than the pool size, so a leaked connection would exhaust the pool
+            try(final InputStream in = store.readStream("/legacy.bin", 100).get().orElseThrow()) {
+                assertThat(in.readAllBytes().length, is(0));
+            }
+        }
+    }
+
+    @Test
+    void prefixQueriesShouldOnlyMatchTheDirectory() throws ExecutionException, InterruptedException {
+        store.write("/a_b/x.txt", "x").get();
+        store.write("/acb/y.txt", "y").get();
+        store.write("/a_b.txt", "z").get();
+
+        assertThat(store.list("/a_b", true).get().stream().map(item -> item.path).toList(), is(List.of("x.txt")));
+        store.remove("/a_b").get();
+        assertThat(store.exists("/acb/y.txt").get(), is(true));
+        assertThat(store.exists("/a_b.txt").get(), is(true));
+    }
+    @Test
+    void schemaShouldBeMigrated() throws SQLException {
+        try (final Connection connection = ((SqlDataStore)store).getConnection();
+             final PreparedStatement statement = connection.prepareStatement("SELECT MAX(version) FROM files_schema;")) {
+            final ResultSet results = statement.executeQuery();
+            assertTrue(results.next());
+            assertThat(results.getInt(1), is(2));
+        }
+    }
+
+    private static byte[] testData(int size) {
+        final byte[] data = new byte[size];
+        for(int i=0; i<size; i++) data[i] = (byte)(i * 31 + (i >> 12));
+        return data;
+    }
+
+    private long getLastSeq() throws SQLException {
+        try (final Connection connection = ((SqlDataStore)store).getConnection();
+             final PreparedStatement statement = connection.prepareStatement("SELECT MAX(seq) FROM files_changes;")) {
+            final ResultSet results = statement.executeQuery();
+            assertTrue(results.next());
+            return results.getLong(1);
+        }
+    }
+    private void logExternalChange(long seq, String path) throws SQLException {
+        try (final Connection connection = ((SqlDataStore)store).getConnection();
+             final PreparedStatement statement = connection.prepareStatement("INSERT INTO files_changes(seq, section, path, time, origin) VALUES(?, '', ?, CURRENT_TIMESTAMP, 'other');")) {
+            statement.setLong(1, seq);
+            statement.setString(2, path);
+            statement.executeUpdate();
+        }
+    }
     private long getBlobLength(String path) throws SQLException {
         try (final Connection connection = ((SqlDataStore)store).getConnection();
-             final PreparedStatement statement = connection.prepareStatement("SELECT data FROM files WHERE path=?;")) {
+             final PreparedStatement statement = connection.prepareStatement("SELECT SUM(OCTET_LENGTH(data)) FROM files_chunks WHERE path=?;")) {
             statement.setString(1, path);
             final ResultSet results = statement.executeQuery();
-            return results.next() ? results.getBlob(1).length() : -1;
+            return results.next() ? results.getLong(1) : -1;
         }
     }
-}
\ No newline at end of file
+}
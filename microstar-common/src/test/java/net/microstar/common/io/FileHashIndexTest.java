@@ -0,0 +1,67 @@
+package net.microstar.common.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class FileHashIndexTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test void unchangedFileShouldNotBeHashedAgain() throws IOException {
+        final FileHashIndex index = new FileHashIndex();
+        final Path file = Files.writeString(tempDir.resolve("a.txt"), "abc");
+        final AtomicInteger hashCount = new AtomicInteger();
+
+        assertThat(index.getOrCompute(file, f -> hashCount.incrementAndGet() * 10L), is(10L));
+        assertThat(index.getOrCompute(file, f -> hashCount.incrementAndGet() * 10L), is(10L));
+        assertThat(hashCount.get(), is(1));
+
+        Files.writeString(file, "abcd");
+        assertThat(index.getOrCompute(file, f -> hashCount.incrementAndGet() * 10L), is(20L));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        assertThat(index.getOrCompute(file, f -> hashCount.incrementAndGet() * 10L), is(30L));
+    }
+    @Test void indexShouldSurviveReload() {
+        final Path indexFile = tempDir.resolve("sub/index.idx");
+        final FileHashIndex index = new FileHashIndex(indexFile);
+        index.put("/a", 1, 2, 3);
+        index.put("/b", 4, 5, 6);
+        index.remove("/b");
+        index.save();
+
+        final FileHashIndex reloaded = new FileHashIndex(indexFile);
+        assertThat(reloaded.size(), is(1));
+        assertThat(reloaded.get("/a", 1, 2), is(OptionalLong.of(3)));
+        assertThat(reloaded.get("/a", 1, 3), is(OptionalLong.empty()));
+    }
+    @Test void deletedIndexShouldNotBeWrittenAgain() {
+        final Path indexFile = tempDir.resolve("index.idx");
+        final FileHashIndex index = new FileHashIndex(indexFile);
+        index.put("/a", 1, 2, 3);
+        index.save();
+        assertThat(Files.exists(indexFile), is(true));
+
+        index.delete();
+        index.put("/b", 4, 5, 6);
+        index.save();
+        assertThat(Files.exists(indexFile), is(false));
+    }
+    @Test void retainIfShouldEvict() {
+        final FileHashIndex index = new FileHashIndex();
+        index.put("/keep", 1, 1, 1);
+        index.put("/gone", 1, 1, 1);
+        index.retainIf(key -> key.startsWith("/keep"));
+        assertThat(index.keys().size(), is(1));
+        assertThat(index.get("/gone").isPresent(), is(false));
+    }
+}
@@ -1,5 +1,6 @@
 package net.microstar.common.io;
 
+import net.microstar.common.io.FileTreeChangeDetector.Change;
 import net.microstar.common.io.FileTreeChangeDetector.ChangeType;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -9,6 +10,7 @@ import org.junit.jupiter.api.io.TempDir;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -192,6 +194,41 @@ class FileTreeChangeDetectorTest {
         }
     }
 
+    @Test void changesWhileNotWatchingShouldBeReportedFromHashIndex(@TempDir Path watchDir, @TempDir Path indexDir) throws IOException {
+        final Path indexFile = indexDir.resolve("hashes.idx");
+        final Path keptFile = Files.writeString(watchDir.resolve("kept"), "kept");
+        final Path touchedFile = Files.writeString(watchDir.resolve("touched"), "touched");
+        final Path changedFile = Files.writeString(watchDir.resolve("changed"), "changed");
+        final Path deletedFile = Files.writeString(watchDir.resolve("deleted"), "deleted");
+        final List<Change> changes = new CopyOnWriteArrayList<>();
+
+        final FileTreeChangeDetector first = new FileTreeChangeDetector(watchDir, (path, type) -> changes.add(new Change(path, type)))
+            .setHashIndex(new FileHashIndex(indexFile)).watch();
+        waitUntilCondition(() -> Files.exists(indexFile) && new FileHashIndex(indexFile).size() == 4);
+        first.close();
+        assertThat(changes, is(empty())); // first run: nothing to compare with
+
+        Files.setLastModifiedTime(touchedFile, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        Files.writeString(changedFile, "changed!");
+        Files.delete(deletedFile);
+        final Path createdFile = Files.writeString(watchDir.resolve("created"), "created");
+
+        final FileTreeChangeDetector second = new FileTreeChangeDetector(watchDir, (path, type) -> changes.add(new Change(path, type)))
+            .setHashIndex(new FileHashIndex(indexFile)).watch();
+        try {
+            waitUntilCondition(() -> changes.size() >= 3);
+            sleep(50); // wait a bit for any more events (there shouldn't be any)
+            assertThat(Set.copyOf(changes), is(Set.of(
+                new Change(changedFile, MODIFIED),
+                new Change(createdFile, CREATED),
+                new Change(deletedFile.toAbsolutePath().normalize(), DELETED)
+            )));
+            assertThat(changes.stream().noneMatch(c -> c.path().equals(keptFile) || c.path().equals(touchedFile)), is(true));
+        } finally {
+            second.close();
+        }
+    }
+
 
     private static List<String> rel(Path tempDir, Set<Path> paths) {
         return paths.stream()
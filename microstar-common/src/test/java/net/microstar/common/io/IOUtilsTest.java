@@ -160,6 +160,68 @@ class IOUtilsTest {
         assertThat(Files.exists(tempFile), is(false));
     }
 
+    @Test void testSizeAndCountOf() {
+        createTestData(testDir, List.of(
+            "/dir/file1.txt:1",
+            "/dir/empty/",
+            "/dir/deeper/file2.txt:22",
+            "/dir/deeper/deeper2/file3.txt:333",
+            "/dir/deeper/deeper2/file4.txt:4444"
+        ));
+        assertThat(IOUtils.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 10, 4 }));
+        assertThat(IOUtils.sizeAndCountOf(testDir.resolve("dir/deeper/file2.txt")), is(new long[] { 2, 1 }));
+        assertThat(IOUtils.sizeAndCountOf(testDir.resolve("nonExisting")), is(new long[] { 0, 0 }));
+        assertThat(IOUtils.listDeep(testDir.resolve("dir")).size(), is(7)); // 3 dirs, 4 files
+    }
+    @Test void directorySizeIndexShouldBeInvalidatedByChanges() throws IOException {
+        createTestData(testDir, List.of(
+            "/dir/file1.txt:1",
+            "/dir/deeper/file2.txt:22"
+        ));
+        final DirectorySizeIndex index = new DirectorySizeIndex();
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 3, 2 }));
+
+        final Path file3 = Files.writeString(testDir.resolve("dir/deeper/file3.txt"), "333");
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 3, 2 })); // not invalidated yet
+        index.invalidate(file3);
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 6, 3 }));
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir/deeper")), is(new long[] { 5, 2 }));
+    }
+
+    @Test void linkedDirectoriesShouldBeFollowedWithoutLooping() throws IOException {
+        if(IS_WINDOWS) return; // creating symbolic links requires privileges on Windows
+        createTestData(testDir, List.of(
+            "/dir/file1.txt:1",
+            "/other/file2.txt:22"
+        ));
+        Files.createSymbolicLink(testDir.resolve("dir/linkToOther"), testDir.resolve("other"));
+        Files.createSymbolicLink(testDir.resolve("dir/linkToSelf"), testDir.resolve("dir"));
+
+        assertThat(IOUtils.listDeep(testDir.resolve("dir")).stream().map(p -> testDir.resolve("dir").relativize(p).toString()).sorted().toList(),
+            is(List.of("file1.txt", "linkToOther", "linkToOther/file2.txt"))); // the cycle is skipped
+        assertThat(IOUtils.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 3, 2 }));
+        assertThat(new DirectorySizeIndex().sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 3, 2 }));
+    }
+    @Test void directorySizeIndexShouldBeBounded() {
+        createTestData(testDir, List.of(
+            "/dir/a/file1.txt:1",
+            "/dir/b/file2.txt:22",
+            "/dir/c/file3.txt:333"
+        ));
+        final DirectorySizeIndex index = new DirectorySizeIndex(4);
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 6, 3 }));
+        assertThat(index.size(), is(4));
+
+        // When full, the least recently used directories are evicted instead of everything
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 6, 3 }));
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir/a")), is(new long[] { 1, 1 }));
+        createTestData(testDir, List.of("/other/d/file4.txt:4444"));
+        assertThat(index.sizeAndCountOf(testDir.resolve("other/d")), is(new long[] { 4, 1 }));
+        assertThat(index.size(), is(4));
+        assertThat(index.sizeAndCountOf(testDir.resolve("dir")), is(new long[] { 6, 3 }));
+        assertThat(index.size(), is(4)); // dir was still known
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private static void createTestData(Path root, List<String> targets) {
         targets.stream()
@@ -13,6 +13,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -124,6 +125,49 @@ class JarHashTest {
 
         assertThat(hash2, is(hash1));
     }
+    @Test void snapshotLibrariesInMetaInfShouldBeIgnored() throws IOException {
+        final Path zipFile = createTempZip("rootFile.txt", "META-INF/maven/");
+        final long hashWithout = new JarHash(zipFile).id;
+        addToZip(zipFile, "META-INF/maven/some-library-SNAPSHOT.jar", createTempZip("deepRootFile.txt"));
+
+        assertThat(new JarHash(zipFile).id, is(hashWithout));
+    }
+    @Test void largeSnapshotLibrariesShouldBeStreamed() throws IOException {
+        final Path zipFile = createTempZip("rootFile.txt", "BOOT-INF/lib/");
+        addToZip(zipFile, "BOOT-INF/lib/just-built-library-SNAPSHOT.jar", createTempZip(
+            "deepRootFile.txt",
+            "BOOT-INF/classes/deepA.class"
+        ));
+        final Path copy = Files.copy(zipFile, tempDir.resolve("copy.jar"));
+        final long inMemoryHash = new JarHash(zipFile).id;
+
+        final long oldMax = JarHash.maxInMemoryNestedSize;
+        JarHash.maxInMemoryNestedSize = 0;
+        try {
+            assertThat(new JarHash(copy).id, is(inMemoryHash));
+        } finally {
+            JarHash.maxInMemoryNestedSize = oldMax;
+        }
+    }
+    @Test void unreadableSnapshotLibraryShouldOnlyIgnoreThatLibrary() throws IOException {
+        final long hashWithout = createZipIdFor("rootFile.txt", "BOOT-INF/classes/SomeClassA.class");
+        assertThat(createZipIdFor("rootFile.txt", "BOOT-INF/classes/SomeClassA.class", "BOOT-INF/lib/not-a-zip-SNAPSHOT.jar"), is(hashWithout));
+    }
+    @Test void failedHashShouldNotBeCached() throws IOException {
+        final Path zipFile = createTempZip("rootFile.txt");
+        final byte[] zipData = Files.readAllBytes(zipFile);
+        final FileTime time = Files.getLastModifiedTime(zipFile);
+        final long hash = new JarHash(zipFile).id;
+
+        final Path otherFile = tempDir.resolve("other.jar");
+        Files.write(otherFile, new byte[zipData.length]); // not a zip
+        Files.setLastModifiedTime(otherFile, time);
+        assertThat(new JarHash(otherFile).id, is(0L));
+
+        Files.write(otherFile, zipData); // same size and time as the failed one
+        Files.setLastModifiedTime(otherFile, time);
+        assertThat(new JarHash(otherFile).id, is(hash));
+    }
     @Test void hashingShouldBeFast() {
         final AtomicInteger count = new AtomicInteger(0);
         final AtomicLong time = new AtomicLong(0);
@@ -174,7 +218,7 @@ class JarHashTest {
         fileStream.close();
         return file;
     }
-    private static void addToZip(Path zipPath, @SuppressWarnings("SameParameterValue") String nameToUse, Path fileToAdd) throws IOException {
+    private static void addToZip(Path zipPath, String nameToUse, Path fileToAdd) throws IOException {
         final Map<String,String> env = new HashMap<>();
         env.put("create", "false"); // We don't create the file but modify it
 
@@ -0,0 +1,49 @@
+package net.microstar.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class LongRingBufferTest {
+
+    @Test void emptyShouldReturnDefaults() {
+        final LongRingBuffer ring = new LongRingBuffer(3);
+        assertThat(ring.isEmpty(), is(true));
+        assertThat(ring.latest(-1), is(-1L));
+        assertThat(ring.oldest(-1), is(-1L));
+        assertThat(ring.min(-1), is(-1L));
+        assertThat(ring.max(-1), is(-1L));
+        assertThat(ring.toArray(), is(new long[0]));
+    }
+    @Test void shouldKeepLastValues() {
+        final LongRingBuffer ring = new LongRingBuffer(3);
+        ring.add(5);
+        ring.add(2);
+        assertThat(ring.size(), is(2));
+        assertThat(ring.toArray(), is(new long[] { 5, 2 }));
+        ring.add(7);
+        ring.add(9);
+        assertThat(ring.size(), is(3));
+        assertThat(ring.toArray(), is(new long[] { 2, 7, 9 }));
+        assertThat(ring.latest(-1), is(9L));
+        assertThat(ring.oldest(-1), is(2L));
+        assertThat(ring.min(-1), is(2L));
+        assertThat(ring.max(-1), is(9L));
+    }
+    @Test void copyToSmallerTargetShouldCopyNewest() {
+        final LongRingBuffer ring = new LongRingBuffer(4);
+        for(int i=1; i<=6; i++) ring.add(i);
+        final long[] target = new long[2];
+        assertThat(ring.copyTo(target), is(2));
+        assertThat(target, is(new long[] { 5, 6 }));
+    }
+    @Test void clearShouldEmpty() {
+        final LongRingBuffer ring = new LongRingBuffer(2);
+        ring.add(1);
+        ring.clear();
+        assertThat(ring.isEmpty(), is(true));
+        ring.add(3);
+        assertThat(ring.toArray(), is(new long[] { 3 }));
+    }
+}
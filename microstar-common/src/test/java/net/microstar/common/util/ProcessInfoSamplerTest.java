@@ -0,0 +1,37 @@
+package net.microstar.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessInfoSamplerTest {
+
+    @Test void latestShouldBeAvailable() {
+        final ProcessInfo info = ProcessInfo.getLatest();
+        assertThat(info.pid, is((int)ProcessHandle.current().pid()));
+        assertTrue(info.heapUsed.compareTo(info.heapSize) <= 0);
+        assertTrue(info.threadCount > 0);
+    }
+    @Test void fastSampleShouldAddToHistories() {
+        final ProcessInfoSampler sampler = ProcessInfoSampler.get();
+        sampler.sampleFast();
+        assertTrue(sampler.heapUsedHistory.latest(-1) > 0);
+        assertTrue(sampler.threadCountHistory.latest(-1) > 0);
+    }
+    @Test void updateShouldSampleEvenWhenAnotherSampleIsRunning() throws InterruptedException {
+        final ProcessInfoSampler sampler = ProcessInfoSampler.get();
+        final Thread other = new Thread(() -> { for(int i = 0; i < 20; i++) sampler.sampleSlow(); });
+        other.start();
+        for(int i = 0; i < 20; i++) {
+            final LocalDateTime beforeUpdate = LocalDateTime.now();
+            ProcessInfo.update();
+            assertFalse(ProcessInfo.getLatest().timestamp.isBefore(beforeUpdate));
+        }
+        other.join();
+    }
+}
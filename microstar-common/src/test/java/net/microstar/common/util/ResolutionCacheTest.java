@@ -0,0 +1,50 @@
+package net.microstar.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ResolutionCacheTest {
+
+    @Test void changedDependencyShouldInvalidate() {
+        final ResolutionCache<String> cache = new ResolutionCache<>(10);
+        cache.put("a", "aValue", Set.of("dir/a.txt", "other.txt"), cache.getGeneration());
+        cache.put("b", "bValue", Set.of("dir/b.txt"), cache.getGeneration());
+
+        cache.invalidate(List.of("other.txt"));
+        assertThat(cache.get("a"), is(Optional.empty()));
+        assertThat(cache.get("b"), is(Optional.of("bValue")));
+    }
+    @Test void changedDirectoryShouldInvalidateWhatIsBelow() {
+        final ResolutionCache<String> cache = new ResolutionCache<>(10);
+        cache.put("a", "aValue", Set.of("dir/sub/a.txt"), cache.getGeneration());
+        cache.put("b", "bValue", Set.of("dirb/b.txt"), cache.getGeneration());
+
+        cache.invalidate(List.of("dir"));
+        assertThat(cache.get("a"), is(Optional.empty()));
+        assertThat(cache.get("b"), is(Optional.of("bValue")));
+    }
+    @Test void valueResolvedDuringInvalidationShouldNotBeStored() {
+        final ResolutionCache<String> cache = new ResolutionCache<>(10);
+        final long generation = cache.getGeneration();
+        cache.invalidate(List.of("a.txt"));
+        cache.put("a", "aValue", Set.of("a.txt"), generation);
+        assertThat(cache.get("a"), is(Optional.empty()));
+    }
+    @Test void leastRecentlyUsedShouldBeEvicted() {
+        final ResolutionCache<String> cache = new ResolutionCache<>(2);
+        cache.put("a", "aValue", Set.of("a.txt"), cache.getGeneration());
+        cache.put("b", "bValue", Set.of("b.txt"), cache.getGeneration());
+        cache.get("a");
+        cache.put("c", "cValue", Set.of("c.txt"), cache.getGeneration());
+
+        assertThat(cache.get("a"), is(Optional.of("aValue")));
+        assertThat(cache.get("b"), is(Optional.empty()));
+        assertThat(cache.get("c"), is(Optional.of("cValue")));
+    }
+}
@@ -10,6 +10,7 @@ import net.microstar.spring.settings.PropsMap;
 import javax.annotation.Nullable;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -25,6 +26,7 @@ import static java.util.function.Predicate.not;
 public class SettingsCollector {
     private static final Pattern COMMA_SPLIT_PATTERN = Pattern.compile("\\s*,\\s*");
     private final SettingsRepository repo;
+    private final Set<String> probedNames = new LinkedHashSet<>();
 
     public static final class OrderedSettings {
         public final ImmutableSet<String> files;
@@ -87,10 +89,16 @@ public class SettingsCollector {
             .reduce(new OrderedSettings(), OrderedSettings::combine);
     }
 
+    /** Names of the settings files that were looked for by this collector so far, whether they existed or not */
+    public ImmutableSet<String> getProbedNames() {
+        return ImmutableSet.copyOf(probedNames);
+    }
+
     private Optional<String> getResourceForName(String... parts) {
         return Optional.of(String.join("-", parts))
             .flatMap(s -> Stream.of("", ".yml", ".yaml", ".properties") // include empty in case ext is already given
                 .map(ext -> (ext.isEmpty() ? s : s.replaceFirst("\\.[^.]+$", "") + ext)) // ext replaces existing ext (e.g .yml vs .yaml)
+                .peek(probedNames::add) // a file that is created later may change the result
                 .filter(repo::hasResourceWithName)
                 .findFirst()
             );
@@ -13,6 +13,7 @@ import net.microstar.common.io.IOUtils;
 import net.microstar.common.model.ServiceId;
 import net.microstar.common.util.DynamicReferenceNotNull;
 import net.microstar.common.util.ImmutableUtil;
+import net.microstar.common.util.ResolutionCache;
 import net.microstar.common.util.Threads;
 import net.microstar.common.util.VersionComparator;
 import net.microstar.dispatcher.model.RelayRequest;
@@ -70,11 +71,15 @@ public class SettingsRepository implements Closeable {
     static final String CURRENT_DIR_NAME = "current";
     static final String HISTORY_DIR_NAME = "history";
     private static final String DATASTORE_NAME = "settings";
+    private static final int MAX_COMBINED_SETTINGS_COUNT = 1000;
     private static final DynamicPropertiesRef<SettingsProperties> settings = DynamicPropertiesRef.of(SettingsProperties.class);
     private final DispatcherService dispatcher;
     private final SettingsSyncer syncer;
     private final DynamicReferenceNotNull<DataStore> dataStoreRef;
     private final MiniBus miniBus;
+    /** Combined settings per service and profiles, depending on the names of the settings files that were looked at */
+    private final ResolutionCache<SettingsCollector.OrderedSettings> combinedSettingsCache = new ResolutionCache<>(MAX_COMBINED_SETTINGS_COUNT);
+    private Runnable stopListeningToStore = () -> {};
 
     @EqualsAndHashCode
     private static class ServiceRef {
@@ -94,6 +99,8 @@ public class SettingsRepository implements Closeable {
         this.miniBus = miniBus;
         this.syncer = new SettingsSyncer(this, dispatcher);
         this.dataStoreRef = DataStores.get(DATASTORE_NAME);
+        listenToStore();
+        DataStores.addStoreChangeListener(DATASTORE_NAME, this::listenToStore);
 
         final BlockingDataStore store = getStore();
 
@@ -128,6 +135,7 @@ public class SettingsRepository implements Closeable {
     @Override @PreDestroy
     public void close() {
         log.info("Closing SettingsRepository...");
+        stopListeningToStore.run();
         DataStores.close(dataStoreRef);
         log.info("Closing SettingsRepository finished");
     }
@@ -172,6 +180,7 @@ public class SettingsRepository implements Closeable {
             ex -> new FatalException("Unable to write file " + name, ex));
 
         log.info(username + " stores file " + name);
+        invalidateCombinedSettings(List.of(name));
         fileHistory.addNewVersion(path, now(), username, CHANGED, message);
         updateServicesForChangedContent(name);
     }
@@ -206,6 +215,7 @@ public class SettingsRepository implements Closeable {
                     final String newHistoryPath = historyForName(newName).orElseThrow().directory;
                     getStore().move(oldHistoryPath, newHistoryPath); // first move history so moving the file won't be detected as a delete by the filesystem watcher
                     getStore().move(path, newPath);
+                    invalidateCombinedSettings(List.of(name, newName));
                     historyForName(newName)
                         .ifPresent(fileHistory ->
                             fileHistory.addNewVersion(newPath, now(), username, RENAMED, null)
@@ -222,6 +232,7 @@ public class SettingsRepository implements Closeable {
             .map(path -> getStore().remove(path))
             .filter(result -> {
                 log.info("User {} deleted {}", username, name);
+                invalidateCombinedSettings(List.of(name));
                 historyForName(name)
                     .ifPresent(fileHistory ->
                         fileHistory.addNewVersion(pathForCurrentNewName(name).orElseThrow(), now(), username, DELETED, null)
@@ -243,6 +254,7 @@ public class SettingsRepository implements Closeable {
 
         final String content = fileHistory.getContentOf(fileVersion);
         rethrow(() -> getStore().write(restoredFilePath, content), ex -> new FatalException("Unable to write to file " + name + ": " + ex.getMessage()));
+        invalidateCombinedSettings(List.of(name));
         fileHistory.addNewVersion(restoredFilePath, now(), username, RESTORED, null);
         log.info("User {} restored {}", username, name);
         updateServicesForChangedContent(name);
@@ -258,7 +270,14 @@ public class SettingsRepository implements Closeable {
     }
 
     public PropsMap getCombinedSettings(UUID serviceInstanceId, ServiceId serviceId, ImmutableList<String> profiles) {
-        final SettingsCollector.OrderedSettings orderedSettings = new SettingsCollector(this).getOrderedSettings(serviceId, profiles);
+        final String cacheKey = serviceId.combined + "|" + String.join(",", profiles);
+        final long generation = combinedSettingsCache.getGeneration();
+        final SettingsCollector.OrderedSettings orderedSettings = combinedSettingsCache.get(cacheKey).orElseGet(() -> {
+            final SettingsCollector collector = new SettingsCollector(this);
+            final SettingsCollector.OrderedSettings collected = collector.getOrderedSettings(serviceId, profiles);
+            combinedSettingsCache.put(cacheKey, collected, collector.getProbedNames().stream().map(SettingsRepository::settingsNameOf).collect(Collectors.toSet()), generation);
+            return collected;
+        });
 
         if(!UUID_ZERO.equals(serviceInstanceId)) addServiceDependencies(serviceInstanceId, serviceId, orderedSettings.files);
         return orderedSettings.settings;
@@ -383,6 +402,20 @@ public class SettingsRepository implements Closeable {
         return noCheckedThrow(() -> dataStoreRef.get().list(name, recursive).get()).stream();
     }
 
+    /** Changes in the store, also external ones, invalidate the combined settings that depend on them */
+    private synchronized void listenToStore() {
+        stopListeningToStore.run();
+        stopListeningToStore = dataStoreRef.get().onChange(this::invalidateCombinedSettings);
+        combinedSettingsCache.clear();
+    }
+    private void invalidateCombinedSettings(List<String> changedNamesOrPaths) {
+        combinedSettingsCache.invalidate(changedNamesOrPaths.stream().map(SettingsRepository::settingsNameOf).toList());
+    }
+    /** Settings names are relative to the current directory (e.g. 'current/services.yml' is 'services.yml') */
+    private static String settingsNameOf(String nameOrPath) {
+        return nameOrPath.replaceFirst("^/+", "").replaceFirst("^" + CURRENT_DIR_NAME + "/+", "");
+    }
+
     /**
      * This method should be called when the datastore is updated by an external change.
      * Such an external change could be a filesystem listener that detects a filesystem
@@ -393,6 +426,7 @@ public class SettingsRepository implements Closeable {
     public void handleDataStoreChange(String name) {
         final String path = name.replaceFirst("^/+","").startsWith(CURRENT_DIR_NAME) ? name : concatPath(CURRENT_DIR_NAME, name);
         if(IOUtils.isProbablyTempFile(path)) return;
+        invalidateCombinedSettings(List.of(path)); // also when history is already up-to-date, like after a sync
         final BlockingDataStore store = getStore();
         final String relPath = store.normalizePath(path).replaceFirst("^/" + CURRENT_DIR_NAME + "/+", "/");
 
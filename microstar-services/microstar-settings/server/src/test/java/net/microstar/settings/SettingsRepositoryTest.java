@@ -1,7 +1,9 @@
 package net.microstar.settings;
 
+import com.google.common.collect.ImmutableList;
 import lombok.extern.slf4j.Slf4j;
 import net.microstar.common.datastore.DataStore;
+import net.microstar.common.model.ServiceId;
 import net.microstar.common.util.ImmutableUtil;
 import net.microstar.dispatcher.model.RelayRequest;
 import net.microstar.dispatcher.model.RelayResponse;
@@ -30,13 +32,16 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static net.microstar.common.MicroStarConstants.UUID_ZERO;
 import static net.microstar.common.io.IOUtils.concatPath;
 import static net.microstar.settings.FileHistory.ActionType.DELETED;
 import static net.microstar.settings.FileHistory.ActionType.RESTORED;
 import static net.microstar.settings.SettingsRepository.CURRENT_DIR_NAME;
 import static net.microstar.settings.SettingsRepository.HISTORY_DIR_NAME;
+import static net.microstar.testing.TestUtils.waitUntilCondition;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -193,6 +198,36 @@ class SettingsRepositoryTest {
         assertThat(repo.getContentsOf(filename, 2), is(fileContents2));
         assertThrows(NotFoundException.class, () -> repo.getContentsOf(filename, 3));
     }
+    @Test void combinedSettingsShouldChangeWhenDependenciesChange() throws ExecutionException, InterruptedException {
+        final ServiceId serviceId = ServiceId.of("main/reflector");
+        final Supplier<PropsMap> combined = () -> repo.getCombinedSettings(UUID_ZERO, serviceId, ImmutableList.of("dev"));
+        repo.store("services.yml", "a: 1\nspring.config.import: common", "username", null);
+        assertThat(combined.get().get("a"), is(Optional.of(1)));
+        assertThat(combined.get().get("b").isPresent(), is(false));
+
+        repo.store("common.yml", "b: 2", "username", null); // imported but did not exist yet
+        assertThat(combined.get().get("b"), is(Optional.of(2)));
+
+        repo.store("reflector-dev.yml", "a: 3", "username", null); // probed but did not exist yet
+        assertThat(combined.get().get("a"), is(Optional.of(3)));
+
+        write("common.yml", "b: 4"); // external change
+        repo.handleDataStoreChange("common.yml");
+        assertThat(combined.get().get("b"), is(Optional.of(4)));
+
+        repo.delete("reflector-dev.yml", "username");
+        assertThat(combined.get().get("a"), is(Optional.of(1)));
+    }
+    @Test void combinedSettingsShouldChangeWhenStoreIsChangedExternally() throws ExecutionException, InterruptedException {
+        final ServiceId serviceId = ServiceId.of("main/reflector");
+        final Supplier<PropsMap> combined = () -> repo.getCombinedSettings(UUID_ZERO, serviceId, ImmutableList.of("dev"));
+        repo.store("services.yml", "a: 1", "username", null);
+        assertThat(combined.get().get("a"), is(Optional.of(1)));
+
+        write("services.yml", "a: 2"); // not via the repository and not reported to it
+        waitUntilCondition(() -> combined.get().get("a").equals(Optional.of(2)));
+        assertThat(combined.get().get("a"), is(Optional.of(2)));
+    }
     @Test void deleteShouldRemoveFile() {
         final String filename = "test.txt";
         final String fileContents1 = "foo bar test text";
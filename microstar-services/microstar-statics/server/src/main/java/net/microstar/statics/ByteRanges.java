@@ -0,0 +1,117 @@
+package net.microstar.statics;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+
+/** Parsing of the Range request header and helpers for the (multipart/byteranges) partial responses */
+final class ByteRanges {
+    private ByteRanges() {}
+    private static final Pattern RANGE_SPEC = Pattern.compile("(\\d*)-(\\d*)");
+    private static final int MAX_RANGES = 64; // more is probably abuse: serve everything instead
+
+    /** Inclusive byte range */
+    record Range(long start, long end) {
+        long length() { return end - start + 1; }
+        String contentRange(long size) { return "bytes " + start + "-" + end + "/" + size; }
+    }
+
+    /** Satisfiable ranges of given Range header value for data of given size, ordered and with overlapping
+      * ranges joined. Empty list when none of the ranges is satisfiable. Empty when the header value is
+      * invalid or unsupported, in which case it should be ignored (and the full data returned).
+      */
+    static Optional<List<Range>> parse(String headerValue, long size) {
+        final String value = headerValue.trim();
+        if(!value.regionMatches(true, 0, "bytes=", 0, 6)) return Optional.empty();
+        final String[] specs = value.substring(6).split(",");
+        if(specs.length > MAX_RANGES) return Optional.empty();
+
+        final List<Range> ranges = new ArrayList<>();
+        for(final String spec : specs) {
+            final Matcher matcher = RANGE_SPEC.matcher(spec.trim());
+            if(!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) return Optional.empty();
+            final Optional<Long> first = parseLong(matcher.group(1));
+            final Optional<Long> last  = parseLong(matcher.group(2));
+            if((!matcher.group(1).isEmpty() && first.isEmpty()) || (!matcher.group(2).isEmpty() && last.isEmpty())) return Optional.empty();
+
+            if(first.isPresent()) {
+                if(last.isPresent() && last.get() < first.get()) return Optional.empty();
+                if(first.get() < size) ranges.add(new Range(first.get(), Math.min(last.orElse(size - 1), size - 1)));
+            } else {
+                final long suffixLength = last.orElse(0L);
+                if(suffixLength > 0 && size > 0) ranges.add(new Range(Math.max(0, size - suffixLength), size - 1));
+            }
+        }
+        return Optional.of(join(ranges));
+    }
+
+    private static List<Range> join(List<Range> ranges) {
+        final List<Range> joined = new ArrayList<>();
+        ranges.stream().sorted(Comparator.comparingLong(Range::start)).forEach(range -> {
+            final int lastIndex = joined.size() - 1;
+            if(lastIndex >= 0 && range.start <= joined.get(lastIndex).end + 1) {
+                joined.set(lastIndex, new Range(joined.get(lastIndex).start, Math.max(range.end, joined.get(lastIndex).end)));
+            } else {
+                joined.add(range);
+            }
+        });
+        return joined;
+    }
+    private static Optional<Long> parseLong(String s) {
+        return s.isEmpty() ? Optional.empty() : noThrow(() -> Long.parseLong(s));
+    }
+
+    static String newBoundary() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+    static byte[] partHeader(String boundary, MediaType contentType, Range range, long size) {
+        return ("\r\n--" + boundary + "\r\n"
+            + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+            + HttpHeaders.CONTENT_RANGE + ": " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+    static byte[] end(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Stream that ends after at most maxLength bytes of given stream. Closing it closes the given stream */
+    static InputStream limit(InputStream in, long maxLength) {
+        return new FilterInputStream(in) {
+            private long remaining = maxLength;
+
+            @Override public int read() throws IOException {
+                if(remaining <= 0) return -1;
+                final int b = super.read();
+                if(b >= 0) remaining--;
+                return b;
+            }
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                if(remaining <= 0) return -1;
+                final int count = super.read(b, off, (int)Math.min(len, remaining));
+                if(count > 0) remaining -= count;
+                return count;
+            }
+            @Override public long skip(long n) throws IOException {
+                final long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+            @Override public int available() throws IOException {
+                return (int)Math.min(super.available(), remaining);
+            }
+            @Override public boolean markSupported() { return false; }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package net.microstar.statics;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.microstar.common.util.ByteSize;
+import net.microstar.common.util.Cache;
+import org.springframework.http.MediaType;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+
+/** Compressed variants of resources, so compressible resources (like js, css, html) are compressed
+  * once instead of on every request. Variants are built on first request and kept in a memory cache
+  * instead of next to the originals so they won't show up in user listings or sync between stars.
+  * The ETag is part of the cache key, so a changed resource never gets an old variant.
+  */
+@Slf4j
+class CompressedVariants {
+    private static final long MIN_SIZE = 1024; // smaller gains too little to be worth the extra header
+    private static final long MAX_SIZE = ByteSize.ofMegabytes(16).getBytesLong();
+    private final Cache cache;
+    private final Map<String,Map<Encoding,String>> keysOfPath = new ConcurrentHashMap<>(); // to invalidate and rebuild when changed
+
+    @RequiredArgsConstructor
+    enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+        final String token;
+
+        /** Best encoding accepted by the given Accept-Encoding header value. Gzip is preferred when equal */
+        static Optional<Encoding> negotiate(@Nullable String acceptEncoding) {
+            if(acceptEncoding == null || acceptEncoding.isBlank()) return Optional.empty();
+            final Map<String,Double> qualities = new HashMap<>();
+            Arrays.stream(acceptEncoding.split(",")).map(String::trim).filter(s -> !s.isEmpty()).forEach(part -> {
+                final String[] nameAndParams = part.split(";");
+                final double q = Arrays.stream(nameAndParams).skip(1).map(String::trim)
+                    .filter(param -> param.startsWith("q="))
+                    .flatMap(param -> noThrow(() -> Double.parseDouble(param.substring(2))).stream())
+                    .findFirst().orElse(1d);
+                qualities.put(nameAndParams[0].trim().toLowerCase(), q);
+            });
+            return Arrays.stream(values())
+                .map(enc -> Map.entry(enc, qualities.getOrDefault(enc.token, qualities.getOrDefault("*", 0d))))
+                .filter(entry -> entry.getValue() > 0)
+                .max(Comparator.<Map.Entry<Encoding,Double>>comparingDouble(Map.Entry::getValue)
+                               .thenComparing(entry -> -entry.getKey().ordinal()))
+                .map(Map.Entry::getKey);
+        }
+
+        byte[] compress(byte[] data) {
+            final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(data.length / 3);
+            noCheckedThrow(() -> { try(final OutputStream out = wrap(bytesOut)) { out.write(data); } });
+            return bytesOut.toByteArray();
+        }
+        private OutputStream wrap(OutputStream out) throws IOException {
+            return this == GZIP ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+        }
+    }
+
+    CompressedVariants(ByteSize maxCacheSize) {
+        cache = Cache.using(Cache.Configuration.builder()
+            .maxMemSize(maxCacheSize)
+            .maxMemItemSize(maxCacheSize)
+            .build());
+    }
+
+    void close() {
+        cache.close();
+    }
+
+    static boolean isCompressible(MediaType type, long size) {
+        if(size < MIN_SIZE || size > MAX_SIZE) return false;
+        final String subtype = type.getSubtype().toLowerCase();
+        return "text".equalsIgnoreCase(type.getType())
+            || subtype.contains("javascript")
+            || subtype.contains("json")
+            || subtype.contains("xml")   // includes svg+xml
+            || subtype.equals("wasm");
+    }
+
+    /** Variant of the resource at given path with given (encoding specific) eTag. Builds the variant from
+      * the given data when not in the cache yet. Empty when the data could not be read.
+      */
+    CompletableFuture<Optional<byte[]>> get(Encoding encoding, String path, String eTag, Supplier<CompletableFuture<Optional<byte[]>>> data) {
+        final String cacheKey = eTag + ":" + path;
+        Optional.ofNullable(keysOfPath.computeIfAbsent(path, p -> new ConcurrentHashMap<>()).put(encoding, cacheKey))
+            .filter(oldKey -> !oldKey.equals(cacheKey))
+            .ifPresent(cache::invalidate);
+        return cache.getBytesAsFuture(cacheKey, key ->
+                encoding.compress(data.get().join().orElseThrow(() -> new IllegalStateException("No data for " + path))))
+            .thenApply(Optional::of)
+            .exceptionally(t -> {
+                log.debug("Unable to create {} variant of {}: {}", encoding.token, path, t.getMessage());
+                return Optional.empty();
+            });
+    }
+
+    /** Removes the variants of given path and returns their encodings, so they can be rebuilt */
+    Set<Encoding> remove(String path) {
+        final Map<Encoding,String> keys = Optional.ofNullable(keysOfPath.remove(path)).orElse(Map.of());
+        keys.values().forEach(cache::invalidate);
+        return keys.keySet();
+    }
+}
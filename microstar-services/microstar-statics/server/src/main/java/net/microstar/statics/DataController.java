@@ -18,8 +18,10 @@ import net.microstar.spring.webflux.dispatcher.client.DispatcherService;
 import net.microstar.statics.model.OverviewItem;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -33,6 +35,10 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
@@ -118,6 +124,40 @@ public class DataController {
         return Overview.list(/*includeCrc:*/false);
     }
 
+    /** Directory digests (with crc) so other stars can find what differs, see InitialSyncer */
+    @GetMapping("/list/digests")
+    public Mono<Map<String,String>> getDirectoryDigests() {
+        return Mono.fromCallable(() -> Overview.directoryDigests(Overview.list(/*includeCrc:*/true)))
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /** Items (with crc) directly in the given directories */
+    @PostMapping("/list/dirs")
+    public Mono<List<OverviewItem>> getOverviewOfDirectories(@RequestBody List<String> dirs) {
+        return Mono.fromCallable(() -> Overview.listDirectories(dirs))
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /** Delta of the given file against the given signatures of an old version of it, see DeltaTransfer */
+    @PostMapping("/delta/**")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getDelta(@WildcardParam String path, @RequestBody byte[] signaturesData) {
+        return Mono.fromFuture(filesRoot.get().readStream(path))
+            .flatMap(Mono::justOrEmpty)
+            .publishOn(Schedulers.boundedElastic())
+            .map(newData -> {
+                final Path deltaFile = IOUtils.createAndDeleteTempFile();
+                try(final InputStream in = newData; final OutputStream out = Files.newOutputStream(deltaFile)) {
+                    DeltaTransfer.writeDelta(in, DeltaTransfer.readSignatures(signaturesData), out);
+                } catch(final IOException e) {
+                    IOUtils.del(deltaFile);
+                    throw new IllegalStateException("Unable to create delta of " + path, e);
+                }
+                return ResponseEntity.ok().body(DataBufferUtils.read(deltaFile, new DefaultDataBufferFactory(), 64 * 1024)
+                    .doFinally(signal -> IOUtils.del(deltaFile)));
+            })
+            .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
     @PostMapping("/file-change/**")
     public Mono<Void> downloadAddedFile(@WildcardParam String pathText, ServerWebExchange exchange) {
         final String fromStar = Optional.ofNullable(exchange.getRequest().getHeaders().getFirst(HEADER_X_STAR_NAME)).orElseThrow();
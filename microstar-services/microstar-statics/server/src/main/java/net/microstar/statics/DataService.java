@@ -2,30 +2,51 @@ package net.microstar.statics;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import net.lingala.zip4j.ZipFile;
 import net.microstar.common.datastore.DataStore;
-import net.microstar.common.datastore.DataStoreUtils;
 import net.microstar.common.io.IOUtils;
+import net.microstar.common.util.ByteSize;
 import net.microstar.common.util.DynamicReferenceNotNull;
-import net.microstar.common.util.Threads;
 import net.microstar.dispatcher.model.RelayRequest;
 import net.microstar.spring.DataStores;
 import net.microstar.spring.WildcardParam;
 import net.microstar.spring.settings.DynamicPropertiesRef;
 import net.microstar.spring.webflux.EventEmitter;
 import net.microstar.spring.webflux.dispatcher.client.DispatcherService;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.http.codec.multipart.Part;
 import org.springframework.stereotype.Component;
 import org.springframework.util.MultiValueMap;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.attribute.FileTime;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import static net.microstar.common.util.ExceptionUtils.noThrow;
 import static net.microstar.common.util.ThreadUtils.debounce;
 
 @Slf4j
@@ -33,7 +54,12 @@ import static net.microstar.common.util.ThreadUtils.debounce;
 @RequiredArgsConstructor
 public class DataService {
     public static final String DATASTORE_NAME = "resources";
+    public static final String UPLOAD_PROGRESS_EVENT = "STATIC-UPLOAD-PROGRESS";
     private static final Duration EMIT_DEBOUNCE = Duration.ofSeconds(3);
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+    private static final int UPLOAD_BUFFER_COUNT = 8; // buffers of the upload stream that may be waiting in memory
+    private static final int UPLOAD_PIPE_SIZE = 64 * 1024;
+    private static final int MAX_PARALLEL_STAR_NOTIFICATIONS = 4;
     private final DynamicReferenceNotNull<DataStore> filesRoot = DataStores.get(DATASTORE_NAME);
     private final DynamicPropertiesRef<StaticsProperties> props = DynamicPropertiesRef.of(StaticsProperties.class);
     private final EventEmitter eventEmitter;
@@ -60,62 +86,137 @@ public class DataService {
         return filesRoot.get().remove(pathToDelete).thenRun(this::emitChanged);
     }
 
+    /** Streams the uploaded files (and the entries of uploaded zip files) straight into the store, so nothing is
+      * written to temp files and memory use doesn't depend on the upload size. Other stars are told to download
+      * each file as soon as it is stored (a few at a time) while the upload continues, without waiting for them.
+      * Progress is emitted as UPLOAD_PROGRESS_EVENT events.
+      */
     public Mono<Void> handleUpload(String targetDir, Mono<MultiValueMap<String, Part>> partsMap) {
-        final Path tempDir = IOUtils.createTempDir();
+        final UploadProgress progress = new UploadProgress(targetDir);
+        final Sinks.Many<String> storedPaths = Sinks.many().unicast().onBackpressureBuffer();
+        tellOtherStarsToDownload(storedPaths.asFlux());
         return partsMap
             .flatMapIterable(map -> map.toSingleValueMap().values())
             .filter(FilePart.class::isInstance)
             .map(FilePart.class::cast)
-            .flatMap(file -> {
-                final Path targetFile = tempDir.resolve(file.filename());
-                return file.transferTo(targetFile)
-                    .then(Mono.just(targetFile));
+            .concatMap(file -> store(file, targetDir, progress))
+            .doOnNext(storedPaths::tryEmitNext)
+            .doFinally(signal -> {
+                storedPaths.tryEmitComplete();
+                progress.done();
+                emitChanged();
             })
-            .doOnComplete(() -> handleUploadedFiles(tempDir, targetDir))
             .then();
     }
 
-    private void handleUploadedFiles(Path tempDir, String targetDir) {
-        Threads.execute(() -> {
-            // unzip
-            IOUtils.list(tempDir).stream()
-                .peek(path -> log.info("Added file: " + tempDir.relativize(path)))
-                .filter(path -> path.getFileName().toString().endsWith(".zip"))
-                .forEach(zipPath -> {
-                    log.info("Unzipping uploaded file '{}'", zipPath.getFileName());
-                    unzip(zipPath);
-                });
+    /** Stores the file, or its entries when it is a zip file. Emits the stored paths */
+    private Flux<String> store(FilePart file, String targetDir, UploadProgress progress) {
+        final boolean isZip = file.filename().toLowerCase(Locale.ROOT).endsWith(".zip");
+        return Flux.<String>create(sink -> {
+            try(final InputStream in = inputStreamOf(file.content())) {
+                if(isZip) {
+                    log.info("Unzipping uploaded file '{}'", file.filename());
+                    storeZipEntries(in, targetDir, progress, sink::next);
+                } else {
+                    sink.next(store(in, IOUtils.concatPath(targetDir, safeName(file.filename())), Instant.now(), progress));
+                }
+                sink.complete();
+            } catch(final Exception ex) {
+                log.warn("Failed to store uploaded file {}", file.filename(), ex);
+                sink.error(ex);
+            }
+        }).subscribeOn(Schedulers.boundedElastic()); // reading the upload stream blocks
+    }
+    /** Blocking stream of the given data. The data is written into a pipe of limited size from another thread
+      * (not the thread that delivers the data, which should not block), with a limited number of buffers
+      * waiting for that. A failure of the data is thrown by the stream instead of it just ending.
+      */
+    static InputStream inputStreamOf(Flux<DataBuffer> data) throws IOException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final PipedInputStream pipeIn = new PipedInputStream(UPLOAD_PIPE_SIZE);
+        final PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+        DataBufferUtils.write(data.publishOn(Schedulers.boundedElastic(), UPLOAD_BUFFER_COUNT), pipeOut)
+            .map(DataBufferUtils::release)
+            .doOnError(failure::set)
+            .doFinally(signal -> noThrow(pipeOut::close))
+            .subscribe(released -> {}, ex -> log.debug("Upload stream failed: {}", ex.getMessage()));
+        return new FilterInputStream(pipeIn) {
+            @Override public int read() throws IOException { return failedOr(super.read()); }
+            @Override public int read(byte[] b, int off, int len) throws IOException { return failedOr(super.read(b, off, len)); }
+            private int failedOr(int result) throws IOException {
+                if(result < 0 && failure.get() != null) throw new IOException("Upload failed", failure.get());
+                return result;
+            }
+        };
+    }
+    private void storeZipEntries(InputStream in, String targetDir, UploadProgress progress, Consumer<String> storedPaths) throws IOException {
+        final ZipInputStream zipIn = new ZipInputStream(in);
+        final InputStream entryIn = new FilterInputStream(zipIn) { @Override public void close() { /* next entry follows */ } };
+        for(ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+            if(entry.isDirectory()) continue; // DataStores don't support empty directories
+            final Instant time = Optional.ofNullable(entry.getLastModifiedTime()).map(FileTime::toInstant).orElseGet(Instant::now);
+            storedPaths.accept(store(entryIn, IOUtils.concatPath(targetDir, safeName(entry.getName())), time, progress));
+        }
+    }
+    private String store(InputStream in, String path, Instant time, UploadProgress progress) {
+        final AtomicLong sizeDone = new AtomicLong();
+        final boolean stored = filesRoot.get().write(path, in, time, size -> progress.addBytes(size - sizeDone.getAndSet(size))).join();
+        if(!stored) throw new IllegalStateException("Failed to store " + path);
+        progress.addFile(path);
+        return path;
+    }
+    /** Names in an upload (of files or zip entries) should not point outside the target directory */
+    static String safeName(String name) {
+        final String path = name.replace("\\", "/").replaceFirst("^/+", "");
+        if(Arrays.asList(path.split("/")).contains("..")) throw new IllegalArgumentException("Illegal name in upload: " + name);
+        return path;
+    }
 
-            // copy files to datastore
-            log.info("Storing uploaded files in {}", targetDir);
-            final CompletableFuture<Boolean> copyToStore = DataStoreUtils.copy(tempDir, filesRoot.get(), targetDir);
+    private void tellOtherStarsToDownload(Flux<String> storedPaths) {
+        storedPaths
+            .filter(path -> props.get().syncBetweenStars)
+            .flatMap(path -> dispatcher.relay(RelayRequest
+                    .forThisService()
+                    .servicePath(IOUtils.concatPath("file-change", path))
+                    .build(), Void.class)
+                .doOnSubscribe(s -> log.info("Tell other stars to download {}", path))
+                .onErrorResume(ex -> { log.warn("Failed to tell other stars to download {}: {}", path, ex.getMessage()); return Mono.empty(); })
+                .then(), MAX_PARALLEL_STAR_NOTIFICATIONS)
+            .subscribe();
+    }
 
-            copyToStore
-                .thenRun(() -> {
-                    syncBetweenStars(tempDir, targetDir);
+    /** Progress of an upload, emitted as event at most once per PROGRESS_INTERVAL and when done */
+    private final class UploadProgress {
+        private final String id = UUID.randomUUID().toString();
+        private final String targetDir;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicBoolean isDone = new AtomicBoolean();
 
-                    IOUtils.delTree(tempDir);
-                    emitChanged();
-                });
-        });
-    }
-    private void unzip(Path zipPath) {
-        try(final ZipFile zipFile = new ZipFile(zipPath.toFile())) {
-            zipFile.extractAll(zipPath.getParent().toAbsolutePath().toString());
-            Files.delete(zipPath);
-        } catch(final Exception ex) {
-            log.warn("Failed to unzip {}", zipPath.getFileName(), ex);
+        UploadProgress(String targetDir) { this.targetDir = targetDir; }
+
+        void addBytes(long count) {
+            bytes.addAndGet(count);
+            debounce("upload-progress:" + id, PROGRESS_INTERVAL, PROGRESS_INTERVAL, () -> emit(false));
         }
-    }
-    private void syncBetweenStars(Path tempDir, String targetDir) {
-        if(props.get().syncBetweenStars) {
-            final List<Path> uploadedFiles = IOUtils.list(tempDir);
-            log.info("Tell other stars to download the files: {}", uploadedFiles.stream().map(tempDir::relativize).toList());
-            uploadedFiles.forEach(name -> dispatcher.relay(RelayRequest
-                .forThisService()
-                .servicePath(IOUtils.concatPath("file-change", targetDir, tempDir.relativize(name)))
-                .build(), Void.class
-            ).then().block());
+        void addFile(String path) {
+            files.incrementAndGet();
+            log.info("Stored uploaded file: {}", path);
+        }
+        void done() {
+            if(isDone.getAndSet(true)) return;
+            log.info("Upload of {} files ({}) to '{}' finished", files.get(), ByteSize.ofBytes(bytes.get()), targetDir);
+            emit(true);
+        }
+        private void emit(boolean done) {
+            if(isDone.get() != done) return; // late progress after done
+            eventEmitter.next(UPLOAD_PROGRESS_EVENT, Map.of(
+                "id", id,
+                "targetDir", targetDir,
+                "files", String.valueOf(files.get()),
+                "bytes", String.valueOf(bytes.get()),
+                "done", String.valueOf(done)
+            ));
         }
     }
 }
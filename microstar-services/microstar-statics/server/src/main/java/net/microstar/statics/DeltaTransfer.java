@@ -0,0 +1,220 @@
+package net.microstar.statics;
+
+import net.microstar.common.datastore.DataStore;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Rsync-like transfer of only the changed parts of a file:<pre>
+  *
+  * - The receiver, that has an old version of the file, sends signatures of its blocks (see signaturesOf)
+  * - The sender, that has the new version, rolls a weak checksum over its data to find blocks the receiver
+  *   already has and sends a delta of block references and literal data (see writeDelta)
+  * - The receiver rebuilds the new version from its old blocks and the literal data (see applyDelta)
+  * </pre>
+  * The receiver should check the result (e.g. the crc) because the strong hashes are truncated.
+  */
+final class DeltaTransfer {
+    private DeltaTransfer() {}
+    static final long MIN_FILE_SIZE = 1024 * 1024; // smaller files are cheaper to send completely
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024; // files up to 256GB, and a peer can't make us allocate more
+    private static final int MAX_BLOCK_COUNT = 16 * 1024; // keeps the signatures small enough for a single request body
+    private static final int MAX_LITERAL_SIZE = 64 * 1024;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+
+    record Signatures(int blockSize, Map<Integer,List<Block>> blocksOfWeak) {}
+    record Block(int index, long strong) {}
+
+    static int blockSizeFor(long size) {
+        return (int)Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, (size + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT));
+    }
+
+    /** Weak and strong checksum of every full block of the given (old) data */
+    static byte[] signaturesOf(InputStream oldData, int blockSize) throws IOException {
+        final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytesOut);
+        final byte[] block = new byte[blockSize];
+        out.writeInt(blockSize);
+        while(oldData.readNBytes(block, 0, blockSize) == blockSize) {
+            out.writeInt(weakOf(block));
+            out.writeLong(strongOf(block, 0));
+        }
+        out.flush();
+        return bytesOut.toByteArray();
+    }
+
+    static Signatures readSignatures(byte[] signatures) throws IOException {
+        final ByteBuffer in = ByteBuffer.wrap(signatures);
+        final int blockSize = in.getInt();
+        if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) throw new IOException("Invalid block size: " + blockSize);
+        final Map<Integer,List<Block>> blocksOfWeak = new HashMap<>();
+        for(int index = 0; in.remaining() >= 12; index++) {
+            blocksOfWeak.computeIfAbsent(in.getInt(), w -> new ArrayList<>(1)).add(new Block(index, in.getLong()));
+        }
+        return new Signatures(blockSize, blocksOfWeak);
+    }
+
+    /** Writes how to build the given (new) data from the blocks of the signatures and literal data */
+    static void writeDelta(InputStream newDataIn, Signatures signatures, OutputStream deltaOut) throws IOException {
+        final int blockSize = signatures.blockSize;
+        final InputStream newData = new BufferedInputStream(newDataIn, 64 * 1024);
+        final DataOutputStream out = new DataOutputStream(deltaOut);
+        final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        final byte[] window = new byte[blockSize]; // ring buffer
+        int start = 0;
+        int count = newData.readNBytes(window, 0, blockSize);
+        final Rolling rolling = new Rolling(window, count);
+
+        while(count == blockSize) {
+            final int matchedIndex = findBlock(signatures, rolling.weak(), window, start);
+            if(matchedIndex >= 0) {
+                writeLiteral(out, literal);
+                out.writeByte(OP_COPY);
+                out.writeInt(matchedIndex);
+                start = 0;
+                count = newData.readNBytes(window, 0, blockSize);
+                rolling.reset(window, count);
+                continue;
+            }
+            final int next = newData.read();
+            literal.write(window[start]);
+            if(literal.size() >= MAX_LITERAL_SIZE) writeLiteral(out, literal);
+            if(next < 0) { // remaining bytes of window are literal
+                count--;
+                start = (start + 1) % blockSize;
+                break;
+            }
+            rolling.roll(window[start], (byte)next);
+            window[start] = (byte)next;
+            start = (start + 1) % blockSize;
+        }
+        for(int i = 0; i < count; i++) literal.write(window[(start + i) % blockSize]);
+        writeLiteral(out, literal);
+        out.writeByte(OP_END);
+        out.flush();
+    }
+
+    /** Writes the new data by applying the delta to the old data of given path in given store */
+    static void applyDelta(InputStream deltaIn, DataStore oldStore, String oldPath, int blockSize, OutputStream newData) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(deltaIn));
+        final byte[] block = new byte[blockSize];
+        try(final OldBlocks oldBlocks = new OldBlocks(oldStore, oldPath)) {
+            for(int op = in.readByte(); op != OP_END; op = in.readByte()) {
+                switch(op) {
+                    case OP_COPY -> {
+                        oldBlocks.read((long)in.readInt() * blockSize, block);
+                        newData.write(block);
+                    }
+                    case OP_LITERAL -> {
+                        final int length = in.readInt();
+                        if(length < 0 || length > MAX_LITERAL_SIZE) throw new IOException("Invalid literal length: " + length);
+                        newData.write(in.readNBytes(length));
+                    }
+                    default -> throw new IOException("Invalid delta operation: " + op);
+                }
+            }
+        }
+    }
+
+    /** Reads blocks of the old data. As most copied blocks follow the previous one, the stream of the old data
+      * is kept open and only skips forward. Only a block before the current position requires a new stream.
+      */
+    private static final class OldBlocks implements Closeable {
+        private final DataStore store;
+        private final String path;
+        private @Nullable InputStream in;
+        private long position;
+
+        OldBlocks(DataStore store, String path) { this.store = store; this.path = path; }
+
+        void read(long offset, byte[] block) throws IOException {
+            if(in == null || offset < position) {
+                close();
+                in = store.readStream(path, offset).join().orElseThrow(() -> new IOException(path + " is no longer available"));
+            } else {
+                in.skipNBytes(offset - position);
+            }
+            position = offset;
+            final int count = in.readNBytes(block, 0, block.length);
+            position += count;
+            if(count != block.length) throw new IOException("Block at " + offset + " of " + path + " is no longer available");
+        }
+        @Override public void close() throws IOException {
+            if(in != null) in.close();
+            in = null;
+        }
+    }
+
+    private static int findBlock(Signatures signatures, int weak, byte[] window, int start) {
+        final List<Block> candidates = signatures.blocksOfWeak.get(weak);
+        if(candidates == null) return -1;
+        final long strong = strongOf(window, start);
+        return candidates.stream().filter(block -> block.strong == strong).mapToInt(Block::index).findFirst().orElse(-1);
+    }
+    private static void writeLiteral(DataOutputStream out, ByteArrayOutputStream literal) throws IOException {
+        if(literal.size() == 0) return;
+        out.writeByte(OP_LITERAL);
+        out.writeInt(literal.size());
+        literal.writeTo(out);
+        literal.reset();
+    }
+
+    private static int weakOf(byte[] block) {
+        return new Rolling(block, block.length).weak();
+    }
+    /** First 64 bits of the sha-256 of the block that is stored in ring buffer starting at given index */
+    private static long strongOf(byte[] ring, int start) {
+        final MessageDigest digest = sha256();
+        digest.update(ring, start, ring.length - start);
+        digest.update(ring, 0, start);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e); // every JVM supports it
+        }
+    }
+
+    /** Adler-32 like checksum (as rsync uses) that can roll one byte at a time */
+    private static final class Rolling {
+        private int a;
+        private int b;
+        private int length;
+
+        Rolling(byte[] data, int count) { reset(data, count); }
+
+        void reset(byte[] data, int count) {
+            a = 0;
+            b = 0;
+            length = count;
+            for(int i = 0; i < count; i++) {
+                a += data[i] & 0xFF;
+                b += (count - i) * (data[i] & 0xFF);
+            }
+        }
+        void roll(byte out, byte in) {
+            a += (in & 0xFF) - (out & 0xFF);
+            b += a - length * (out & 0xFF);
+        }
+        int weak() { return (a & 0xFFFF) | (b << 16); }
+    }
+}
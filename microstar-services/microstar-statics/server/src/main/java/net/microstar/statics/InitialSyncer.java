@@ -3,9 +3,7 @@ package net.microstar.statics;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
-import lombok.Builder;
 import lombok.RequiredArgsConstructor;
-import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import net.microstar.common.MicroStarConstants;
 import net.microstar.common.datastore.DataStore;
@@ -24,19 +22,30 @@ import net.microstar.spring.webflux.util.FluxUtils;
 import net.microstar.statics.model.OverviewItem;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import javax.annotation.Nullable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
 import static net.microstar.common.util.ExceptionUtils.noThrow;
 import static net.microstar.statics.DataService.DATASTORE_NAME;
 
@@ -44,6 +53,10 @@ import static net.microstar.statics.DataService.DATASTORE_NAME;
  * Synchronize the file systems with other microstar-statics services.
  * This full synchronization is only performed at registration time.<p></p>
  *
+ * Directory digests are compared first so only the files in directories
+ * that differ are compared. Transfers run a few at a time and large files
+ * that exist on both sides only transfer their changed blocks.<p></p>
+ *
  * Possible states:<p></p>
  *
  * NEWER HERE<br>
@@ -81,6 +94,7 @@ public class InitialSyncer {
     private final WebClient.Builder webClient;
     private final MicroStarApplication application;
     private final ObjectMapper objectMapper;
+    private static final int MAX_PARALLEL_TRANSFERS = 4;
 
     @PostConstruct void init() {
         MicroStarApplication.get().ifPresentOrElse(app -> {
@@ -92,113 +106,165 @@ public class InitialSyncer {
     /* This sync will run when registered but can be called any other time as well -- won't do anything when syncBetweenStars is set to false */
     public void sync() {
         if(!props.get().syncBetweenStars) return;
-        Threads.execute(() ->
-            getListsFromOtherStars()
-                .flatMap(this::sync)
+        Threads.execute(() -> {
+            final Mono<LocalOverview> local = Mono.fromCallable(LocalOverview::create).cache(); // expensive, so only when there are other stars
+            getOtherStars()
+                .concatMap(star -> local.flatMapMany(localOverview -> sync(star, localOverview)))
                 .doOnComplete(() -> log.info("Sync finished"))
-                .subscribe());
+                .subscribe();
+        });
     }
 
-    @Builder @ToString
-    private static class StarItems {
-        public final StarInfo star;
-        public final List<OverviewItem> items;
+    /** Local files (with crc) and the digests of the directories */
+    private record LocalOverview(List<OverviewItem> items, Map<String,String> digests) {
+        static LocalOverview create() {
+            final List<OverviewItem> items = Overview.list(/*includeCrc:*/true);
+            return new LocalOverview(items, Overview.directoryDigests(items));
+        }
+        List<OverviewItem> itemsIn(Set<String> dirs) {
+            return items.stream().filter(item -> dirs.contains(Overview.parentOf(item.path))).toList();
+        }
     }
 
-    private Flux<StarItems> getListsFromOtherStars() {
+    private Flux<StarInfo> getOtherStars() {
         return dispatcher.getStarInfos()
             .flatMapMany(Flux::fromIterable)
             .filter(starInfo -> !starInfo.isLocal)
-            .filter(starInfo -> starInfo.isActive)
-            .doOnNext(starInfo -> log.info("Getting list for star: {} on {}", starInfo.name, starInfo.url))
-            .switchMap(starInfo -> {
-                final Flux<DataBuffer> listFlux = webClient.build()
-                        .get()
-                        .uri(IOUtils.concatPath(starInfo.url, "microstar-statics", "list"))
-                        .headers(application::setHeaders)
-                        .header(MicroStarConstants.HEADER_X_STAR_NAME, starInfo.name)
-                        .retrieve()
-                        .bodyToFlux(DataBuffer.class);
-                // bodyToMono fails if the json length is > 256KB so do it ourselves.
-                return FluxUtils.toString(listFlux)
-                    .map(json -> noThrow(() -> objectMapper.readValue(json, new TypeReference<List<OverviewItem>>(){})).orElseThrow(() -> new IllegalStateException("Illegal list json")))
-                    .onErrorContinue((ex, val) -> log.warn("Listing star {} failed: {} -- val: {}", starInfo.name, ex.getMessage(), val))
-                    .onErrorResume(ex -> { log.error("Listing of star {} failed: {}", starInfo.name, ex.getMessage(), ex); return Mono.just(Collections.emptyList()); })
-                    .map(list -> {
-                        log.info("Received list of size {} from {}", list.size(), starInfo.name);
-                        return StarItems.builder().star(starInfo).items(list).build();
-                    })
-                    .filter(starItems -> !starItems.items.isEmpty())
-                    .onErrorContinue((ex, mono) -> log.warn("Continue on star listing failure: {}", ex.getMessage()))
-                    ;
-            });
+            .filter(starInfo -> starInfo.isActive);
     }
-    private Flux<Void> sync(StarItems starItems) {
-        final StarInfo otherStar = starItems.star;
-        final List<OverviewItem> otherItems = starItems.items;
-        final List<OverviewItem> localItems = Overview.list(/*includeCrc:*/true); // expensive!
 
+    /** Compares directory digests first, so only the items of directories that differ need to be listed and compared */
+    private Flux<Void> sync(StarInfo otherStar, LocalOverview local) {
         log.info("Synchronizing with microstar-statics on star '{}'", otherStar.name);
+        return getJson(otherStar, "list/digests", null, new TypeReference<Map<String,String>>(){})
+            .flatMap(otherDigests -> {
+                final Set<String> differingDirs = Stream.concat(local.digests.keySet().stream(), otherDigests.keySet().stream())
+                    .filter(dir -> !Objects.equals(local.digests.get(dir), otherDigests.get(dir)))
+                    .collect(Collectors.toSet());
+                log.info("{} directories differ with star '{}'", differingDirs.size(), otherStar.name);
+                if(differingDirs.isEmpty()) return Mono.just(List.<List<OverviewItem>>of(List.of(), List.of()));
+                return getJson(otherStar, "list/dirs", differingDirs, new TypeReference<List<OverviewItem>>(){})
+                    .map(otherItems -> List.of(otherItems, local.itemsIn(differingDirs)));
+            })
+            .onErrorResume(ex -> { // star may not support digests yet
+                log.info("Comparing digests with star {} failed ({}) so comparing all items", otherStar.name, ex.getMessage());
+                return getJson(otherStar, "list", null, new TypeReference<List<OverviewItem>>(){})
+                    .map(otherItems -> List.of(otherItems, local.items));
+            })
+            .onErrorResume(ex -> { log.error("Listing of star {} failed: {}", otherStar.name, ex.getMessage(), ex); return Mono.empty(); })
+            .flatMapMany(otherAndLocalItems -> sync(otherStar, otherAndLocalItems.get(0), otherAndLocalItems.get(1)));
+    }
+    private Flux<Void> sync(StarInfo otherStar, List<OverviewItem> otherItems, List<OverviewItem> localItems) {
+        final Map<String,OverviewItem> localItemOfPath = localItems.stream().collect(Collectors.toMap(item -> item.path, item -> item, (a, b) -> a));
+        final Set<String> otherPaths = new HashSet<>();
         final List<Mono<Void>> actions = new ArrayList<>();
 
         otherItems.forEach(otherItem -> {
-            final Optional<OverviewItem> localItem = findItemForSameName(localItems, otherItem);
+            otherPaths.add(otherItem.path);
+            @Nullable final OverviewItem localItem = localItemOfPath.get(otherItem.path);
+            final boolean sameContent = localItem != null && otherItem.crc != 0 && otherItem.crc == localItem.crc; // no crc in old listings
 
             // newer there -> download here
             // not here    -> download here
-            if(localItem.isEmpty() || (otherItem.lastModified > localItem.get().lastModified && otherItem.crc != localItem.get().crc)) {
+            if(localItem == null || (otherItem.lastModified > localItem.lastModified && !sameContent)) {
                 if(otherItem.lastModified > 100) { // NOSONAR -- if inside if for readability
-                    actions.add(download(otherStar, otherItem.path, otherItem.lastModified));
+                    actions.add(download(otherStar, otherItem, localItem));
                 }
             }
 
             // newer here -> tell other to update itself
-            if(localItem.filter(li -> li.lastModified > otherItem.lastModified && li.crc != otherItem.crc).isPresent()) {
+            if(localItem != null && localItem.lastModified > otherItem.lastModified && !sameContent) {
                 actions.add(upload(otherStar.name, otherItem.path));
             }
         });
 
         // items missing on other were not in the previous block, so handle them here
-        localItems.forEach(localItem -> {
-            final Optional<OverviewItem> otherItem = findItemForSameName(otherItems, localItem);
+        localItems.stream()
+            .filter(localItem -> !otherPaths.contains(localItem.path))
+            .forEach(localItem -> actions.add(upload(otherStar.name, localItem.path))); // not there  -> tell other to update itself
 
-            // not there  -> tell other to update itself
-            if(otherItem.isEmpty()) {
-                actions.add(upload(otherStar.name, localItem.path));
-            }
-        });
         log.info("{} actions on sync with star '{}'", actions.size(), otherStar.name);
 
         return Flux.fromIterable(actions)
-            .flatMap(v -> v)
+            .flatMap(action -> action, MAX_PARALLEL_TRANSFERS)
             .doOnComplete(() -> log.info("Synchronizing with star '{}' finished", otherStar.name))
             .onErrorContinue((ex, obj) -> log.warn("Failed: {} -- obj: {}", ex.getMessage(), obj));
     }
 
-    private Mono<Void> download(StarInfo star, String pathNameIn, long lastModifiedLong) {
-        final Instant lastModified =  Instant.ofEpochSecond(lastModifiedLong);
-        final String path = pathNameIn.replace("\\","/");
+    /** bodyToMono fails if the json length is > 256KB so do it ourselves */
+    private <T> Mono<T> getJson(StarInfo star, String path, @Nullable Object body, TypeReference<T> type) {
+        final WebClient.RequestBodySpec request = webClient.build()
+            .method(body == null ? HttpMethod.GET : HttpMethod.POST)
+            .uri(IOUtils.concatPath(star.url, "microstar-statics", path))
+            .headers(application::setHeaders)
+            .header(MicroStarConstants.HEADER_X_STAR_NAME, star.name);
+        return FluxUtils.toString((body == null ? request : request.bodyValue(body)).retrieve().bodyToFlux(DataBuffer.class))
+            .map(json -> noThrow(() -> objectMapper.readValue(json, type)).orElseThrow(() -> new IllegalStateException("Illegal json from " + path)));
+    }
+
+    /** Downloads only the changed blocks of large files that exist here, otherwise the complete file */
+    private Mono<Void> download(StarInfo star, OverviewItem otherItem, @Nullable OverviewItem localItem) {
+        final String path = otherItem.path.replace("\\","/");
+        final Instant lastModified = Instant.ofEpochSecond(otherItem.lastModified);
+        final boolean useDelta = localItem != null && otherItem.crc != 0
+            && otherItem.length >= DeltaTransfer.MIN_FILE_SIZE && localItem.length >= DeltaTransfer.MIN_FILE_SIZE;
+        return (useDelta ? downloadDelta(star, otherItem, localItem.length) : Mono.<Void>error(new IllegalStateException("no delta")))
+            .onErrorResume(ex -> {
+                if(useDelta) log.info("Downloading changes of {} failed ({}), so downloading completely", path, ex.getMessage());
+                return downloadComplete(star, path, lastModified);
+            });
+    }
+    private Mono<Void> downloadComplete(StarInfo star, String path, Instant lastModified) {
+        final Path tempFile = IOUtils.createAndDeleteTempFile();
         return logOnStart(() -> log.info("Downloading {} from star {}", path, star.name),
-            webClient.build()
-                .get()
-                .uri(IOUtils.concatPath(star.url, "microstar-statics", path))
-                .headers(application::setHeaders)
-                .headers(httpHeaders -> httpHeaders.remove(UserToken.HTTP_HEADER_NAME))
-                .retrieve()
-                .bodyToFlux(DataBuffer.class)
-                .collectList()
-                .publishOn(Schedulers.boundedElastic())
-                .map(buffers -> {
-                    final Path tempFile = IOUtils.createAndDeleteTempFile();
-                    return DataBufferUtils.write(Flux.fromIterable(buffers), tempFile)
-                        .then(Mono.defer(() -> Mono.fromFuture(
-                            DataStoreUtils.copy(tempFile, filesRoot.get(), path)
-                                .thenComposeAsync(ok -> filesRoot.get().touch(path, lastModified))
-                        )))
-                        .subscribe();
-                })
+            DataBufferUtils.write(webClient.build()
+                    .get()
+                    .uri(IOUtils.concatPath(star.url, "microstar-statics", path))
+                    .headers(application::setHeaders)
+                    .headers(httpHeaders -> httpHeaders.remove(UserToken.HTTP_HEADER_NAME))
+                    .retrieve()
+                    .bodyToFlux(DataBuffer.class), tempFile) // streamed to file, so memory use doesn't depend on file size
+                .then(Mono.defer(() -> store(tempFile, path, lastModified)))
                 .onErrorResume(ex -> { log.error("download failed of {}: {}", path, ex.getMessage()); return Mono.empty(); })
-            ).then();
+                .doFinally(signal -> IOUtils.del(tempFile))
+            );
+    }
+    /** Sends signatures of the local blocks, receives the changed blocks and rebuilds the file from those and the local blocks */
+    private Mono<Void> downloadDelta(StarInfo star, OverviewItem otherItem, long localSize) {
+        final String path = otherItem.path.replace("\\","/");
+        final int blockSize = DeltaTransfer.blockSizeFor(localSize);
+        final Path deltaFile = IOUtils.createAndDeleteTempFile();
+        final Path newFile = IOUtils.createAndDeleteTempFile();
+        return logOnStart(() -> log.info("Downloading changes of {} from star {}", path, star.name),
+            Mono.fromFuture(() -> filesRoot.get().readStream(path))
+                .flatMap(Mono::justOrEmpty)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("Local file disappeared")))
+                .publishOn(Schedulers.boundedElastic())
+                .map(oldData -> noCheckedThrow(() -> { try(final InputStream in = oldData) { return DeltaTransfer.signaturesOf(in, blockSize); } }))
+                .flatMap(signatures -> DataBufferUtils.write(webClient.build()
+                    .post()
+                    .uri(IOUtils.concatPath(star.url, "microstar-statics", "delta", path))
+                    .headers(application::setHeaders)
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .bodyValue(signatures)
+                    .retrieve()
+                    .bodyToFlux(DataBuffer.class), deltaFile).thenReturn(deltaFile))
+                .publishOn(Schedulers.boundedElastic())
+                .map(delta -> noCheckedThrow(() -> {
+                    try(final InputStream in = Files.newInputStream(delta); final OutputStream out = Files.newOutputStream(newFile)) {
+                        DeltaTransfer.applyDelta(in, filesRoot.get(), path, blockSize, out);
+                    }
+                    if(Overview.crcOf(newFile) != otherItem.crc) throw new IllegalStateException("Rebuilt file differs");
+                    log.info("Downloaded {} of {} bytes for {}", Files.size(delta), otherItem.length, path);
+                    return newFile;
+                }))
+                .flatMap(file -> store(file, path, Instant.ofEpochSecond(otherItem.lastModified)))
+                .doFinally(signal -> { IOUtils.del(deltaFile); IOUtils.del(newFile); })
+            );
+    }
+    private Mono<Void> store(Path file, String path, Instant lastModified) {
+        return Mono.fromFuture(() -> DataStoreUtils.copy(file, filesRoot.get(), path)
+            .thenCompose(ok -> filesRoot.get().touch(path, lastModified))).then();
     }
     private Mono<Void> upload(String starName, String pathNameIn) {
         final String pathName = pathNameIn.replace("\\","/");
@@ -213,9 +279,6 @@ public class InitialSyncer {
                 .then();
     }
 
-    private static Optional<OverviewItem> findItemForSameName(List<OverviewItem> items, OverviewItem forItem) {
-        return items.stream().filter(item -> forItem.path.equals(item.path)).findFirst();
-    }
     private static <T> Mono<T> logOnStart(Runnable logger, Mono<T> mono) {
         return Mono.just(0).doOnNext(i -> logger.run()).then(mono);
     }
@@ -0,0 +1,108 @@
+package net.microstar.statics;
+
+import lombok.extern.slf4j.Slf4j;
+import net.microstar.common.util.ByteSize;
+import net.microstar.spring.ContentTypes;
+import net.microstar.spring.ResourceScanner;
+import net.microstar.statics.CompressedVariants.Encoding;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+
+/** Index of the static resources on the classpath, built once at startup so requests for them
+  * don't need classloader lookups (which are slow and synchronized in a fat jar). Small resources
+  * are kept in memory, with a gzip variant when compressible. Larger ones are read from the
+  * classpath when requested. Resources on the classpath don't change while running.
+  */
+@Slf4j
+final class JarResources {
+    private static final int MAX_MEMORY_ITEM_SIZE = 256 * 1024;
+    private static final long MAX_MEMORY_SIZE = ByteSize.ofMegabytes(32).getBytesLong();
+    private final Map<String,JarResource> resourceOfPath;
+
+    /** Resource with its ETag (from size and crc) and when small, its data (do not alter) */
+    record JarResource(String path, URL url, MediaType contentType, long size, String eTag, Instant lastModified,
+                       Optional<byte[]> data, Optional<byte[]> gzipped) {
+        Optional<byte[]> compressed(Encoding encoding) {
+            return encoding == Encoding.GZIP ? gzipped : Optional.empty();
+        }
+    }
+
+    private JarResources(Map<String,JarResource> resourceOfPath) {
+        this.resourceOfPath = Map.copyOf(resourceOfPath);
+    }
+
+    /** Indexes all resources below given classpath root */
+    static JarResources scan(String root) {
+        final Map<String,JarResource> resources = new HashMap<>();
+        long memorySize = 0;
+        for(final Map.Entry<String,Resource> found : ResourceScanner.getResourcesByName(root, /*recursive=*/true).entrySet()) {
+            final String name = found.getKey();
+            if(name.isEmpty() || name.endsWith("/") || !found.getValue().isReadable()) continue; // directories
+            final Optional<JarResource> resource = index(name, found.getValue(), memorySize < MAX_MEMORY_SIZE);
+            if(resource.isEmpty()) continue;
+            resources.put(name, resource.get());
+            memorySize += resource.get().data.map(data -> data.length).orElse(0) + resource.get().gzipped.map(data -> data.length).orElse(0);
+        }
+        log.info("Indexed {} static resources in /{} ({} in memory)", resources.size(), root, ByteSize.ofBytes(memorySize));
+        return new JarResources(resources);
+    }
+
+    Optional<JarResource> get(String path) {
+        return Optional.ofNullable(resourceOfPath.get(path.replaceFirst("^/+", "")));
+    }
+
+    private static Optional<JarResource> index(String name, Resource resource, boolean mayKeepData) {
+        return noThrow(() -> {
+            final URL url = resource.getURL();
+            final CRC32C crc = new CRC32C();
+            final byte[] buffer = new byte[64 * 1024];
+            final ByteArrayBuilder kept = new ByteArrayBuilder(mayKeepData);
+            long size = 0;
+            try(final InputStream in = resource.getInputStream()) {
+                for(int len = in.read(buffer); len >= 0; len = in.read(buffer)) {
+                    crc.update(buffer, 0, len);
+                    kept.add(buffer, len);
+                    size += len;
+                }
+            }
+            final MediaType contentType = ContentTypes.mediaTypeOfName(name);
+            final Optional<byte[]> data = kept.get();
+            final Optional<byte[]> gzipped = data
+                .filter(bytes -> CompressedVariants.isCompressible(contentType, bytes.length))
+                .map(Encoding.GZIP::compress)
+                .filter(compressed -> compressed.length < data.get().length);
+            return new JarResource(name, url, contentType, size,
+                "\"" + Long.toHexString(size) + "-" + Long.toHexString(crc.getValue()) + "\"",
+                Instant.ofEpochMilli(noThrow(resource::lastModified).orElse(0L)),
+                data, gzipped);
+        });
+    }
+
+    /** Collects data up to MAX_MEMORY_ITEM_SIZE, or nothing when the data is larger */
+    private static final class ByteArrayBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean keep;
+
+        ByteArrayBuilder(boolean keep) { this.keep = keep; }
+
+        void add(byte[] data, int length) {
+            if(!keep) return;
+            if(out.size() + length > MAX_MEMORY_ITEM_SIZE) { keep = false; out.reset(); return; }
+            out.write(data, 0, length);
+        }
+        Optional<byte[]> get() {
+            return keep ? Optional.of(out.toByteArray()) : Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.microstar.statics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Template of a 404 page, split once into literal parts and variable names so rendering is only
+  * concatenation. Variables are like ${name} (unless escaped as \${name}) which is the same syntax
+  * as StringUtils.replaceVariables() supports.
+  */
+final class NotFoundTemplate {
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("(?<!\\\\)\\$\\{([^}]+)}");
+    static final NotFoundTemplate DEFAULT = compile("Requested resource not found: ${path}");
+    private final List<String> literals; // one more than there are names
+    private final List<String> names;
+    private final int literalsLength;
+
+    private NotFoundTemplate(List<String> literals, List<String> names) {
+        this.literals = List.copyOf(literals);
+        this.names = List.copyOf(names);
+        this.literalsLength = literals.stream().mapToInt(String::length).sum();
+    }
+
+    static NotFoundTemplate compile(String text) {
+        final List<String> literals = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final Matcher matcher = VARIABLE_PATTERN.matcher(text);
+        int end = 0;
+        while(matcher.find()) {
+            literals.add(unescape(text.substring(end, matcher.start())));
+            names.add(matcher.group(1));
+            end = matcher.end();
+        }
+        literals.add(unescape(text.substring(end)));
+        return new NotFoundTemplate(literals, names);
+    }
+
+    String render(Map<String,String> vars) {
+        final StringBuilder result = new StringBuilder(literalsLength + 64 * names.size());
+        for(int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            result.append(literals.get(i));
+            final String value = vars.get(name);
+            if(value == null) result.append("?unknown:(").append(name).append(")?"); else result.append(value);
+        }
+        return result.append(literals.get(names.size())).toString();
+    }
+
+    private static String unescape(String literal) {
+        return literal.replace("\\${", "${");
+    }
+}
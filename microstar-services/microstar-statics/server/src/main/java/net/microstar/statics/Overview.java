@@ -2,81 +2,195 @@ package net.microstar.statics;
 
 import lombok.extern.slf4j.Slf4j;
 import net.microstar.common.datastore.DataStore;
-import net.microstar.common.datastore.DataStoreUtils;
-import net.microstar.common.io.IOUtils;
+import net.microstar.common.io.FileHashIndex;
 import net.microstar.common.util.DynamicReferenceNotNull;
+import net.microstar.common.util.Threads;
 import net.microstar.spring.DataStores;
+import net.microstar.spring.settings.PropsMap;
 import net.microstar.statics.model.OverviewItem;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.CRC32;
 
+import static net.microstar.common.util.ExceptionUtils.noCheckedThrow;
 import static net.microstar.common.util.ExceptionUtils.noThrow;
 import static net.microstar.common.util.Utils.peek;
 import static net.microstar.statics.DataService.DATASTORE_NAME;
 
+/** Overview of the files in the store, optionally with crc. Calculated crcs are kept in an index
+  * (in the temp dir, so it survives restarts) so only files that changed size or time need to be
+  * read again. Those are read straight from the store and in parallel.
+  */
 @Slf4j
 public final class Overview {
     private Overview() {}
     private static final DynamicReferenceNotNull<DataStore> filesRoot = DataStores.get(DATASTORE_NAME);
-    private static final Map<String,Long> crcCache = new ConcurrentHashMap<>();
+    private static final int CRC_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PARALLEL_CRCS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final AtomicReference<CrcIndex> crcIndexRef = new AtomicReference<>();
+
+    private static final String CRC_INDEX_PREFIX = "microstar-statics-crc-";
+
+    private record CrcIndex(String storeKey, FileHashIndex index) {}
 
     public static List<OverviewItem> list(boolean includeCrc) {
-        return peek(noThrow(() -> filesRoot.get()
-            .list("", true).get().stream()
-            .map(item -> {
-                final long lastModified = item.time.getEpochSecond();
-                final String key = lastModified + ":" + item.path;
-                return OverviewItem.builder()
-                        .path(item.path)
-                        .length(item.size)
-                        .lastModified(lastModified)
-                        .crc(includeCrc ? crcCache.computeIfAbsent(key, s -> crcOf(item.path)) : 0)
-                        .build();
-                }
-            ).toList()).orElseGet(Collections::emptyList), result -> log.info("Returning overview list of size {}", result.size()));
+        return peek(noThrow(() -> {
+            final DataStore store = filesRoot.get();
+            final List<DataStore.Item> items = store.list("", true).get();
+            final Map<String,Long> crcs = includeCrc ? crcsOf(store, items) : Collections.emptyMap();
+            return items.stream()
+                .map(item -> OverviewItem.builder()
+                    .path(item.path)
+                    .length(item.size)
+                    .lastModified(item.time.getEpochSecond())
+                    .crc(crcs.getOrDefault(item.path, 0L))
+                    .build()
+                ).toList();
+        }).orElseGet(Collections::emptyList), result -> log.info("Returning overview list of size {}", result.size()));
+    }
+
+    /** Items with crc that are directly in any of the given directories (paths ending with a slash, root is empty) */
+    public static List<OverviewItem> listDirectories(Collection<String> dirs) {
+        final Set<String> dirSet = Set.copyOf(dirs);
+        return list(/*includeCrc:*/true).stream().filter(item -> dirSet.contains(parentOf(item.path))).toList();
+    }
+
+    /** Digest per directory (path ending with a slash, root is empty) of the names and crcs of all files
+      * below it (a Merkle tree). Stars can compare these to find the directories that differ without
+      * comparing all files. Identical directories have the same digest, whatever the file times are.
+      */
+    public static Map<String,String> directoryDigests(List<OverviewItem> items) {
+        final Map<String,SortedMap<String,String>> entriesOfDir = new HashMap<>(); // dir -> name -> crc or digest
+        entriesOfDir.put("", new TreeMap<>());
+        items.forEach(item -> {
+            entriesOfDir.computeIfAbsent(parentOf(item.path), d -> new TreeMap<>()).put(nameOf(item.path), Long.toHexString(item.crc));
+            for(String dir = parentOf(item.path); !dir.isEmpty(); dir = parentOf(dir)) {
+                entriesOfDir.computeIfAbsent(parentOf(dir), d -> new TreeMap<>()).putIfAbsent(nameOf(dir), "");
+                entriesOfDir.computeIfAbsent(dir, d -> new TreeMap<>());
+            }
+        });
+        final Map<String,String> digests = new HashMap<>();
+        entriesOfDir.keySet().stream()
+            .sorted(Comparator.comparingLong((String dir) -> dir.chars().filter(c -> c == '/').count()).reversed()) // deepest first
+            .forEach(dir -> {
+                final MessageDigest digest = noCheckedThrow(() -> MessageDigest.getInstance("SHA-256"));
+                entriesOfDir.get(dir).forEach((name, value) -> digest.update((name + "=" + value + "\n").getBytes(StandardCharsets.UTF_8)));
+                final String dirDigest = HexFormat.of().formatHex(digest.digest());
+                digests.put(dir, dirDigest);
+                if(!dir.isEmpty()) entriesOfDir.get(parentOf(dir)).put(nameOf(dir), dirDigest);
+            });
+        return digests;
     }
 
-    private static long crcOf(String path) {
-        final Path tempFile = IOUtils.createAndDeleteTempFile();
+    /** a/b/c.txt -> a/b/, a/b/ -> a/, a/ -> "" */
+    static String parentOf(String path) {
+        return path.replaceFirst("[^/]+/?$", "");
+    }
+    private static String nameOf(String path) {
+        return path.substring(parentOf(path).length());
+    }
+
+    private static Map<String,Long> crcsOf(DataStore store, List<DataStore.Item> items) {
+        final FileHashIndex index = crcIndexOf();
+        final Map<String,Long> crcs = new ConcurrentHashMap<>();
+        final Queue<DataStore.Item> toCalculate = new ConcurrentLinkedQueue<>();
+        items.forEach(item -> index.get(item.path, item.size, item.time.toEpochMilli())
+            .ifPresentOrElse(crc -> crcs.put(item.path, crc), () -> toCalculate.add(item)));
+
+        if(!toCalculate.isEmpty()) log.info("Calculating crc of {} new or changed files", toCalculate.size());
+        final Runnable calculator = () -> {
+            for(DataStore.Item item = toCalculate.poll(); item != null; item = toCalculate.poll()) {
+                final long crc = crcOf(store, item.path);
+                if(crc != -1) index.put(item.path, item.size, item.time.toEpochMilli(), crc);
+                crcs.put(item.path, crc);
+            }
+        };
+        CompletableFuture.allOf(IntStream.range(0, Math.min(MAX_PARALLEL_CRCS, toCalculate.size()))
+            .mapToObj(i -> CompletableFuture.runAsync(calculator, Threads.getExecutor()))
+            .toArray(CompletableFuture[]::new)).join();
+
+        final Set<String> paths = items.stream().map(item -> item.path).collect(Collectors.toSet());
+        index.retainIf(paths::contains); // evict deleted files
+        return crcs;
+    }
+
+    /** The index is kept outside the store so it won't show up as data. It is named after the store
+      * configuration (cache settings excluded, as they don't change the data) so a restart with the
+      * same configuration finds it again. When the configuration changes, the index this process
+      * used is deleted. Index files it didn't create are left alone as other processes may use them.
+      */
+    private static synchronized FileHashIndex crcIndexOf() {
+        final String storeKey = crcIndexKeyOf(DATASTORE_NAME, DataStores.settingsOf(DATASTORE_NAME));
+        final @Nullable CrcIndex current = crcIndexRef.get();
+        if(current != null && current.storeKey.equals(storeKey)) return current.index;
+
+        if(current != null) current.index.delete();
+        final Path indexFile = Path.of(System.getProperty("java.io.tmpdir"), CRC_INDEX_PREFIX + storeKey + ".idx");
+        crcIndexRef.set(new CrcIndex(storeKey, new FileHashIndex(indexFile)));
+        return crcIndexRef.get().index;
+    }
+    private static String crcIndexKeyOf(String storeName, PropsMap storeSettings) {
+        final SortedMap<String,Object> settings = new TreeMap<>(storeSettings.asFlatMap().getMap());
+        settings.keySet().removeIf(key -> key.equals("cache") || key.startsWith("cache."));
+        final MessageDigest digest = noCheckedThrow(() -> MessageDigest.getInstance("SHA-256"));
+        final byte[] hash = digest.digest(settings.toString().getBytes(StandardCharsets.UTF_8)); // no passwords in the file name
+        return storeName.replaceAll("[^\\w.-]", "_") + "-" + HexFormat.of().formatHex(hash, 0, 16);
+    }
+
+    private static long crcOf(DataStore store, String path) {
         try {
-            DataStoreUtils.copy(filesRoot.get(), path, tempFile).get();
-            return crcOf(tempFile);
+            return store.readStream(path).get()
+                .map(in -> { try(final InputStream input = in) { return crcOf(input); } catch(final IOException e) { return -1L; } })
+                .orElse(-1L);
         } catch (ExecutionException e) {
             return -1;
         } catch (final InterruptedException e) {
             Thread.currentThread().interrupt();
             return -1;
-        } finally {
-            IOUtils.del(tempFile);
         }
     }
-    private static long crcOf(Path path) {
-        final CRC32 crc = new CRC32();
-        final ByteBuffer buffer = ByteBuffer.allocate(1024);
-
-        try(SeekableByteChannel input = Files.newByteChannel(path, StandardOpenOption.READ)) {
-            int len;
-            while((len = input.read(buffer)) > 0) {
-                buffer.flip();
-                crc.update(buffer.array(), 0, len);
-            }
+    static long crcOf(Path path) {
+        try(final InputStream input = Files.newInputStream(path)) {
+            return crcOf(input);
         } catch(final IOException e) {
             return -1;
         }
+    }
+    private static long crcOf(InputStream input) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[CRC_BUFFER_SIZE];
+        long length = 0;
+        for(int len = input.read(buffer); len >= 0; len = input.read(buffer)) {
+            crc.update(buffer, 0, len);
+            length += len;
+        }
 
         // While returning a 64-bits value, CRC32 is only 32 bits long.
         // Might as well add the file length in the upper empty 32 bits.
-        return crc.getValue() | (path.toFile().length() << 32);
+        return crc.getValue() | (length << 32);
     }
 }
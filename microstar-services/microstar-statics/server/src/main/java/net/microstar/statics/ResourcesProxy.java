@@ -6,8 +6,9 @@ import net.microstar.common.datastore.DataStore;
 import net.microstar.common.datastore.DataStoreUtils;
 import net.microstar.common.io.IOUtils;
 import net.microstar.common.throwingfunctionals.ThrowingConsumer;
+import net.microstar.common.util.ByteSize;
 import net.microstar.common.util.DynamicReferenceNotNull;
-import net.microstar.common.util.StringUtils;
+import net.microstar.common.util.ResolutionCache;
 import net.microstar.common.util.Threads;
 import net.microstar.spring.ContentTypes;
 import net.microstar.spring.DataStores;
@@ -16,6 +17,7 @@ import net.microstar.spring.authorization.UserToken;
 import net.microstar.spring.exceptions.NotFoundException;
 import net.microstar.spring.settings.DynamicPropertiesRef;
 import net.microstar.spring.webflux.util.FluxUtils;
+import net.microstar.statics.CompressedVariants.Encoding;
 import net.microstar.statics.Targets.Target;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
@@ -25,6 +27,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.PathContainer;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -35,18 +38,26 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,18 +75,32 @@ public class ResourcesProxy {
     private static final String PUBLIC = "public";
     private static final String FRONTEND = "frontend";
     private static final String NAME_404 = "404.html";
+    private static final int MAX_RESOLUTIONS = 10_000;
+    private static final int MAX_404_TEMPLATES = 1_000;
     private static final DynamicReferenceNotNull<DataStore> dataStore = DataStores.get(DATASTORE_NAME);
     private static final DynamicPropertiesRef<StaticsProperties> propsRef = DynamicPropertiesRef.of(StaticsProperties.class);
     private @Nullable Targets.Target fallbackTarget;
+    private final JarResources jarResources = JarResources.scan(PUBLIC);
+    private volatile @Nullable CompressedVariants compressedVariants;
+    private @Nullable ByteSize compressedCacheSize;
+    private Runnable stopListeningToStore = () -> {};
+    private final ResolutionCache<Responder> resolutions = new ResolutionCache<>(MAX_RESOLUTIONS);
+    private final ResolutionCache<Optional<NotFoundTemplate>> notFoundTemplates = new ResolutionCache<>(MAX_404_TEMPLATES);
+    private volatile List<Map.Entry<Pattern,String>> notFoundPatterns = List.of();
 
     private final UserTargetsConfiguration userTargetsConfiguration;
 
     public ResourcesProxy(Targets targets, UserTargetsConfiguration userTargetsConfiguration) {
         this.targets = targets;
         this.userTargetsConfiguration = userTargetsConfiguration;
+        DataStores.addStoreChangeListener(DATASTORE_NAME, this::listenToStore);
         propsRef.onChange((props, changedKeys) -> {
             DataStores.updateStoresForChangedConfiguration(); // in case this one is called *after* this configuration change handler
-            if(DataStores.isFailingDataStore(dataStore.get())) return; // no datastore configured
+            updateCompressedVariants(props.compressedCacheSize);
+            notFoundPatterns = compileNotFoundPatterns(props.notFoundMapping);
+            notFoundTemplates.clear();
+            if(DataStores.isFailingDataStore(dataStore.get())) { resolutions.clear(); return; } // no datastore configured
+            listenToStore();
             final BlockingDataStore store = BlockingDataStore.forStore(dataStore);
             final List<String> rootNames = store.listNames("");
             final boolean storeContainsPublic = rootNames.contains(PUBLIC+"/");
@@ -100,6 +125,7 @@ public class ResourcesProxy {
                     fallback -> targets.createTarget("", fallback)
                 ).orElse(null);
             }
+            resolutions.clear(); // targets, user targets or fallback may have changed
         })
         .callOnChangeHandlers();
     }
@@ -110,22 +136,17 @@ public class ResourcesProxy {
     }
     private Mono<ResponseEntity<Flux<DataBuffer>>> getResource(String pathIn, ServerWebExchange exchange, UserToken userToken) {
         final String path = dataStore.get().normalizePath(pathIn);
+        final String resolutionKey = userKeyOf(userToken) + ":" + path;
+        final Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> resolveAndRespond = () ->
+            resolve(path, userToken, resolutionKey).flatMap(responder -> responder.respondTo(exchange));
         return
-            // First try if there are target mappings
-            getMappedResource(path, exchange)
-
-                // Get resource for current user
-                .switchIfEmpty(Mono.defer(() -> getUserResource(path, userToken)))
-
-                // Try to read from resources
-                .switchIfEmpty(Mono.defer(() -> getJarResource(path)))
+            // Use what the path resolved to before, if it still holds. When it resolved to a file that
+            // was removed since (and the change event didn't arrive yet), resolve again
+            resolutions.get(resolutionKey)
+                .map(responder -> responder.respondTo(exchange).onErrorResume(StaleResolutionException.class, stale -> resolveAndRespond.get()))
 
-                // Try fallback if still no resource to return
-                .switchIfEmpty(Mono.defer(() -> Mono.justOrEmpty(fallbackTarget)
-                    .flatMap(fallback -> fallback.webClient.isPresent()
-                        ? proxy(fallback, path, exchange)
-                        : getFileResource(fallback.toPathFor(path))
-                    )))
+                // Otherwise find the target mapping, user resource, jar resource or fallback for the path
+                .orElseGet(() -> Mono.defer(resolveAndRespond))
 
                 .onErrorResume(t -> Mono.empty())
 
@@ -138,65 +159,88 @@ public class ResourcesProxy {
     }
 
 
-    /** Returns configured or found 404 page for given user and path */
+    /** Returns configured or found 404 page for given path */
     private Mono<ResponseEntity<Flux<DataBuffer>>> get404Page(ServerWebExchange exchange) {
         final String path = exchange.getRequest().getPath().toString().replace("\\","/");
-        final CompletableFuture<String> notFoundTextFuture = CompletableFuture.supplyAsync(() -> {
-            final String notFoundTemplate = get404ConfiguredTemplate(path)
-                .or(() -> get404Template(path))
-                .orElse("Requested resource not found: ${path}");
-            final Map<String, String> vars = Map.of(
-                "path", exchange.getRequest().getPath().toString(),
-                "uri", exchange.getRequest().getURI().toString()
-            );
-            return StringUtils.replaceVariables(notFoundTemplate, vars);
-        }, Threads.getExecutor());
-        return Mono.fromFuture(notFoundTextFuture).map(notFoundText -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(
-            DataBufferUtils.readInputStream(() -> new ByteArrayInputStream(notFoundText.getBytes(StandardCharsets.UTF_8)), bufferFactory, 10_240)
-        )).onErrorReturn(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
-    }
-
-    /** Returns any configured 404 contents from app.config.statics.notFoundMapping that maps from path pattern to
+        final Map<String, String> vars = Map.of(
+            "path", exchange.getRequest().getPath().toString(),
+            "uri", exchange.getRequest().getURI().toString()
+        );
+        return get404ConfiguredTemplate(path)
+            .switchIfEmpty(Mono.defer(() -> get404Template(path)))
+            .defaultIfEmpty(NotFoundTemplate.DEFAULT)
+            .map(template -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(FluxUtils.fluxFrom(template.render(vars))))
+            .onErrorReturn(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
+    }
+
+    /** Returns any configured 404 template from app.config.statics.notFoundMapping that maps from path pattern to
       * 404 location (either a file directly or a directory that should contain a 404.html). Empty if no configuration
       * set or no file found at configured location.
       */
-    private Optional<String> get404ConfiguredTemplate(String path) {
-        return propsRef.get().notFoundMapping.keySet().stream()
-            .filter(pat -> noThrow(() -> path.matches(pat)).or(() -> noThrow(() -> parentOfPath(path).matches(pat))).orElse(false))
-            .map(key -> propsRef.get().notFoundMapping.get(key))
-            .flatMap(configuredPath -> read404TemplateFromGivenOrAnyParentPath("", configuredPath)
-                              .or(() -> get404Template(configuredPath)).stream())
-            .findFirst();
+    private Mono<NotFoundTemplate> get404ConfiguredTemplate(String path) {
+        return Flux.fromIterable(notFoundPatterns)
+            .filter(mapping -> mapping.getKey().matcher(path).matches() || mapping.getKey().matcher(parentOfPath(path)).matches())
+            .map(Map.Entry::getValue)
+            .concatMap(configuredPath -> get404Template("configured:" + configuredPath, () -> Stream.concat(
+                get404Candidates("", configuredPath, /*includeGiven=*/true),
+                get404Candidates(configuredPath, /*includeGiven=*/true)).toList()))
+            .next();
     }
 
-    /** Returns 404 contents for given path and user, if any. Given path can be directory that
-      * contains a "404.html" file or can point to a file directly. Checks the following locations:<pre>
+    /** Returns 404 template for the directory of given path, if any. Checks the following locations:<pre>
       *
-      * - any parent of given path + /404.html as file relative to /public/
-      * - any parent of given path + /404.html as file relative to /frontend/
-      * - given path as resource relative to /public/
-      * - any parent of given path + /404.html as resource relative to /public/
+      * - the directory of given path and any parent + /404.html as file relative to /public/
+      * - the directory of given path and any parent + /404.html as file relative to /frontend/
       * - 404.html file in /public/
       * - 404.html resource in /public/
       * </pre>
       */
-    private Optional<String> get404Template(String path) {
-        return Optional.<String>empty()
-            .or(() -> read404TemplateFromGivenOrAnyParentPath(PUBLIC, relPath(path)))
-            .or(() -> read404TemplateFromGivenOrAnyParentPath(FRONTEND, relPath(path)))
-            .or(() -> noThrow(() -> dataStore.get().readString(concatPath(PUBLIC, NAME_404)).get()).flatMap(opt -> opt))
-            .or(() -> IOUtils.getResource(concatPath("/", PUBLIC, NAME_404)).map(b -> new String(b, StandardCharsets.UTF_8)));
-    }
-    private Optional<String> read404TemplateFromGivenOrAnyParentPath(String root, String relPath) {
-        final BlockingDataStore store = BlockingDataStore.forStore(dataStore);
-        final String normRoot = dataStore.get().normalizePath(root);
+    private Mono<NotFoundTemplate> get404Template(String path) {
+        final String dir = relPath(path).replaceFirst("[^/]*$", "");
+        return get404Template("dir:" + dir, () -> get404Candidates(dir, /*includeGiven=*/false).toList());
+    }
 
-        // Given path is either a file (like /foo/bar/error.html) or a path (like /foo/bar/)
+    /** Template of the first existing of the given candidates (store paths) or else the 404 resource. It is cached
+      * with the candidates that were looked at, so only a store change of any of those leads to looking again.
+      */
+    private Mono<NotFoundTemplate> get404Template(String cacheKey, Supplier<List<String>> candidates) {
+        final Optional<Optional<NotFoundTemplate>> cached = notFoundTemplates.get(cacheKey);
+        if(cached.isPresent()) return Mono.justOrEmpty(cached.get());
+
+        final long generation = notFoundTemplates.getGeneration();
+        final Set<String> probedPaths = ConcurrentHashMap.newKeySet();
+        return Flux.fromIterable(candidates.get())
+            .concatMap(candidate -> {
+                probedPaths.add(dataStore.get().normalizePath(candidate));
+                return Mono.fromFuture(() -> dataStore.get().readString(candidate))
+                    .flatMap(Mono::justOrEmpty)
+                    .onErrorResume(t -> Mono.empty());
+            }, /*prefetch=*/1) // stop reading at the first found
+            .next()
+            .switchIfEmpty(Mono.defer(() -> Mono.justOrEmpty(jarResources.get(NAME_404)
+                .flatMap(jarResource -> jarResource.data().or(() -> noThrow(() -> readAll(jarResource.url()))))
+                .map(data -> new String(data, StandardCharsets.UTF_8)))))
+            .map(NotFoundTemplate::compile)
+            .map(Optional::of)
+            .defaultIfEmpty(Optional.empty())
+            .doOnNext(template -> notFoundTemplates.put(cacheKey, template, probedPaths, generation))
+            .flatMap(Mono::justOrEmpty);
+    }
+    private Stream<String> get404Candidates(String relPath, boolean includeGiven) {
+        return Stream.of(
+            get404Candidates(PUBLIC, relPath, includeGiven),
+            get404Candidates(FRONTEND, relPath, includeGiven),
+            Stream.of(concatPath(PUBLIC, NAME_404))
+        ).flatMap(candidates -> candidates);
+    }
+    /** Given path is either a file (like /foo/bar/error.html, only when includeGiven) or a path (like /foo/bar/)
+      * that, or any of its parents, may contain a 404.html
+      */
+    private Stream<String> get404Candidates(String root, String relPath, boolean includeGiven) {
+        final String normRoot = dataStore.get().normalizePath(root);
         final String dir = dataStore.get().normalizePath(concatPath(root, relPath));
-        if(!dir.startsWith(normRoot)) return Optional.empty();
-        return Stream.concat(Stream.of(dir), splitTraversal(dir).stream().map(path -> concatPath(path, NAME_404)))
-            .flatMap(path -> store.readString(path).stream())
-            .findFirst();
+        if(!dir.startsWith(normRoot)) return Stream.empty();
+        return Stream.concat(includeGiven ? Stream.of(dir) : Stream.empty(), splitTraversal(dir).stream().map(path -> concatPath(path, NAME_404)));
     }
 
     /** a/b/c/d -> a/b/c/d, a/b/c, a/b, a */
@@ -207,72 +251,301 @@ public class ResourcesProxy {
         return paths;
     }
 
-    private Mono<ResponseEntity<Flux<DataBuffer>>> getMappedResource(String path, ServerWebExchange exchange) {
+    /** Signals that a responder is for a file that no longer exists */
+    private static final class StaleResolutionException extends RuntimeException {
+        static final StaleResolutionException INSTANCE = new StaleResolutionException();
+        private StaleResolutionException() { super("Resolved file no longer exists", null, false, false); }
+    }
+
+    /** What a request path resolved to, so what to respond with */
+    @FunctionalInterface
+    private interface Responder {
+        Responder NOT_FOUND = exchange -> Mono.empty();
+        Mono<ResponseEntity<Flux<DataBuffer>>> respondTo(ServerWebExchange exchange);
+    }
+
+    /** Resolves and caches the responder for given path and user. The store paths that were looked at
+      * are remembered with it, so a change of any of them leads to resolving again.
+      */
+    private Mono<Responder> resolve(String path, UserToken userToken, String resolutionKey) {
+        final long generation = resolutions.getGeneration();
+        final Set<String> probedPaths = ConcurrentHashMap.newKeySet();
+        return
+            // First try if there are target mappings
+            resolveMapped(path, probedPaths)
+
+                // Get resource for current user
+                .switchIfEmpty(Mono.defer(() -> resolveForUser(path, userToken, probedPaths)))
+
+                // Try to read from resources
+                .switchIfEmpty(Mono.defer(() -> resolveJar(path)))
+
+                // Try fallback if still no resource to return
+                .switchIfEmpty(Mono.defer(() -> Mono.justOrEmpty(fallbackTarget)
+                    .flatMap(fallback -> resolveTarget(fallback, path, probedPaths))))
+
+                .defaultIfEmpty(Responder.NOT_FOUND)
+                .doOnNext(responder -> resolutions.put(resolutionKey, responder, probedPaths, generation));
+    }
+    private Mono<Responder> resolveMapped(String path, Set<String> probedPaths) {
         return Mono.justOrEmpty(targets.getTarget(path))
-            .flatMap(target -> target.webClient.isPresent()
-                ? proxy(target, path, exchange)
-                : getFileResource(target.toPathFor(path))
-            );
-    }
-    private Mono<ResponseEntity<Flux<DataBuffer>>> getUserResource(String path, UserToken userToken) {
-        return Mono.just(getTargetPath(path, userToken))
-            .flatMap(this::getFileResource)
+            .flatMap(target -> resolveTarget(target, path, probedPaths));
+    }
+    private Mono<Responder> resolveTarget(Target target, String path, Set<String> probedPaths) {
+        return target.webClient.isPresent()
+            ? Mono.just(exchange -> proxy(target, path, exchange))
+            : resolveFile(target.toPathFor(path), cacheControlOf(target), probedPaths);
+    }
+    private Mono<Responder> resolveForUser(String path, UserToken userToken, Set<String> probedPaths) {
+        return Mono.just(getTargetPath(path, userToken, probedPaths))
+            .flatMap(targetPath -> resolveFile(targetPath, propsRef.get().cacheControl, probedPaths))
             .switchIfEmpty(Mono.defer(() -> // try public resource is user resource was not found
-                Mono.just(getTargetPath(path, ""))
-                    .flatMap(this::getFileResource)))
+                Mono.just(getTargetPath(path, "", probedPaths))
+                    .flatMap(targetPath -> resolveFile(targetPath, propsRef.get().cacheControl, probedPaths))))
             ;
     }
-    private Mono<ResponseEntity<Flux<DataBuffer>>> getFileResource(String path) {
-        return Mono.fromFuture(getFilePath(path))
-                .flatMap(fsPath ->
-                    FluxUtils.fluxFromStore(dataStore.get(), fsPath)
-                    .map(flux -> ResponseEntity
-                        .ok()
-                        .contentType(ContentTypes.mediaTypeOfName(fsPath))
-                        .body(flux)
-                    )
-                );
+    private Mono<Responder> resolveFile(String path, String cacheControl, Set<String> probedPaths) {
+        return Mono.fromFuture(getFilePath(path, probedPaths))
+            .flatMap(fsPath -> Mono.fromFuture(dataStore.get().getItem(fsPath)))
+            .flatMap(Mono::justOrEmpty)
+            .map(item -> exchange -> getFileResource(item.path, exchange, cacheControl));
     }
-    private Mono<ResponseEntity<Flux<DataBuffer>>> getJarResource(String resourcePath) {
-        @Nullable URL publicUrl = this.getClass().getResource("/public/");
-        if(publicUrl == null) return Mono.empty();
-
-        @Nullable URL url = this.getClass().getResource("/public/" + resourcePath);
-        if(url == null) url = this.getClass().getResource(concatPath(resourcePath, INDEX_HTML));
-        if(url == null) return Mono.empty();
-        if(!url.toString().startsWith(publicUrl.toString())) return Mono.empty(); // prevent ../ above /public
-        final String path = url.toString();
-
-        return FluxUtils.fluxFromStore(dataStore.get(), path)
-                .map(flux -> ResponseEntity
-                    .ok()
-                    .contentType(ContentTypes.mediaTypeOfName(path))
-                    .body(flux)
-                );
+    private Mono<Responder> resolveJar(String resourcePath) {
+        return Mono.justOrEmpty(jarResources.get(resourcePath) // only indexed names, so no ../ above /public
+                .or(() -> jarResources.get(concatPath(resourcePath, INDEX_HTML))))
+            .map(jarResource -> exchange -> getJarResource(jarResource, exchange));
+    }
+
+    /** Metadata is read on every request because change events can come later than the change */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> getFileResource(String fsPath, ServerWebExchange exchange, String cacheControl) {
+        return Mono.fromFuture(dataStore.get().getItem(fsPath))
+            .flatMap(Mono::justOrEmpty)
+            .switchIfEmpty(Mono.defer(() -> { // removed since resolved
+                resolutions.invalidate(List.of(fsPath));
+                return Mono.error(StaleResolutionException.INSTANCE);
+            }))
+            .flatMap(item -> respond(new Resource(item.path, Validators.of(item), ContentTypes.mediaTypeOfName(item.path),
+                () -> dataStore.get().read(item.path),
+                encoding -> Optional.empty(),
+                () -> FluxUtils.fluxFromStore(dataStore.get(), item.path),
+                (offset, length) -> Mono.fromFuture(dataStore.get().readStream(item.path, offset)) // seeks, so doesn't read what is skipped
+                    .flatMap(Mono::justOrEmpty)
+                    .map(in -> DataBufferUtils.readInputStream(() -> ByteRanges.limit(in, length), bufferFactory, 10_240))
+            ), exchange, cacheControl));
+    }
+    /** Small jar resources are served from memory, larger ones are read from the classpath (without lookup) */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> getJarResource(JarResources.JarResource jarResource, ServerWebExchange exchange) {
+        final URL url = jarResource.url();
+        return respond(new Resource("jar:" + jarResource.path(), Validators.of(jarResource), jarResource.contentType(),
+            () -> jarResource.data().isPresent()
+                ? CompletableFuture.completedFuture(jarResource.data())
+                : CompletableFuture.supplyAsync(() -> noThrow(() -> readAll(url)), Threads.getExecutor()),
+            jarResource::compressed,
+            () -> Mono.just(jarResource.data()
+                .map(FluxUtils::fluxFrom)
+                .orElseGet(() -> DataBufferUtils.readInputStream(url::openStream, bufferFactory, 10_240))),
+            (offset, length) -> Mono.just(jarResource.data()
+                .map(data -> FluxUtils.fluxFrom(Arrays.copyOfRange(data, (int)(long)offset, (int)(offset + length))))
+                .orElseGet(() -> DataBufferUtils.readInputStream(() -> ByteRanges.limit(skip(url.openStream(), offset), length), bufferFactory, 10_240)))
+        ), exchange, propsRef.get().cacheControl);
+    }
+
+    /** Resource to respond with. The path identifies it for its compressed variants, which are built from data
+      * unless there is a precompressed variant. The rangeBody gets offset and length.
+      */
+    private record Resource(String path, Validators validators, MediaType contentType,
+                            Supplier<CompletableFuture<Optional<byte[]>>> data, Function<Encoding,Optional<byte[]>> precompressed,
+                            Supplier<Mono<Flux<DataBuffer>>> body, BiFunction<Long,Long,Mono<Flux<DataBuffer>>> rangeBody) {}
+
+    /** Returns 304 Not Modified when the request is conditional and the client has the current version, without reading the body.
+      * Returns 206 Partial Content when the request has a (still valid, see If-Range) Range header.
+      * Otherwise returns a compressed variant when the resource is compressible and the client accepts it, or the resource itself.
+      */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> respond(Resource resource, ServerWebExchange exchange, String cacheControl) {
+        final HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        @Nullable final CompressedVariants variants = compressedVariants;
+        final boolean compressible = variants != null && CompressedVariants.isCompressible(resource.contentType, resource.validators.size);
+        final Optional<List<ByteRanges.Range>> ranges = Optional.ofNullable(requestHeaders.getFirst(HttpHeaders.RANGE))
+            .filter(range -> exchange.getRequest().getMethod() == HttpMethod.GET && resource.validators.isRangeValid(exchange))
+            .flatMap(range -> ByteRanges.parse(range, resource.validators.size));
+        final Optional<Encoding> encoding = compressible && ranges.isEmpty() // ranges are of the uncompressed resource
+            ? Encoding.negotiate(requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING))
+            : Optional.empty();
+        final Validators validators = encoding.map(resource.validators::forEncoding).orElse(resource.validators);
+
+        if(validators.isNotModified(exchange)) return Mono.just(varying(validators.addTo(ResponseEntity.status(HttpStatus.NOT_MODIFIED), cacheControl), compressible).<Flux<DataBuffer>>build());
+        if(ranges.isPresent()) return respondPartial(resource, ranges.get(), cacheControl, compressible);
+
+        final Mono<ResponseEntity<Flux<DataBuffer>>> uncompressed = Mono.defer(() -> resource.body.get().map(flux ->
+            varying(resource.validators.addTo(ResponseEntity.ok(), cacheControl), compressible)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(resource.contentType)
+                .body(flux)));
+        if(variants == null || encoding.isEmpty()) return uncompressed;
+
+        final Optional<byte[]> precompressed = resource.precompressed.apply(encoding.get());
+        return (precompressed.isPresent()
+                ? Mono.just(precompressed.get())
+                : Mono.fromFuture(() -> variants.get(encoding.get(), resource.path, validators.eTag, resource.data)).flatMap(Mono::justOrEmpty))
+            .map(bytes -> varying(validators.addTo(ResponseEntity.ok(), cacheControl), true)
+                .contentType(resource.contentType)
+                .header(HttpHeaders.CONTENT_ENCODING, encoding.get().token)
+                .contentLength(bytes.length)
+                .body(FluxUtils.fluxFrom(bytes)))
+            .onErrorResume(t -> Mono.empty()) // e.g. cache closed because of configuration change
+            .switchIfEmpty(uncompressed);
+    }
+    /** Single range as body, multiple ranges as multipart/byteranges, or 416 when none of the ranges is satisfiable */
+    private static Mono<ResponseEntity<Flux<DataBuffer>>> respondPartial(Resource resource, List<ByteRanges.Range> ranges, String cacheControl, boolean compressible) {
+        final long size = resource.validators.size;
+        if(ranges.isEmpty()) return Mono.just(varying(resource.validators.addTo(ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE), cacheControl), compressible)
+            .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+            .<Flux<DataBuffer>>build());
+
+        final ResponseEntity.BodyBuilder builder = varying(resource.validators.addTo(ResponseEntity.status(HttpStatus.PARTIAL_CONTENT), cacheControl), compressible)
+            .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if(ranges.size() == 1) {
+            final ByteRanges.Range range = ranges.get(0);
+            return resource.rangeBody.apply(range.start(), range.length()).map(flux -> builder
+                .header(HttpHeaders.CONTENT_RANGE, range.contentRange(size))
+                .contentType(resource.contentType)
+                .contentLength(range.length())
+                .body(flux));
+        }
+        final String boundary = ByteRanges.newBoundary();
+        final Flux<DataBuffer> parts = Flux.fromIterable(ranges)
+            .concatMap(range -> Flux.concat(
+                FluxUtils.fluxFrom(ByteRanges.partHeader(boundary, resource.contentType, range, size)),
+                resource.rangeBody.apply(range.start(), range.length()).flatMapMany(flux -> flux)
+            ))
+            .concatWith(FluxUtils.fluxFrom(ByteRanges.end(boundary)));
+        return Mono.just(builder
+            .contentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary))
+            .body(parts));
+    }
+    private static ResponseEntity.BodyBuilder varying(ResponseEntity.BodyBuilder builder, boolean compressible) {
+        return compressible ? builder.varyBy(HttpHeaders.ACCEPT_ENCODING) : builder;
+    }
+    private static String cacheControlOf(Target target) {
+        return target.cacheControl.orElseGet(() -> propsRef.get().cacheControl);
     }
 
-    private CompletableFuture<String> getFilePath(String relativePath) {
-        if(relativePath.isEmpty()) return getFilePath("/");
+    /** ETag and Last-Modified of a resource. For stored resources they are derived from the time and
+      * size (so the data doesn't need to be read), for jar resources from the contents. Both are strong
+      * ETags (like most web servers do for files) so clients can use them in If-Range.
+      */
+    private record Validators(String eTag, Instant lastModified, long size) {
+        static Validators of(DataStore.Item item) {
+            return new Validators("\"" + Long.toHexString(item.size) + "-" + Long.toHexString(item.time.toEpochMilli()) + "\"", item.time, item.size);
+        }
+        static Validators of(JarResources.JarResource jarResource) {
+            return new Validators(jarResource.eTag(), jarResource.lastModified(), jarResource.size());
+        }
+        /** A compressed variant is a different representation so needs its own ETag */
+        Validators forEncoding(Encoding encoding) {
+            return new Validators(eTag.replaceFirst("\"$", "-" + encoding.token + "\""), lastModified, size);
+        }
+
+        boolean isNotModified(ServerWebExchange exchange) {
+            final HttpMethod method = exchange.getRequest().getMethod();
+            if(method != HttpMethod.GET && method != HttpMethod.HEAD) return false;
+            final HttpHeaders headers = exchange.getRequest().getHeaders();
+            final List<String> ifNoneMatch = noThrow(headers::getIfNoneMatch).orElse(List.of());
+            if(!ifNoneMatch.isEmpty()) { // If-None-Match takes precedence over If-Modified-Since
+                return ifNoneMatch.stream().anyMatch(tag -> "*".equals(tag) || weak(tag).equals(weak(eTag)));
+            }
+            final long ifModifiedSince = noThrow(headers::getIfModifiedSince).orElse(-1L);
+            return ifModifiedSince >= 0 && lastModified.getEpochSecond() <= ifModifiedSince / 1000; // http dates have no millis
+        }
+        ResponseEntity.BodyBuilder addTo(ResponseEntity.BodyBuilder builder, String cacheControl) {
+            return builder
+                .eTag(eTag)
+                .lastModified(lastModified)
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        /** False when an If-Range header is given that doesn't match, meaning the Range should be ignored */
+        boolean isRangeValid(ServerWebExchange exchange) {
+            @Nullable final String ifRange = exchange.getRequest().getHeaders().getFirst(HttpHeaders.IF_RANGE);
+            if(ifRange == null) return true;
+            if(ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(eTag) && !eTag.startsWith("W/"); // strong comparison
+            return noThrow(() -> exchange.getRequest().getHeaders().getFirstDate(HttpHeaders.IF_RANGE))
+                .map(date -> lastModified.getEpochSecond() == date / 1000)
+                .orElse(false);
+        }
+        private static String weak(String tag) { return tag.replaceFirst("^W/", ""); }
+    }
+
+    private static byte[] readAll(URL url) throws IOException {
+        try(final InputStream in = url.openStream()) { return in.readAllBytes(); }
+    }
+    private static InputStream skip(InputStream in, long count) throws IOException {
+        in.skipNBytes(count);
+        return in;
+    }
+
+    private synchronized void updateCompressedVariants(ByteSize cacheSize) {
+        if(cacheSize.equals(compressedCacheSize)) return;
+        Optional.ofNullable(compressedVariants).ifPresent(CompressedVariants::close);
+        compressedVariants = cacheSize.isZero() ? null : new CompressedVariants(cacheSize);
+        compressedCacheSize = cacheSize;
+    }
+    private synchronized void listenToStore() {
+        stopListeningToStore.run();
+        stopListeningToStore = dataStore.get().onChange(this::storeChanged);
+        resolutions.clear();
+        notFoundTemplates.clear();
+    }
+    /** Forgets resolutions that depend on the changed paths. Rebuilds compressed variants of changed resources
+      * that were requested before, so the first request after a change doesn't have to wait for the compression.
+      */
+    private void storeChanged(List<String> changedPaths) {
+        resolutions.invalidate(changedPaths);
+        notFoundTemplates.invalidate(changedPaths);
+        @Nullable final CompressedVariants variants = compressedVariants;
+        if(variants == null) return;
+        changedPaths.forEach(path -> {
+            final Set<Encoding> encodings = variants.remove(path);
+            if(!encodings.isEmpty()) dataStore.get().getItem(path).thenAccept(item -> item.ifPresent(changedItem ->
+                encodings.forEach(encoding -> variants.get(encoding, path, Validators.of(changedItem).forEncoding(encoding).eTag, () -> dataStore.get().read(path)))));
+        });
+    }
+
+    private static List<Map.Entry<Pattern,String>> compileNotFoundPatterns(Map<String,String> notFoundMapping) {
+        return notFoundMapping.entrySet().stream()
+            .flatMap(entry -> noThrow(() -> Map.entry(Pattern.compile(entry.getKey()), entry.getValue()))
+                .or(() -> { log.warn("Ignoring invalid notFoundMapping pattern: {}", entry.getKey()); return Optional.empty(); })
+                .stream())
+            .toList();
+    }
+
+    private CompletableFuture<String> getFilePath(String relativePath, Set<String> probedPaths) {
+        if(relativePath.isEmpty()) return getFilePath("/", probedPaths);
+        probedPaths.add(dataStore.get().normalizePath(relativePath));
         return dataStore.get().exists(relativePath)
                 .thenCompose(exists -> relativePath.endsWith(INDEX_HTML) || (exists && !mayBeDirName(relativePath)) // NOSONAR -- Boolean
                     ? CompletableFuture.completedFuture(relativePath)
-                    : getFilePath(concatPath(relativePath, INDEX_HTML))
+                    : getFilePath(concatPath(relativePath, INDEX_HTML), probedPaths)
                 );
     }
     private static boolean mayBeDirName(String path) {
         return path.endsWith("/") || !path.replaceFirst("^.*/", "").contains(".");
     }
 
-    private String getTargetPath(String path, UserToken userToken) {
+    private String getTargetPath(String path, UserToken userToken, Set<String> probedPaths) {
         if(userToken.hasRole(ROLE_SERVICE)) return path;
         if(!userToken.isLoggedIn()) return concatPath(PUBLIC, path);
-        return getTargetPath(path, userToken.getEmailName());
+        return getTargetPath(path, userToken.getEmailName(), probedPaths);
     }
-    private String getTargetPath(String path, String user) {
+    private String getTargetPath(String path, String user, Set<String> probedPaths) {
         if(user.isEmpty()) return concatPath(PUBLIC, path);
-        final String target = userTargetsConfiguration.getTargetForUser(user, path);
+        final String target = userTargetsConfiguration.getTargetForUser(user, path, probed -> probedPaths.add(dataStore.get().normalizePath(probed)));
         return concatPath(target, dataStore.get().normalizePath(path));
     }
+    /** Resolutions differ per user only because of getTargetPath() */
+    private static String userKeyOf(UserToken userToken) {
+        if(userToken.hasRole(ROLE_SERVICE)) return "/service"; // slash: can't be an email name
+        return userToken.isLoggedIn() ? userToken.getEmailName() : "";
+    }
 
     Mono<ResponseEntity<Flux<DataBuffer>>> proxy(Target target, String uri, ServerWebExchange exchange) {
         return Mono.just(prepareWebClient(target.webClient.orElseThrow(), target.toPathFor(uri), exchange))
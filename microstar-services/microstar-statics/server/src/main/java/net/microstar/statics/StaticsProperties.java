@@ -5,6 +5,7 @@ import lombok.Builder.Default;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import lombok.extern.jackson.Jacksonized;
+import net.microstar.common.util.ByteSize;
 import net.microstar.spring.settings.DynamicProperties;
 
 import java.util.Collections;
@@ -22,10 +23,16 @@ public class StaticsProperties {
     @Default public final Map<String,List<String>> userTargets = new HashMap<>();
     @Default public final Map<String,List<String>> userGroups = new HashMap<>();
     @Default public final Map<String,String> notFoundMapping = new HashMap<>();
+    /** Cache-Control header for resources of targets that don't configure their own.
+      * The default lets clients cache but revalidate (cheap, because of ETag and Last-Modified). */
+    @Default public final String cacheControl = "no-cache";
+    /** Memory for compressed (gzip, deflate) variants of compressible resources. Zero disables compression. */
+    @Default public final ByteSize compressedCacheSize = ByteSize.ofMegabytes(64);
 
     @Builder @Jacksonized @ToString @EqualsAndHashCode
     public static class Target {
         @Default public final String from = "";
         @Default public final String to = "";
+        @Default public final Optional<String> cacheControl = Optional.empty();
     }
 }
@@ -8,8 +8,10 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.DefaultUriBuilderFactory;
 
-import java.util.Comparator;
+import javax.annotation.Nullable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -20,21 +22,23 @@ import static org.springframework.util.ResourceUtils.isUrl;
 @RequiredArgsConstructor
 public class Targets {
     private final WebClient.Builder webClientBuilder;
-    private final AtomicReference<List<Target>> cachedTargets = new AtomicReference<>();
+    private final AtomicReference<TargetsTrie> cachedTargets = new AtomicReference<>();
     private final DynamicPropertiesRef<StaticsProperties> props = DynamicPropertiesRef.of(StaticsProperties.class).onChange(() -> cachedTargets.set(null));
 
     public final class Target {
         public final String from;
         public final String to;
         public final Optional<WebClient> webClient; // when target is url
+        public final Optional<String> cacheControl; // when not set, the global one is used
 
         Target(StaticsProperties.Target target) {
-            this(target.from, target.to);
+            this(target.from, target.to, target.cacheControl);
         }
-        Target(String givenFrom, String givenTo) {
-            from      = "/" + givenFrom.replaceFirst("^/+", "").replaceFirst("/+$", "");
-            to        = givenTo;
-            webClient = isUrl(to) ? Optional.of(buildClient()) : Optional.empty();
+        Target(String givenFrom, String givenTo, Optional<String> givenCacheControl) {
+            from         = "/" + givenFrom.replaceFirst("^/+", "").replaceFirst("/+$", "");
+            to           = givenTo;
+            webClient    = isUrl(to) ? Optional.of(buildClient()) : Optional.empty();
+            cacheControl = givenCacheControl;
         }
 
         public  String      toString()                                  { return "(" + from + "->" + to  + ")"; }
@@ -50,32 +54,54 @@ public class Targets {
     }
 
     public Target createTarget(String from, String to) {
-        return new Target(from, to);
+        return new Target(from, to, Optional.empty());
     }
 
     public Optional<Target> getTarget(String name) {
-        return getTargets().stream()
-            .filter(target -> nameStartsWithPath(name, target.from))
-            .findFirst();
+        return getTargets().find(name);
     }
 
-    private List<Target> getTargets() {
+    private TargetsTrie getTargets() {
         return Optional.ofNullable(cachedTargets.get())
             .orElseGet(() -> {
-                cachedTargets.set(
-                    props.get().targets.stream()
-                        .map(Target::new)
-                        .sorted(Comparator.comparing(t -> -t.from.split("/").length)) // most segments first
-                        .toList()
-                );
+                cachedTargets.set(new TargetsTrie(props.get().targets.stream().map(Target::new).toList()));
                 return cachedTargets.get();
             });
     }
 
-    private static boolean nameStartsWithPath(String nameIn, String pathIn) {
-        final String name = nameIn.replaceFirst("^/+", "");
-        final String path = pathIn.replaceFirst("^/+", "");
-        return path.isEmpty() ||
-            (name.startsWith(path) && (name.length() == path.length() || name.startsWith("/", path.length())));
+    /** Targets by the segments of their 'from' path, so the target with the longest
+      * matching path is found in a single walk over the segments of the request path.
+      */
+    private static final class TargetsTrie {
+        private final Node root = new Node();
+
+        private static final class Node {
+            private final Map<String,Node> children = new HashMap<>();
+            private @Nullable Target target;
+        }
+
+        TargetsTrie(List<Target> targets) {
+            targets.forEach(target -> {
+                Node node = root;
+                for(final String segment : segmentsOf(target.from)) node = node.children.computeIfAbsent(segment, s -> new Node());
+                if(node.target == null) node.target = target; // first configured wins
+            });
+        }
+
+        Optional<Target> find(String name) {
+            Node node = root;
+            @Nullable Target found = root.target;
+            for(final String segment : segmentsOf(name)) {
+                node = node.children.get(segment);
+                if(node == null) break;
+                if(node.target != null) found = node.target;
+            }
+            return Optional.ofNullable(found);
+        }
+
+        private static String[] segmentsOf(String path) {
+            final String trimmed = path.replaceFirst("^/+", "");
+            return trimmed.isEmpty() ? new String[0] : trimmed.split("/", -1);
+        }
     }
 }
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static java.util.function.Predicate.not;
@@ -37,51 +38,55 @@ import static net.microstar.statics.DataService.DATASTORE_NAME;
 public class UserTargetsConfiguration {
     private static final String SETTINGS_FILENAME = "microstar-statics.yaml"; // doesn't support imports
     private final SettingsService settingsService;
-    private final AtomicReference<Map<String,String>> userToGroup = new AtomicReference<>(new HashMap<>());
+    private final AtomicReference<CompiledTargets> compiledTargets = new AtomicReference<>(CompiledTargets.of(StaticsProperties.builder().build()));
     private static final DynamicReferenceNotNull<DataStore> root = DataStores.get(DATASTORE_NAME);
     private final DynamicPropertiesRef<StaticsProperties> props = DynamicPropertiesRef.of(StaticsProperties.class)
-        .onChange(statProps ->
-            userToGroup.set(
-                statProps.userGroups.entrySet().stream() // groupName -> users
-                    .flatMap(e -> e.getValue().stream().map(user -> Map.entry(user, e.getKey()))) // user -> groupName
-                    .collect(ImmutableUtil.toImmutableMap())
-            )
-        ).callOnChangeHandlers();
+        .onChange(statProps -> compiledTargets.set(CompiledTargets.of(statProps)))
+        .callOnChangeHandlers();
+
+    /** The targets of each user (via its group or its name), calculated once per settings change instead of per request */
+    private record CompiledTargets(Map<String,List<String>> targetsOfUser, List<String> defaultTargets, Optional<String> fallbackTarget) {
+        static CompiledTargets of(StaticsProperties statProps) {
+            final Map<String,List<String>> targetsOfName = statProps.userTargets.entrySet().stream()
+                .filter(e -> e.getValue() != null && !e.getValue().isEmpty())
+                .collect(ImmutableUtil.toImmutableMap(Map.Entry::getKey, e -> List.copyOf(e.getValue())));
+            final Map<String,List<String>> targetsOfUser = new HashMap<>(targetsOfName); // users without group use targets of their name
+            statProps.userGroups.forEach((groupName, users) -> users.forEach(user -> // user -> targets of group
+                Optional.ofNullable(targetsOfName.get(groupName)).ifPresentOrElse(
+                    targets -> targetsOfUser.put(user, targets),
+                    () -> targetsOfUser.remove(user)))); // group without targets: default targets, even if there are targets for the name
+            final List<String> defaultTargets = targetsOfName.getOrDefault("default", Collections.emptyList());
+            return new CompiledTargets(
+                Map.copyOf(targetsOfUser),
+                defaultTargets,
+                defaultTargets.stream().findFirst()
+                    .or(() -> statProps.userTargets.values().stream().findFirst().filter(not(List::isEmpty)).map(list -> list.get(0)))
+            );
+        }
+    }
 
     public String getTargetForUser(String userName, String pathNameIn) {
+        return getTargetForUser(userName, pathNameIn, probedPath -> {});
+    }
+    /** Calls probedPaths with each path that was checked for existence, so the caller knows which changes matter */
+    public String getTargetForUser(String userName, String pathNameIn, Consumer<String> probedPaths) {
         final String pathName = pathNameIn.replace("\\","/");
+        final CompiledTargets compiled = compiledTargets.get();
 
-        return getUserGroupOfUser(userName)
-            .or(() -> Optional.of(userName))
-            .flatMap(this::getTargetsOfGroup)
-            .or(this::getDefaultTargets)
-            .flatMap(targets -> getFirstTargetThatHasRequestedResource(targets, pathName))
-            .or(this::getFirstDefaultTarget)
-            .or(this::getFirstTarget)
+        return getFirstTargetThatHasRequestedResource(compiled.targetsOfUser.getOrDefault(userName, compiled.defaultTargets), pathName, probedPaths)
+            .or(() -> compiled.fallbackTarget)
             .orElse("");
     }
 
-    private Optional<String> getUserGroupOfUser(String userName) {
-        return Optional.ofNullable(userToGroup.get().get(userName));
-    }
-    private Optional<List<String>> getTargetsOfGroup(String groupName) {
-        return Optional.ofNullable(props.get().userTargets.get(groupName))
-            .filter(not(List::isEmpty));
-    }
-    private Optional<String> getFirstTargetThatHasRequestedResource(List<String> targets, String resourceName) {
+    private Optional<String> getFirstTargetThatHasRequestedResource(List<String> targets, String resourceName, Consumer<String> probedPaths) {
         return targets.stream() // find first target that has the requested resource
-            .filter(target -> getStore().exists(concatPath(target, resourceName)))
+            .filter(target -> {
+                final String targetPath = concatPath(target, resourceName);
+                probedPaths.accept(targetPath);
+                return getStore().exists(targetPath);
+            })
             .findFirst();
     }
-    private Optional<List<String>> getDefaultTargets() {
-        return Optional.ofNullable(props.get().userTargets.get("default")).filter(not(List::isEmpty));
-    }
-    private Optional<String> getFirstDefaultTarget() {
-        return getDefaultTargets().map(list -> list.get(0));
-    }
-    private Optional<String> getFirstTarget() {
-        return props.get().userTargets.values().stream().findFirst().filter(not(List::isEmpty)).map(list -> list.get(0));
-    }
 
     /** Returns targets map */
     public Mono<Map<String,List<String>>> set(Map<String,List<String>> newUserTargets, UserToken userToken) {
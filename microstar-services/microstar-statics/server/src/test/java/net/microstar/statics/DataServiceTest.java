@@ -0,0 +1,106 @@
+package net.microstar.statics;
+
+import net.microstar.common.datastore.BlockingDataStore;
+import net.microstar.dispatcher.model.RelayRequest;
+import net.microstar.spring.DataStores;
+import net.microstar.spring.application.AppSettings;
+import net.microstar.spring.settings.DynamicPropertiesManager;
+import net.microstar.spring.webflux.EventEmitter;
+import net.microstar.spring.webflux.dispatcher.client.DispatcherService;
+import net.microstar.spring.webflux.util.FluxUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+class DataServiceTest {
+    private DataService service;
+
+    @BeforeEach void setup() {
+        AppSettings.handleExternalSettingsText("""
+            microstar.dataStores:
+              resources:
+                type: memory
+            """);
+        final DispatcherService dispatcher = Mockito.mock(DispatcherService.class);
+        when(dispatcher.relay(Mockito.any(RelayRequest.class), Mockito.<Class<?>>any())).thenReturn(Flux.empty());
+        service = new DataService(Mockito.mock(EventEmitter.class), dispatcher);
+    }
+    @AfterEach void cleanup() {
+        DataStores.closeAll();
+        DynamicPropertiesManager.clearAllState();
+    }
+
+    @Test void uploadedFileShouldBeStored() {
+        final byte[] data = new byte[300_000]; // larger than the pipe
+        for(int i = 0; i < data.length; i++) data[i] = (byte)(i % 251);
+
+        service.handleUpload("/target/", partsOf(filePart("file.bin", data))).block();
+
+        assertThat(getStore().read("/target/file.bin").orElseThrow(), is(data));
+    }
+    @Test void uploadedZipFileEntriesShouldBeStored() throws IOException {
+        final ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+        try(final ZipOutputStream zipOut = new ZipOutputStream(zipData)) {
+            zipOut.putNextEntry(new ZipEntry("a.txt"));
+            zipOut.write("text of a".getBytes(StandardCharsets.UTF_8));
+            zipOut.putNextEntry(new ZipEntry("sub/"));
+            zipOut.putNextEntry(new ZipEntry("sub/b.txt"));
+            zipOut.write("text of b".getBytes(StandardCharsets.UTF_8));
+        }
+
+        service.handleUpload("/target/", partsOf(filePart("files.zip", zipData.toByteArray()))).block();
+
+        assertThat(getStore().readString("/target/a.txt").orElseThrow(), is("text of a"));
+        assertThat(getStore().readString("/target/sub/b.txt").orElseThrow(), is("text of b"));
+        assertThat(getStore().exists("/target/files.zip"), is(false));
+    }
+    @Test void namesOutsideTargetShouldBeRejected() {
+        assertThat(DataService.safeName("/a/b.txt"), is("a/b.txt"));
+        assertThat(DataService.safeName("a\\b.txt"), is("a/b.txt"));
+        assertThat(DataService.safeName("a..b.txt"), is("a..b.txt"));
+        assertThrows(IllegalArgumentException.class, () -> DataService.safeName("../a.txt"));
+        assertThrows(IllegalArgumentException.class, () -> DataService.safeName("a/../../b.txt"));
+        assertThrows(IllegalArgumentException.class, () -> DataService.safeName("a\\..\\b.txt"));
+    }
+    @Test void failingUploadStreamShouldFailInsteadOfEnd() throws IOException {
+        final Flux<DataBuffer> failing = FluxUtils.fluxFrom("some data").concatWith(Flux.error(new IllegalStateException("connection lost")));
+        try(final InputStream in = DataService.inputStreamOf(failing)) {
+            assertThrows(IOException.class, in::readAllBytes);
+        }
+    }
+
+    private static BlockingDataStore getStore() {
+        return BlockingDataStore.forStore(DataStores.get(DataService.DATASTORE_NAME));
+    }
+    private static FilePart filePart(String filename, byte[] data) {
+        final FilePart part = Mockito.mock(FilePart.class);
+        when(part.filename()).thenReturn(filename);
+        when(part.content()).thenAnswer(inv -> FluxUtils.fluxFrom(data));
+        return part;
+    }
+    private static Mono<MultiValueMap<String, Part>> partsOf(FilePart part) {
+        final MultiValueMap<String, Part> parts = new LinkedMultiValueMap<>();
+        parts.add("file", part);
+        return Mono.just(parts);
+    }
+}
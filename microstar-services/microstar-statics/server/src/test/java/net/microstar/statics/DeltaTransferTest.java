@@ -0,0 +1,95 @@
+package net.microstar.statics;
+
+import net.microstar.common.datastore.DataStore;
+import net.microstar.common.datastore.MemoryDataStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DeltaTransferTest {
+    private static final int BLOCK_SIZE = 2048;
+    private final DataStore store = new MemoryDataStore();
+
+    @AfterEach void cleanup() {
+        store.getCloseRunner().run();
+    }
+
+    @Test void identicalDataShouldOnlyCopyBlocks() throws IOException {
+        final byte[] data = randomBytes(1, 100 * BLOCK_SIZE);
+        assertThat(roundTrip(data, data).length, lessThan(data.length / 100));
+    }
+    @Test void insertAtStartShouldBeRebuilt() throws IOException {
+        final byte[] old = randomBytes(2, 100 * BLOCK_SIZE);
+        final byte[] inserted = concat(randomBytes(3, 100), old);
+        assertThat(roundTrip(old, inserted).length, lessThan(inserted.length / 10));
+    }
+    @Test void insertInMiddleShouldBeRebuilt() throws IOException {
+        final byte[] old = randomBytes(4, 100 * BLOCK_SIZE);
+        final int middle = old.length / 2 + 123;
+        final byte[] inserted = concat(slice(old, 0, middle), randomBytes(5, 5000), slice(old, middle, old.length));
+        assertThat(roundTrip(old, inserted).length, lessThan(inserted.length / 10));
+    }
+    @Test void insertAtEndShouldBeRebuilt() throws IOException {
+        final byte[] old = randomBytes(6, 100 * BLOCK_SIZE + 17);
+        final byte[] inserted = concat(old, randomBytes(7, 999));
+        assertThat(roundTrip(old, inserted).length, lessThan(inserted.length / 10));
+    }
+    @Test void dataShorterThanOneBlockShouldBeRebuilt() throws IOException {
+        roundTrip(randomBytes(8, BLOCK_SIZE - 1), randomBytes(9, BLOCK_SIZE / 2));
+        roundTrip(randomBytes(10, 10 * BLOCK_SIZE), randomBytes(11, 1));
+        roundTrip(new byte[0], randomBytes(12, 100));
+        roundTrip(randomBytes(13, 100), new byte[0]);
+    }
+    @Test void literalsLongerThanMaxLiteralSizeShouldBeSplit() throws IOException {
+        final byte[] old = randomBytes(14, 10 * BLOCK_SIZE);
+        final byte[] changed = concat(slice(old, 0, 4 * BLOCK_SIZE), randomBytes(15, 300 * 1024), slice(old, 4 * BLOCK_SIZE, old.length));
+        roundTrip(old, changed);
+    }
+    @Test void reorderedBlocksShouldBeRebuilt() throws IOException {
+        final byte[] old = randomBytes(16, 20 * BLOCK_SIZE);
+        final byte[] reordered = concat(slice(old, 10 * BLOCK_SIZE, old.length), slice(old, 0, 10 * BLOCK_SIZE));
+        assertThat(roundTrip(old, reordered).length, lessThan(reordered.length / 10));
+    }
+    @Test void invalidBlockSizeShouldBeRejected() {
+        assertThrows(IOException.class, () -> DeltaTransfer.readSignatures(ByteBuffer.allocate(4).putInt(0, 100).array()));
+        assertThrows(IOException.class, () -> DeltaTransfer.readSignatures(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE).array()));
+    }
+
+    /** Rebuilds newData from oldData using a delta, checks the result and returns the delta */
+    private byte[] roundTrip(byte[] oldData, byte[] newData) throws IOException {
+        store.write("old", oldData).join();
+        final byte[] signatures = DeltaTransfer.signaturesOf(new ByteArrayInputStream(oldData), BLOCK_SIZE);
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaTransfer.writeDelta(new ByteArrayInputStream(newData), DeltaTransfer.readSignatures(signatures), delta);
+
+        final ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        DeltaTransfer.applyDelta(new ByteArrayInputStream(delta.toByteArray()), store, "old", BLOCK_SIZE, rebuilt);
+        assertThat(rebuilt.toByteArray(), is(newData));
+        return delta.toByteArray();
+    }
+    private static byte[] randomBytes(long seed, int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+    private static byte[] slice(byte[] data, int from, int to) {
+        final byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(final byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+}
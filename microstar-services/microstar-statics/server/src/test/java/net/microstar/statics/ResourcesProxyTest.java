@@ -18,6 +18,7 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
@@ -27,10 +28,18 @@ import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
+import static net.microstar.testing.TestUtils.waitUntilCondition;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 @SuppressWarnings("SpellCheckingInspection")
@@ -45,6 +54,7 @@ class ResourcesProxyTest {
           targets:
             - from: someDir
               to:   /testDir/
+              cacheControl: max-age=3600
             - from: someEndpoint
               to:   http://localhost:${port}/deeper/
 
@@ -92,6 +102,96 @@ class ResourcesProxyTest {
         assertThat(result.getBody(), notNullValue());
         assertThat(FluxUtils.toString(result.getBody()).block(), is("some text"));
     }
+    @Test void conditionalRequestShouldReturnNotModified() {
+        getStore().write("/testDir/file.txt", "some text");
+        final ResourcesProxy ctrl = createProxy();
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> first = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/file.txt")), TOKEN_UNKNOWN).block();
+        assertThat(first, notNullValue());
+        assertThat(first.getStatusCode(), is(HttpStatus.OK));
+        assertThat(first.getHeaders().getCacheControl(), is("max-age=3600"));
+        final String eTag = first.getHeaders().getETag();
+        assertThat(eTag, notNullValue());
+        assertThat(first.getHeaders().getLastModified() > 0, is(true));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> byETag = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/file.txt").ifNoneMatch(eTag)), TOKEN_UNKNOWN).block();
+        assertThat(byETag, notNullValue());
+        assertThat(byETag.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+        assertThat(byETag.getBody(), is(nullValue()));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> byTime = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/file.txt").ifModifiedSince(first.getHeaders().getLastModified())), TOKEN_UNKNOWN).block();
+        assertThat(byTime, notNullValue());
+        assertThat(byTime.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+
+        getStore().write("/testDir/file.txt", "changed text");
+        @Nullable final ResponseEntity<Flux<DataBuffer>> changed = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/file.txt").ifNoneMatch(eTag)), TOKEN_UNKNOWN).block();
+        assertThat(changed, notNullValue());
+        assertThat(changed.getStatusCode(), is(HttpStatus.OK));
+        assertThat(FluxUtils.toString(changed.getBody()).block(), is("changed text"));
+    }
+    @Test void compressibleResourceShouldBeCompressedWhenAccepted() throws IOException {
+        final String text = "some compressible text ".repeat(100);
+        getStore().write("/testDir/large.txt", text);
+        final ResourcesProxy ctrl = createProxy();
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> gzipped = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/large.txt").header(HttpHeaders.ACCEPT_ENCODING, "deflate;q=0.5, gzip")), TOKEN_UNKNOWN).block();
+        assertThat(gzipped, notNullValue());
+        assertThat(gzipped.getStatusCode(), is(HttpStatus.OK));
+        assertThat(gzipped.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING), is("gzip"));
+        assertThat(gzipped.getHeaders().getVary(), is(List.of(HttpHeaders.ACCEPT_ENCODING)));
+        final byte[] compressed = FluxUtils.toBytes(gzipped.getBody()).block();
+        assertThat(compressed, notNullValue());
+        assertThat(compressed.length < text.length(), is(true));
+        try(final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8), is(text));
+        }
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> plain = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/large.txt")), TOKEN_UNKNOWN).block();
+        assertThat(plain, notNullValue());
+        assertThat(plain.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING), is(nullValue()));
+        assertThat(plain.getHeaders().getVary(), is(List.of(HttpHeaders.ACCEPT_ENCODING)));
+        assertThat(plain.getHeaders().getETag(), is(not(gzipped.getHeaders().getETag())));
+        assertThat(FluxUtils.toString(plain.getBody()).block(), is(text));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> notModified = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/large.txt")
+            .header(HttpHeaders.ACCEPT_ENCODING, "gzip").ifNoneMatch(gzipped.getHeaders().getETag())), TOKEN_UNKNOWN).block();
+        assertThat(notModified, notNullValue());
+        assertThat(notModified.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+    }
+    @Test void rangeRequestShouldReturnPartialContent() {
+        getStore().write("/testDir/range.txt", "0123456789abcdefghij");
+        final ResourcesProxy ctrl = createProxy();
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> single = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/range.txt").header(HttpHeaders.RANGE, "bytes=5-9")), TOKEN_UNKNOWN).block();
+        assertThat(single, notNullValue());
+        assertThat(single.getStatusCode(), is(HttpStatus.PARTIAL_CONTENT));
+        assertThat(single.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE), is("bytes 5-9/20"));
+        assertThat(FluxUtils.toString(single.getBody()).block(), is("56789"));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> suffix = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/range.txt").header(HttpHeaders.RANGE, "bytes=-3")), TOKEN_UNKNOWN).block();
+        assertThat(suffix, notNullValue());
+        assertThat(FluxUtils.toString(suffix.getBody()).block(), is("hij"));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> multi = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/range.txt").header(HttpHeaders.RANGE, "bytes=0-1,10-")), TOKEN_UNKNOWN).block();
+        assertThat(multi, notNullValue());
+        assertThat(multi.getStatusCode(), is(HttpStatus.PARTIAL_CONTENT));
+        assertThat(String.valueOf(multi.getHeaders().getContentType()).startsWith("multipart/byteranges"), is(true));
+        final String multiBody = FluxUtils.toString(multi.getBody()).block();
+        assertThat(multiBody, notNullValue());
+        assertThat(multiBody.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"), is(true));
+        assertThat(multiBody.contains("Content-Range: bytes 10-19/20\r\n\r\nabcdefghij\r\n"), is(true));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> unsatisfiable = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/range.txt").header(HttpHeaders.RANGE, "bytes=30-")), TOKEN_UNKNOWN).block();
+        assertThat(unsatisfiable, notNullValue());
+        assertThat(unsatisfiable.getStatusCode(), is(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE));
+        assertThat(unsatisfiable.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE), is("bytes */20"));
+
+        @Nullable final ResponseEntity<Flux<DataBuffer>> changed = ctrl.getResource(MockServerWebExchange.from(MockServerHttpRequest.get("/someDir/range.txt")
+            .header(HttpHeaders.RANGE, "bytes=5-9").header(HttpHeaders.IF_RANGE, "\"outdated\"")), TOKEN_UNKNOWN).block();
+        assertThat(changed, notNullValue());
+        assertThat(changed.getStatusCode(), is(HttpStatus.OK));
+        assertThat(FluxUtils.toString(changed.getBody()).block(), is("0123456789abcdefghij"));
+    }
     @Test void getUrlShouldProxyTheRequest() throws IOException, InterruptedException {
         final Logger logger = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
         logger.setLevel(Level.INFO);
@@ -159,6 +259,34 @@ class ResourcesProxyTest {
         assertThat(download("/deeper/foo.html", TOKEN_USER_TESTER), is("tester foo"));
         assertThat(download("/deeper/bar.html", TOKEN_USER_TESTER), is("public bar"));
     }
+    @Test void resolutionShouldBeRedoneWhenStoreChanges() {
+        getStore().write("public/page.html", "public page");
+        final ResourcesProxy ctrl = createProxy();
+
+        assertThat(download(ctrl, "/page.html", TOKEN_USER_ABC), is("public page")); // not in /frontend/ so from /public/
+        getStore().write("public/page.html", "changed public page");
+        assertThat(download(ctrl, "/page.html", TOKEN_USER_ABC), is("changed public page"));
+
+        getStore().write("frontend/page.html", "frontend page"); // was looked at, so resolution should be forgotten
+        waitUntilCondition(() -> "frontend page".equals(download(ctrl, "/page.html", TOKEN_USER_ABC)));
+        assertThat(download(ctrl, "/page.html", TOKEN_USER_ABC), is("frontend page"));
+        assertThat(download(ctrl, "/page.html", TOKEN_UNKNOWN), is("changed public page"));
+    }
+    @Test void removedFileShouldBeResolvedAgain() {
+        getStore().write("frontend/page.html", "frontend page");
+        getStore().write("public/page.html", "public page");
+        final ResourcesProxy ctrl = createProxy();
+        assertThat(download(ctrl, "/page.html", TOKEN_USER_ABC), is("frontend page"));
+
+        getStore().remove("frontend/page.html"); // request comes in before the change event
+        assertThat(download(ctrl, "/page.html", TOKEN_USER_ABC), is("public page"));
+    }
+    @Test void jarResourceShouldBeServedWhenNotInStore() {
+        assertThat(download("/error.html", TOKEN_UNKNOWN), is("/public/ error resource"));
+
+        getStore().write("public/error.html", "/public/ error page");
+        assertThat(download("/error.html", TOKEN_UNKNOWN), is("/public/ error page"));
+    }
     @Test void notFoundShouldLeadTo404FilePage() {
         getStore().write("public/404.html",     "/public/ 404 page");
         getStore().write("public/foo/404.html", "/public/foo/ 404 page");
@@ -175,6 +303,19 @@ class ResourcesProxyTest {
         assertThat(download("/any/where/file.html",      TOKEN_UNKNOWN), is("/public/ 404 page"));
     }
 
+    @Test void notFoundPageShouldChangeWhenStoreChanges() {
+        getStore().write("public/404.html", "404 for ${path}");
+        final ResourcesProxy ctrl = createProxy();
+
+        assertThat(download(ctrl, "/foo/a.html", TOKEN_UNKNOWN), is("404 for /foo/a.html"));
+        assertThat(download(ctrl, "/foo/b.html", TOKEN_UNKNOWN), is("404 for /foo/b.html"));
+
+        getStore().write("public/foo/404.html", "foo 404 for ${path} \\${escaped} ${unknown}");
+        waitUntilCondition(() -> download(ctrl, "/foo/a.html", TOKEN_UNKNOWN).startsWith("foo"));
+        assertThat(download(ctrl, "/foo/b.html", TOKEN_UNKNOWN), is("foo 404 for /foo/b.html ${escaped} ?unknown:(unknown)?"));
+        assertThat(download(ctrl, "/bar/b.html", TOKEN_UNKNOWN), is("404 for /bar/b.html"));
+    }
+
     private BlockingDataStore getStore() {
         return BlockingDataStore.forStore(DataStores.get("resources"));
     }
@@ -182,11 +323,13 @@ class ResourcesProxyTest {
         return new ResourcesProxy(new Targets(WebClient.builder()), new UserTargetsConfiguration(Mockito.mock(SettingsService.class)));
     }
     private String download(String uri, UserToken userToken) {
+        return download(createProxy(), uri, userToken);
+    }
+    private String download(ResourcesProxy ctrl, String uri, UserToken userToken) {
         final ServerWebExchange exchange = MockServerWebExchange.builder(
             MockServerHttpRequest.get(uri).build()
         ).build();
 
-        final ResourcesProxy ctrl = createProxy();
         try {
             //noinspection DataFlowIssue -- forego null checks since this is a test only
             return FluxUtils.toString(ctrl.getResource(exchange, userToken).block().getBody()).block();
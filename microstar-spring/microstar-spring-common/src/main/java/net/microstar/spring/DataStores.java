@@ -9,6 +9,7 @@ import lombok.extern.slf4j.Slf4j;
 import net.microstar.common.conversions.DurationString;
 import net.microstar.common.datastore.CachedDataStore;
 import net.microstar.common.datastore.DataStore;
+import net.microstar.common.datastore.DedupDataStore;
 import net.microstar.common.datastore.FailingDataStore;
 import net.microstar.common.datastore.FileSystemDataStore;
 import net.microstar.common.datastore.MemoryDataStore;
@@ -60,6 +61,9 @@ import static net.microstar.common.util.Utils.peek;
   *                     - poolSize    Database connection pool size. Defaults to 10.
   *                     - pollingTime Optional: time between polling for changes. Defaults to 10s.
   *
+  * Every datastore can have deduplication (dedup: true) which stores identical data only
+  * once. See DedupDataStore.
+  *
   * Every datastore can have caching. For those options see CachedDataStore
   * </pre>
   **/
@@ -184,6 +188,13 @@ public final class DataStores {
         }
     }
 
+    /** Returns the configuration the store with the given name was built with (empty when not configured) */
+    public static PropsMap settingsOf(String storeName) {
+        synchronized (nameToStoreInfo) {
+            return Optional.ofNullable(nameToStoreInfo.get(storeName)).map(info -> info.storeSettings).orElseGet(PropsMap::empty);
+        }
+    }
+
     public static boolean isFailingDataStore(DataStore ds) {
         return ds instanceof FailingDataStore;
     }
@@ -277,11 +288,15 @@ public final class DataStores {
                     }))
             .apply(storeSettings);
 
+        final DataStore dedupStore = storeSettings.getString("dedup").map(Boolean::parseBoolean).orElse(false)
+            ? new DedupDataStore(newDataStore)
+            : newDataStore;
+
         final DataStore resultStore = storeSettings.getMap().containsKey("cache")
             ? new CachedDataStore(
-                newDataStore, storeName,
+                dedupStore, storeName,
                 storeSettings.getMap("cache").orElseThrow(() -> new IllegalArgumentException("The 'cache' value should be a map but is " + storeSettings.get("cache"))))
-            : newDataStore;
+            : dedupStore;
 
         log.info("Created new {}instance of DataStore '{}'", resultStore instanceof CachedDataStore ? "(cached) " : "", storeName);
         return resultStore;
@@ -13,6 +13,8 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import static net.microstar.common.util.ExceptionUtils.noThrow;
@@ -44,6 +46,12 @@ public class ResourceScanner {
             .map(recs -> mapToNames(path, recs))
             .orElseThrow();
     }
+    /** Resources by their name relative to given path, in the order they were found */
+    public static Map<String,Resource> getResourcesByName(String path, boolean recursive) {
+        final Map<String,Resource> result = new LinkedHashMap<>();
+        for(final Resource resource : getResources(path, recursive)) result.put(mapToName(path, resource), resource);
+        return result;
+    }
 
     public static boolean copyResources(String resourcePath, Path targetPath) { return copyResources(resourcePath, targetPath, false); }
     public static boolean copyResources(String resourcePath, Path targetPath, boolean recursive) { return copyResources(resourcePath, targetPath, recursive, p -> {}); }
@@ -9,17 +9,26 @@ import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Optional;
 
+import static net.microstar.common.util.ExceptionUtils.noThrow;
+import static net.microstar.common.util.ExceptionUtils.noThrowMap;
+
 public final class FluxUtils {
     private FluxUtils() {}
             static       int bufferSize = 100 * 1024;
+            static       int mappedRegionSize = 4 * 1024 * 1024;
+            static      long maxMappedFileSize = System.getProperty("os.name").toLowerCase().contains("win") ? 0 : 16 * 1024 * 1024;
     private static final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
     @SuppressWarnings("unused")
     private static final DynamicPropertyRef<ByteSize> bufferSizeRef = DynamicPropertyRef.of("app.config.defaultFluxBufferSize", ByteSize.class)
@@ -39,14 +48,45 @@ public final class FluxUtils {
     public static Flux<DataBuffer> fluxFrom(InputStream in) {
         return DataBufferUtils.readInputStream(() -> in, bufferFactory, bufferSize);
     }
+    /** The channel will be closed when the flux completes or is cancelled. Small files are memory mapped */
+    public static Flux<DataBuffer> fluxFrom(ReadableByteChannel channel) {
+        return channel instanceof FileChannel fileChannel && noThrowMap(fileChannel::size, e -> Long.MAX_VALUE) < maxMappedFileSize
+            ? fluxFromMapped(fileChannel)
+            : DataBufferUtils.readByteChannel(() -> channel, bufferFactory, bufferSize);
+    }
 
     public static Mono<Flux<DataBuffer>> fluxFromStore(DataStore store, String path) {
-        return Mono.fromFuture(store.readStream(path))
+        return Mono.fromFuture(store.readChannel(path))
             .filter(Optional::isPresent)
             .map(Optional::get)
             .map(FluxUtils::fluxFrom);
     }
 
+    /** Memory maps the file in regions and wraps those in buffers, so the data goes from the
+      * page cache to the network without being copied onto the heap. Mapped regions are not
+      * affected by closing the channel and are unmapped when garbage collected.<p>
+      *
+      * This is only used for files smaller than maxMappedFileSize because a mapping lives until
+      * garbage collected: a file truncated meanwhile leads to a SIGBUS when reading the mapping,
+      * a mapped file is locked on Windows (so mapping is not used there) and many large files
+      * would use up the number of mappings a process may have (vm.max_map_count).
+      */
+    private static Flux<DataBuffer> fluxFromMapped(FileChannel channel) {
+        return Flux.using(() -> channel,
+            fileChannel -> Flux.generate(fileChannel::position, (Long position, SynchronousSink<DataBuffer> sink) -> {
+                try {
+                    final long length = Math.min(mappedRegionSize, fileChannel.size() - position);
+                    if(length <= 0) { sink.complete(); return position; }
+                    sink.next(bufferFactory.wrap(fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length)));
+                    return position + length;
+                } catch(final IOException e) {
+                    sink.error(e);
+                    return position;
+                }
+            }),
+            fileChannel -> noThrow(fileChannel::close));
+    }
+
     public static Mono<byte[]> toBytes(@Nullable Flux<DataBuffer> flux) {
         return flux == null ? Mono.empty() : DataBufferUtils.join(flux)
             .map(dataBuffer -> {
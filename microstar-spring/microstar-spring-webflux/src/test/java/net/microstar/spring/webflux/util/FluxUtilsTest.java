@@ -1,11 +1,13 @@
 package net.microstar.spring.webflux.util;
 
 import net.microstar.common.datastore.DataStore;
+import net.microstar.common.datastore.FileSystemDataStore;
 import net.microstar.common.datastore.MemoryDataStore;
 import net.microstar.common.io.IOUtils;
 import net.microstar.spring.settings.DynamicPropertiesManager;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.core.io.buffer.DataBuffer;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -20,6 +22,7 @@ import java.nio.file.Path;
 import java.util.concurrent.ExecutionException;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 class FluxUtilsTest {
@@ -91,6 +94,50 @@ class FluxUtilsTest {
             .verifyComplete();
     }
 
+    @Test void testFromFileSystemDataStoreShouldMapRegions(@TempDir Path dir) throws ExecutionException, InterruptedException {
+        final int oldRegionSize = FluxUtils.mappedRegionSize;
+        final long oldMaxMappedFileSize = FluxUtils.maxMappedFileSize;
+        FluxUtils.mappedRegionSize = 64 * 1024;
+        FluxUtils.maxMappedFileSize = 16 * 1024 * 1024; // also on Windows
+        final DataStore store = new FileSystemDataStore(dir);
+        try {
+            final String text = someText.repeat(10 * 1024); // multiple regions
+            store.write("file.text", text).get();
+            final Flux<DataBuffer> flux = FluxUtils.fluxFromStore(store, "file.text").block();
+            assertThat(flux, is(notNullValue()));
+
+            StepVerifier
+                .create(FluxUtils.toString(flux))
+                .expectNext(text)
+                .verifyComplete();
+            assertThat(FluxUtils.fluxFromStore(store, "missing.text").blockOptional().isPresent(), is(false));
+        } finally {
+            FluxUtils.mappedRegionSize = oldRegionSize;
+            FluxUtils.maxMappedFileSize = oldMaxMappedFileSize;
+            store.getCloseRunner().run();
+        }
+    }
+
+    @Test void testFromFileSystemDataStoreShouldNotMapLargeFiles(@TempDir Path dir) throws ExecutionException, InterruptedException {
+        final long oldMaxMappedFileSize = FluxUtils.maxMappedFileSize;
+        FluxUtils.maxMappedFileSize = 64 * 1024;
+        final DataStore store = new FileSystemDataStore(dir);
+        try {
+            final String text = someText.repeat(10 * 1024); // larger than max mapped size
+            store.write("file.text", text).get();
+            final Flux<DataBuffer> flux = FluxUtils.fluxFromStore(store, "file.text").block();
+            assertThat(flux, is(notNullValue()));
+
+            StepVerifier
+                .create(FluxUtils.toString(flux))
+                .expectNext(text)
+                .verifyComplete();
+        } finally {
+            FluxUtils.maxMappedFileSize = oldMaxMappedFileSize;
+            store.getCloseRunner().run();
+        }
+    }
+
     private static boolean equals(byte[] a, byte[] b) {
         if(a.length != b.length) return false;
         for(int i=0; i<a.length; i++) if(a[i] != b[i]) return false;